@@ -56,13 +56,13 @@ def run( image_file ):
 	settings.setFrom( imp )
 	       
 	# Configure StarDist custom detector.
+	# Start from the default settings, so that all the detector keys are set.
 	settings.detectorFactory = StarDistCustomDetectorFactory()
-	settings.detectorSettings = { 
-	    'SCORE_THRESHOLD' : 0.41,
-	    'OVERLAP_THRESHOLD' : 0.5,
-	    'TARGET_CHANNEL' : 1,
-	    'MODEL_FILEPATH' : model_file,
-	}
+	settings.detectorSettings = settings.detectorFactory.getDefaultSettings()
+	settings.detectorSettings[ 'SCORE_THRESHOLD' ] = 0.41
+	settings.detectorSettings[ 'OVERLAP_THRESHOLD' ] = 0.5
+	settings.detectorSettings[ 'TARGET_CHANNEL' ] = 1
+	settings.detectorSettings[ 'MODEL_FILEPATH' ] = model_file
 
 	# Configure tracker.
 	settings.trackerFactory = SparseLAPTrackerFactory()
@@ -70,10 +70,10 @@ def run( image_file ):
 	setup = settings.toStringImageInfo() 
 	       
 	# Configure StarDist default detector.
+	# Start from the default settings, so that all the detector keys are set.
 	settings.detectorFactory = StarDistDetectorFactory()
-	settings.detectorSettings = {
-	    'TARGET_CHANNEL' : channel_to_process
-	}
+	settings.detectorSettings = settings.detectorFactory.getDefaultSettings()
+	settings.detectorSettings[ 'TARGET_CHANNEL' ] = channel_to_process
 
 	# Configure tracker
 	settings.trackerFactory = SparseLAPTrackerFactory()
@@ -0,0 +1,264 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import fiji.plugin.trackmate.stardist.FrameMemory.Detection;
+
+/**
+ * An append-only journal of the detections of each frame, so that a
+ * detection run that was interrupted can be resumed without processing
+ * again the frames it completed.
+ * <p>
+ * The journal starts with a header made of a magic number and a key that
+ * identifies the image and the settings it was written for. It is followed
+ * by one record per frame: the record length, the frame, its polygons in
+ * physical units with their quality, and a CRC32 of the record. Each record
+ * is flushed to disk once written. When a journal is opened, records are
+ * read until the first incomplete or corrupted one, which is the trace of a
+ * crash, and the file is truncated there. A journal written for another key
+ * is rejected rather than reused or overwritten: it belongs to another image,
+ * interval or settings, and must be removed or another path chosen.
+ */
+public class DetectionJournal
+{
+
+	/** "SDJ1". */
+	private static final int MAGIC = 0x53444a31;
+
+	private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+
+	private final Map< Integer, List< Detection > > frames = new HashMap<>();
+
+	private final FileOutputStream stream;
+
+	private final DataOutputStream out;
+
+	/**
+	 * Opens a journal, and reads the frames it already holds. A new journal
+	 * is started if the file does not exist or does not hold a complete
+	 * header.
+	 *
+	 * @param path
+	 *            the path to the journal file.
+	 * @param key
+	 *            a key identifying the image, the interval and the settings.
+	 * @throws IOException
+	 *             if the journal cannot be read or written, or if it was
+	 *             written for another key.
+	 */
+	public DetectionJournal( final String path, final long key ) throws IOException
+	{
+		final File file = new File( path );
+		final long validLength = file.exists() ? read( file, key ) : -1;
+		if ( validLength < 0 )
+		{
+			// New journal.
+			frames.clear();
+			stream = new FileOutputStream( file, false );
+			out = new DataOutputStream( stream );
+			out.writeInt( MAGIC );
+			out.writeLong( key );
+			out.flush();
+		}
+		else
+		{
+			// Drop a truncated last record, then append.
+			try (RandomAccessFile raf = new RandomAccessFile( file, "rw" ))
+			{
+				raf.setLength( validLength );
+			}
+			stream = new FileOutputStream( file, true );
+			out = new DataOutputStream( stream );
+		}
+	}
+
+	/**
+	 * Returns the detections journaled for the specified frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return the detections, or <code>null</code> if the frame is not in the
+	 *         journal.
+	 */
+	public synchronized List< Detection > get( final int frame )
+	{
+		return frames.get( Integer.valueOf( frame ) );
+	}
+
+	/**
+	 * Appends the detections of a frame to the journal, and flushes them to
+	 * disk.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param detections
+	 *            the detections of the frame, in physical units.
+	 * @throws IOException
+	 *             if the journal cannot be written.
+	 */
+	public synchronized void append( final int frame, final List< Detection > detections ) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream record = new DataOutputStream( bytes );
+		record.writeInt( frame );
+		record.writeInt( detections.size() );
+		for ( final Detection detection : detections )
+		{
+			record.writeDouble( detection.quality );
+			record.writeInt( detection.x.length );
+			for ( int i = 0; i < detection.x.length; i++ )
+			{
+				record.writeDouble( detection.x[ i ] );
+				record.writeDouble( detection.y[ i ] );
+			}
+		}
+		record.flush();
+		final byte[] payload = bytes.toByteArray();
+		final CRC32 crc = new CRC32();
+		crc.update( payload );
+
+		out.writeInt( payload.length );
+		out.write( payload );
+		out.writeLong( crc.getValue() );
+		out.flush();
+		stream.getFD().sync();
+		frames.put( Integer.valueOf( frame ), new ArrayList<>( detections ) );
+	}
+
+	/**
+	 * Returns the number of frames in the journal.
+	 *
+	 * @return the number of frames.
+	 */
+	public synchronized int size()
+	{
+		return frames.size();
+	}
+
+	/**
+	 * Exports the detections of this journal to a polygon store.
+	 *
+	 * @param path
+	 *            the path to the store file, replaced if it exists.
+	 * @throws IOException
+	 *             if the store cannot be written.
+	 * @see PolygonStore
+	 */
+	public synchronized void exportTo( final String path ) throws IOException
+	{
+		PolygonStore.write( path, frames );
+	}
+
+	public synchronized void close() throws IOException
+	{
+		out.close();
+	}
+
+	/**
+	 * Reads the records of an existing journal.
+	 *
+	 * @return the length of the valid part of the file, or -1 if it does not
+	 *         hold a complete header.
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a journal for the
+	 *             specified key.
+	 */
+	private long read( final File file, final long key ) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ))
+		{
+			try
+			{
+				if ( in.readInt() != MAGIC )
+					throw new IOException( "Not a detection journal: " + file );
+				if ( in.readLong() != key )
+					throw new IOException( "The journal " + file + " was written for another image, interval or settings. "
+							+ "Remove it or choose another journal file." );
+			}
+			catch ( final EOFException e )
+			{
+				return -1;
+			}
+
+			long validLength = HEADER_SIZE;
+			final CRC32 crc = new CRC32();
+			while ( true )
+			{
+				final byte[] payload;
+				try
+				{
+					final int length = in.readInt();
+					if ( length < 2 * Integer.BYTES || length > file.length() )
+						break;
+					payload = new byte[ length ];
+					in.readFully( payload );
+					crc.reset();
+					crc.update( payload );
+					if ( in.readLong() != crc.getValue() )
+						break;
+				}
+				catch ( final EOFException e )
+				{
+					break;
+				}
+
+				final DataInputStream record = new DataInputStream( new ByteArrayInputStream( payload ) );
+				final int frame = record.readInt();
+				final int n = record.readInt();
+				final List< Detection > detections = new ArrayList<>( n );
+				for ( int d = 0; d < n; d++ )
+				{
+					final double quality = record.readDouble();
+					final int nVertices = record.readInt();
+					final double[] x = new double[ nVertices ];
+					final double[] y = new double[ nVertices ];
+					for ( int i = 0; i < nVertices; i++ )
+					{
+						x[ i ] = record.readDouble();
+						y[ i ] = record.readDouble();
+					}
+					detections.add( new Detection( x, y, quality ) );
+				}
+				frames.put( Integer.valueOf( frame ), detections );
+				validLength += Integer.BYTES + payload.length + Long.BYTES;
+			}
+			return validLength;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+import net.imglib2.Interval;
+import net.imglib2.util.Intervals;
+
+/**
+ * Remembers the detections made in the last frame processed by a StarDist
+ * detector, so that the detector of the next frame can use them.
+ * <p>
+ * Detections are stored as plain polygon arrays, in physical units, so that
+ * new spot objects can be created from them for another frame. One instance
+ * is shared by all the detectors created by a factory for a given settings
+ * map. Frames are processed one after another, but all methods are
+ * synchronized so that a preview running concurrently cannot corrupt the
+ * memory.
+ */
+public class FrameMemory
+{
+
+	/**
+	 * A detection made by StarDist, stored as a polygon in physical units.
+	 */
+	public static class Detection
+	{
+
+		public final double[] x;
+
+		public final double[] y;
+
+		public final double quality;
+
+		public Detection( final double[] x, final double[] y, final double quality )
+		{
+			this.x = x;
+			this.y = y;
+			this.quality = quality;
+		}
+
+		/**
+		 * Creates a new spot from this detection.
+		 *
+		 * @return a new spot.
+		 */
+		public Spot toSpot()
+		{
+			return SpotRoi.createSpot( x.clone(), y.clone(), quality );
+		}
+	}
+
+	private int frame = -1;
+
+	private long[] min;
+
+	private long[] max;
+
+	private boolean hasHash = false;
+
+	private long hash;
+
+	private List< Detection > detections = Collections.emptyList();
+
+	/**
+	 * Stores the detections made in a frame.
+	 *
+	 * @param frame
+	 *            the frame the detections were made in.
+	 * @param interval
+	 *            the interval the detections were made in.
+	 * @param hash
+	 *            the content hash of the frame in this interval, or
+	 *            <code>null</code> if it was not computed.
+	 * @param detections
+	 *            the detections.
+	 */
+	public synchronized void store( final int frame, final Interval interval, final Long hash, final List< Detection > detections )
+	{
+		this.frame = frame;
+		this.min = Intervals.minAsLongArray( interval );
+		this.max = Intervals.maxAsLongArray( interval );
+		this.hasHash = ( hash != null );
+		this.hash = hasHash ? hash.longValue() : 0L;
+		this.detections = Collections.unmodifiableList( new ArrayList<>( detections ) );
+	}
+
+	/**
+	 * Returns the detections of the last frame stored if its content hash and
+	 * interval are the same that the ones specified, or <code>null</code>
+	 * otherwise.
+	 *
+	 * @param interval
+	 *            the interval of the frame to process.
+	 * @param hash
+	 *            the content hash of the frame to process.
+	 * @return the detections to reuse, or <code>null</code>.
+	 */
+	public synchronized List< Detection > getIdentical( final Interval interval, final long hash )
+	{
+		if ( !hasHash || this.hash != hash || !sameInterval( interval ) )
+			return null;
+		return detections;
+	}
+
+	/**
+	 * Returns the detections of the last frame stored if it is the frame just
+	 * before the specified one and if it was processed in the same interval,
+	 * or <code>null</code> otherwise.
+	 *
+	 * @param frame
+	 *            the frame to process.
+	 * @param interval
+	 *            the interval of the frame to process.
+	 * @return the detections of the previous frame, or <code>null</code>.
+	 */
+	public synchronized List< Detection > getPrevious( final int frame, final Interval interval )
+	{
+		if ( this.frame != frame - 1 || !sameInterval( interval ) )
+			return null;
+		return detections;
+	}
+
+	private boolean sameInterval( final Interval interval )
+	{
+		return min != null
+				&& Arrays.equals( min, Intervals.minAsLongArray( interval ) )
+				&& Arrays.equals( max, Intervals.maxAsLongArray( interval ) );
+	}
+
+	public synchronized int getFrame()
+	{
+		return frame;
+	}
+}
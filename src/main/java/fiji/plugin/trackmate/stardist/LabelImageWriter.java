@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import fiji.plugin.trackmate.stardist.FrameMemory.Detection;
+import fiji.plugin.trackmate.stardist.util.ArrayPool;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.view.Views;
+
+/**
+ * Writes the label images of StarDist detections to an N5 container, one
+ * frame at a time.
+ * <p>
+ * The labels are stored in a 3D dataset (X, Y, T) of unsigned 32-bit
+ * integers, in gzip-compressed blocks that never span more than one frame.
+ * Each frame is written as soon as it is detected, so only the label image
+ * of the current frame is held in memory. Label 0 is the background, and the
+ * detections of a frame are numbered from 1 in the order they are given.
+ */
+public class LabelImageWriter
+{
+
+	/** The name of the label dataset in the N5 container. */
+	public static final String DATASET = "labels";
+
+	/** Max block size along X and Y. */
+	private static final int MAX_BLOCK_SIZE = 512;
+
+	private final N5Writer n5;
+
+	private final int width;
+
+	private final int height;
+
+	/**
+	 * Creates a writer for a label stack. The dataset is created, and
+	 * replaces any existing one, so that the frames not written by this
+	 * writer are empty rather than left with the labels of an earlier run.
+	 *
+	 * @param path
+	 *            the path to the N5 container.
+	 * @param width
+	 *            the width of the image, in pixels.
+	 * @param height
+	 *            the height of the image, in pixels.
+	 * @param nFrames
+	 *            the number of frames of the image.
+	 */
+	public LabelImageWriter( final String path, final int width, final int height, final int nFrames )
+	{
+		this.width = width;
+		this.height = height;
+		this.n5 = new N5FSWriter( path );
+
+		final long[] dimensions = new long[] { width, height, nFrames };
+		if ( n5.datasetExists( DATASET ) )
+			n5.remove( DATASET );
+		final int[] blockSize = new int[] {
+				Math.min( width, MAX_BLOCK_SIZE ),
+				Math.min( height, MAX_BLOCK_SIZE ),
+				1 };
+		n5.createDataset( DATASET, dimensions, blockSize, DataType.UINT32, new GzipCompression() );
+	}
+
+	/**
+	 * Paints the specified detections and writes them as the label image of
+	 * the specified frame, replacing what was written before for this frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param detections
+	 *            the detections of this frame, in physical units.
+	 * @param calibration
+	 *            the spatial calibration of the image.
+	 */
+	public void write( final int frame, final List< Detection > detections, final double[] calibration )
+	{
+		final int[] labels = ArrayPool.borrowInts( width * height );
+		try
+		{
+			Arrays.fill( labels, 0 );
+			paint( detections, calibration, width, height, labels );
+			final RandomAccessibleInterval< UnsignedIntType > img = Views.addDimension( ArrayImgs.unsignedInts( labels, width, height ), 0, 0 );
+			N5Utils.saveBlock( img, n5, DATASET, new long[] { 0, 0, frame } );
+		}
+		finally
+		{
+			ArrayPool.release( labels );
+		}
+	}
+
+	/**
+	 * Closes the N5 container. The writer cannot be used after this call.
+	 */
+	public void close()
+	{
+		n5.close();
+	}
+
+	/**
+	 * Paints detections in a label image. A pixel belongs to a detection if
+	 * its center is inside the detection polygon. Pixels already painted are
+	 * not painted again, so the first detections take precedence where they
+	 * overlap.
+	 *
+	 * @param detections
+	 *            the detections, in physical units.
+	 * @param calibration
+	 *            the spatial calibration of the image.
+	 * @param width
+	 *            the width of the label image.
+	 * @param height
+	 *            the height of the label image.
+	 * @param labels
+	 *            the label image to paint in, as a flat array in X then Y
+	 *            order, filled with 0.
+	 */
+	static void paint( final List< Detection > detections, final double[] calibration, final int width, final int height, final int[] labels )
+	{
+		int label = 0;
+		for ( final Detection detection : detections )
+		{
+			label++;
+			final double[] x = new double[ detection.x.length ];
+			final double[] y = new double[ detection.y.length ];
+			for ( int i = 0; i < x.length; i++ )
+			{
+				x[ i ] = detection.x[ i ] / calibration[ 0 ];
+				y[ i ] = detection.y[ i ] / calibration[ 1 ];
+			}
+			final StarConvexPolygon polygon = new StarConvexPolygon( x, y, detection.quality );
+			final int x0 = Math.max( 0, ( int ) Math.floor( polygon.xmin() ) );
+			final int x1 = Math.min( width - 1, ( int ) Math.ceil( polygon.xmax() ) );
+			final int y0 = Math.max( 0, ( int ) Math.floor( polygon.ymin() ) );
+			final int y1 = Math.min( height - 1, ( int ) Math.ceil( polygon.ymax() ) );
+			for ( int py = y0; py <= y1; py++ )
+			{
+				for ( int px = x0; px <= x1; px++ )
+				{
+					final int index = py * width + px;
+					if ( labels[ index ] == 0 && polygon.contains( px + 0.5, py + 0.5 ) )
+						labels[ index ] = label;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,471 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import fiji.plugin.trackmate.detection.DetectionUtils;
+import fiji.plugin.trackmate.detection.SpotDetector;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Intervals;
+
+/**
+ * Runs the StarDist detection on an acquisition while it is being written to
+ * disk, as a folder of TIFF files with one time-point per file.
+ * <p>
+ * A watcher thread polls the folder. A file is considered complete once its
+ * size and modification time did not change between two polls. The frame of
+ * a file is the last number in its name, so that <code>t2.tif</code> comes
+ * before <code>t10.tif</code>. Files without a number in their name get the
+ * next frames in name order. Complete files are queued in frame order, and a
+ * detection thread processes them one after another with the same StarDist
+ * runner, so that the model is loaded only once. The spots of each frame are
+ * handed to a {@link SpotListener}.
+ * <p>
+ * The queue is bounded. If the detection falls behind the acquisition and
+ * the queue is full, the watcher waits for a free slot before it looks for
+ * new files. The lag, that is the time between the moment a file is found
+ * complete and the moment its spots are published, is reported by
+ * {@link #getLag()}.
+ */
+public class LiveDetection
+{
+
+	private final static String BASE_ERROR_MESSAGE = "LiveDetection: ";
+
+	/** Default interval between two polls of the folder, in ms. */
+	public static final long DEFAULT_POLL_INTERVAL = 500;
+
+	/** Default maximal number of complete files waiting for detection. */
+	public static final int DEFAULT_MAX_PENDING = 4;
+
+	/**
+	 * Numbered files by frame index, then files without a number by name.
+	 */
+	private static final Comparator< File > FRAME_ORDER = ( f1, f2 ) -> {
+		final int i1 = frameIndex( f1.getName() );
+		final int i2 = frameIndex( f2.getName() );
+		if ( ( i1 < 0 ) != ( i2 < 0 ) )
+			return ( i1 < 0 ) ? 1 : -1;
+		if ( i1 != i2 )
+			return Integer.compare( i1, i2 );
+		return f1.getName().compareTo( f2.getName() );
+	};
+
+	private final StarDistDetectorFactory< ? > factory;
+
+	private final Map< String, Object > settings;
+
+	private final File folder;
+
+	private final SpotListener listener;
+
+	private final long pollInterval;
+
+	private final BlockingQueue< PendingFrame > queue;
+
+	private final StarDistDetectorOptions options;
+
+	private final FrameMemory memory;
+
+	/** Files queued or processed. */
+	private final Set< String > seen = new HashSet<>();
+
+	/** Size and modification time of incomplete files at the last poll. */
+	private final Map< String, long[] > growing = new HashMap<>();
+
+	/** Frame of the next file without a number in its name. */
+	private int nextUnnumbered;
+
+	private Thread watcher;
+
+	private Thread detection;
+
+	private volatile boolean running;
+
+	private volatile String errorMessage;
+
+	private volatile long lag;
+
+	private volatile int nFrames;
+
+	/**
+	 * Creates a live detection with the default poll interval and queue size.
+	 *
+	 * @param factory
+	 *            the factory that creates the StarDist runner.
+	 * @param settings
+	 *            the detection settings.
+	 * @param folder
+	 *            the folder the acquisition writes to.
+	 * @param listener
+	 *            the listener that receives the spots of each frame.
+	 */
+	public LiveDetection( final StarDistDetectorFactory< ? > factory, final Map< String, Object > settings, final File folder, final SpotListener listener )
+	{
+		this( factory, settings, folder, listener, DEFAULT_POLL_INTERVAL, DEFAULT_MAX_PENDING );
+	}
+
+	/**
+	 * Creates a live detection.
+	 *
+	 * @param factory
+	 *            the factory that creates the StarDist runner.
+	 * @param settings
+	 *            the detection settings.
+	 * @param folder
+	 *            the folder the acquisition writes to.
+	 * @param listener
+	 *            the listener that receives the spots of each frame.
+	 * @param pollInterval
+	 *            the interval between two polls of the folder, in ms.
+	 * @param maxPending
+	 *            the maximal number of complete files waiting for detection.
+	 */
+	public LiveDetection(
+			final StarDistDetectorFactory< ? > factory,
+			final Map< String, Object > settings,
+			final File folder,
+			final SpotListener listener,
+			final long pollInterval,
+			final int maxPending )
+	{
+		this.factory = factory;
+		this.settings = new HashMap<>( settings );
+		this.folder = folder;
+		this.listener = listener;
+		this.pollInterval = Math.max( 1, pollInterval );
+		this.queue = new ArrayBlockingQueue<>( Math.max( 1, maxPending ) );
+		this.options = StarDistDetectorOptions.fromSettings( settings );
+		this.memory = options.needsFrameMemory() ? new FrameMemory() : null;
+	}
+
+	/**
+	 * Loads the model and starts watching the folder. Files already in the
+	 * folder are processed first.
+	 *
+	 * @return <code>true</code> if the detection started.
+	 */
+	public boolean start()
+	{
+		if ( running )
+			return true;
+		if ( !folder.isDirectory() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Not a folder: " + folder;
+			return false;
+		}
+		final StarDistRunnerBase runner = factory.createRunner( settings );
+		if ( !runner.initialize() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + runner.getErrorMessage();
+			return false;
+		}
+
+		startWatcher();
+		detection = new Thread( () -> detect( runner ), "StarDist live detection" );
+		detection.start();
+		return true;
+	}
+
+	/**
+	 * Starts the watcher thread only. Complete files are queued and wait for
+	 * {@link #nextPending()}.
+	 */
+	void startWatcher()
+	{
+		running = true;
+		watcher = new Thread( this::watch, "StarDist live watcher" );
+		watcher.start();
+	}
+
+	/**
+	 * Waits for the next complete file.
+	 *
+	 * @return the next frame to process.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	PendingFrame nextPending() throws InterruptedException
+	{
+		return queue.take();
+	}
+
+	/**
+	 * Stops watching the folder. Frames waiting for detection are dropped,
+	 * and the frame being processed is interrupted.
+	 */
+	public void stop()
+	{
+		running = false;
+		if ( null != watcher )
+			watcher.interrupt();
+		if ( null != detection )
+			detection.interrupt();
+		queue.clear();
+	}
+
+	/**
+	 * Returns the time between the moment the last processed file was found
+	 * complete and the moment its spots were published.
+	 *
+	 * @return the lag, in ms.
+	 */
+	public long getLag()
+	{
+		return lag;
+	}
+
+	/**
+	 * Returns the number of complete files waiting for detection.
+	 *
+	 * @return the number of pending frames.
+	 */
+	public int getPendingFrames()
+	{
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of frames successfully processed so far.
+	 *
+	 * @return the number of frames.
+	 */
+	public int getProcessedFrames()
+	{
+		return nFrames;
+	}
+
+	/**
+	 * Returns <code>true</code> while the folder is watched.
+	 *
+	 * @return <code>true</code> if running.
+	 */
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	private void watch()
+	{
+		try
+		{
+			while ( running )
+			{
+				for ( final File file : completeFiles() )
+				{
+					final int index = frameIndex( file.getName() );
+					final int frame = ( index < 0 ) ? nextUnnumbered++ : index;
+					// Blocks while the detection is behind.
+					queue.put( new PendingFrame( file, frame, System.currentTimeMillis() ) );
+				}
+				Thread.sleep( pollInterval );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			// Stopped.
+		}
+	}
+
+	/**
+	 * Returns the new files that did not change since the last poll, in frame
+	 * order. Returned files are not returned again.
+	 */
+	File[] completeFiles()
+	{
+		final File[] files = folder.listFiles( ( dir, name ) -> {
+			final String lower = name.toLowerCase();
+			return ( lower.endsWith( ".tif" ) || lower.endsWith( ".tiff" ) ) && !seen.contains( name );
+		} );
+		if ( null == files )
+			return new File[ 0 ];
+		Arrays.sort( files, FRAME_ORDER );
+
+		int nComplete = 0;
+		boolean inOrder = true;
+		for ( final File file : files )
+		{
+			final long[] state = new long[] { file.length(), file.lastModified() };
+			final long[] previous = growing.put( file.getName(), state );
+			// Keep frame order: stop at the first file still being written.
+			if ( inOrder && null != previous && Arrays.equals( previous, state ) )
+				nComplete++;
+			else
+				inOrder = false;
+		}
+		final File[] complete = Arrays.copyOf( files, nComplete );
+		for ( final File file : complete )
+		{
+			growing.remove( file.getName() );
+			seen.add( file.getName() );
+		}
+		return complete;
+	}
+
+	private void detect( final StarDistRunnerBase runner )
+	{
+		try
+		{
+			while ( running )
+			{
+				final PendingFrame pending = nextPending();
+				final int frame = pending.frame;
+				final ImagePlus imp = IJ.openImage( pending.file.getAbsolutePath() );
+				if ( null == imp )
+				{
+					errorMessage = BASE_ERROR_MESSAGE + "Could not open " + pending.file;
+					continue;
+				}
+
+				final SpotDetector< ? > detector = createDetector( runner, imp, frame );
+				if ( null == detector || !detector.checkInput() || !detector.process() )
+				{
+					if ( null != detector )
+						errorMessage = detector.getErrorMessage();
+					if ( !running || Thread.currentThread().isInterrupted() )
+						break;
+					continue;
+				}
+				lag = System.currentTimeMillis() - pending.complete;
+				nFrames++;
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			// Stopped.
+		}
+	}
+
+	/**
+	 * Creates the detector for one time-point, like
+	 * {@link StarDistDetectorFactory#getDetector(ImgPlus, Map, Interval, int)}
+	 * but with the runner shared by all frames.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private SpotDetector< ? > createDetector( final StarDistRunnerBase runner, final ImagePlus imp, final int frame )
+	{
+		final ImgPlus img = TMUtils.rawWraps( imp );
+		final double[] calibration = TMUtils.getSpatialCalibration( img );
+		final int[] channels;
+		try
+		{
+			channels = StarDistDetectorFactory.getTargetChannels( settings );
+		}
+		catch ( final NumberFormatException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Cannot parse the channel list: " + e.getMessage();
+			return null;
+		}
+		if ( Arrays.stream( channels ).anyMatch( c -> c < 0 || c >= imp.getNChannels() ) )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Channel out of range in " + imp.getTitle();
+			return null;
+		}
+
+		final ImgPlus imFrame = TMUtils.hyperSlice( img, channels[ 0 ], 0 );
+		if ( !DetectionUtils.is2D( imFrame ) )
+		{
+			final StarDistSliceDetector detector = new StarDistSliceDetector( runner, imFrame, imFrame, calibration, frame, options );
+			detector.setSpotListener( listener );
+			return detector;
+		}
+
+		final RandomAccessibleInterval input = StarDistDetectorFactory.channelView( img, channels, 0 );
+		final Interval interval = ( channels.length > 1 )
+				? Intervals.addDimension( DetectionUtils.squeeze( imFrame ), 0, channels.length - 1 )
+				: imFrame;
+		final StarDistDetector detector = new StarDistDetector( runner, input, interval, calibration, frame, memory, options );
+		detector.setSpotListener( listener );
+		return detector;
+	}
+
+	/**
+	 * Returns the frame index in the specified file name, that is the last
+	 * number in the name without its extension.
+	 *
+	 * @param name
+	 *            the file name.
+	 * @return the frame index, or -1 if the name has no number.
+	 */
+	static int frameIndex( final String name )
+	{
+		final int dot = name.lastIndexOf( '.' );
+		final String base = ( dot < 0 ) ? name : name.substring( 0, dot );
+		int end = base.length();
+		while ( end > 0 && !Character.isDigit( base.charAt( end - 1 ) ) )
+			end--;
+		int start = end;
+		while ( start > 0 && Character.isDigit( base.charAt( start - 1 ) ) )
+			start--;
+		if ( start == end )
+			return -1;
+		try
+		{
+			return Integer.parseInt( base.substring( start, end ) );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * A complete file waiting for detection.
+	 */
+	static final class PendingFrame
+	{
+
+		final File file;
+
+		/** The frame of the file. */
+		final int frame;
+
+		/** When the file was found complete, in ms. */
+		final long complete;
+
+		private PendingFrame( final File file, final int frame, final long complete )
+		{
+			this.file = file;
+			this.frame = frame;
+			this.complete = complete;
+		}
+	}
+}
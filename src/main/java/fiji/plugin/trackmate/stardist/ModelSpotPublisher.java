@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.util.List;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+
+/**
+ * A {@link SpotListener} that adds the spots of each frame to a TrackMate
+ * model as soon as the frame is done. Views and analyses that listen to the
+ * model see the first frames while later frames are still being processed.
+ * <p>
+ * The spots are added as visible. At the end of the detection, TrackMate
+ * replaces the model spots by its own collection of the same spots, and
+ * filters them as usual.
+ *
+ * <pre>
+ * final StarDistDetectorFactory&lt; ? &gt; factory = ( StarDistDetectorFactory&lt; ? &gt; ) settings.detectorFactory;
+ * factory.addSpotListener( new ModelSpotPublisher( model ) );
+ * </pre>
+ */
+public class ModelSpotPublisher implements SpotListener
+{
+
+	private static final Double VISIBLE = Double.valueOf( 1. );
+
+	private final Model model;
+
+	public ModelSpotPublisher( final Model model )
+	{
+		this.model = model;
+	}
+
+	@Override
+	public synchronized void spotsDetected( final int frame, final List< Spot > spots )
+	{
+		final Integer t = Integer.valueOf( frame );
+		model.beginUpdate();
+		try
+		{
+			for ( final Spot spot : spots )
+			{
+				spot.putFeature( SpotCollection.VISIBILITY, VISIBLE );
+				model.addSpotTo( spot, t );
+			}
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+	}
+}
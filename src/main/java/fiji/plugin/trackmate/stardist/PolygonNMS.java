@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.awt.Shape;
+import java.awt.geom.PathIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Non-maximum suppression for star-convex polygons.
+ * <p>
+ * Follows the StarDist convention: a candidate is suppressed if its
+ * intersection with a candidate of higher score, divided by the smallest of
+ * the two areas, is larger than the threshold. Unlike the StarDist
+ * implementation, this one can work on candidates that do not come from the
+ * same prediction, which lets us merge candidates found at several scales.
+ * Accepted candidates are indexed in a uniform grid so that each candidate is
+ * only compared to the winners it may overlap with. The cell size is the
+ * median extent of the candidates, and a winner is added to every cell it
+ * covers: a few large polygons, such as the ones found at a coarse pyramid
+ * level, do not coarsen the grid for all the others.
+ */
+public class PolygonNMS
+{
+
+	private PolygonNMS()
+	{}
+
+	/**
+	 * Performs non-maximum suppression on the specified candidates.
+	 *
+	 * @param candidates
+	 *            the candidates, in any order. The list is not modified.
+	 * @param threshold
+	 *            the overlap threshold.
+	 * @return a new list containing the winners, sorted by decreasing score.
+	 */
+	public static List< StarConvexPolygon > nms( final List< StarConvexPolygon > candidates, final double threshold )
+	{
+		final List< StarConvexPolygon > sorted = new ArrayList<>( candidates );
+		sorted.sort( Comparator.comparingDouble( ( final StarConvexPolygon p ) -> p.score ).reversed() );
+		return nmsSorted( sorted, threshold );
+	}
+
+	/**
+	 * Performs non-maximum suppression on candidates already sorted by
+	 * decreasing score.
+	 *
+	 * @param sorted
+	 *            the candidates, sorted by decreasing score. The list is not
+	 *            modified.
+	 * @param threshold
+	 *            the overlap threshold.
+	 * @return a new list containing the winners, sorted by decreasing score.
+	 */
+	public static List< StarConvexPolygon > nmsSorted( final List< StarConvexPolygon > sorted, final double threshold )
+	{
+		final List< StarConvexPolygon > winners = new ArrayList<>();
+		if ( sorted.isEmpty() )
+			return winners;
+
+		// Cell size: the median candidate extent.
+		final double[] extents = new double[ sorted.size() ];
+		for ( int i = 0; i < extents.length; i++ )
+		{
+			final StarConvexPolygon p = sorted.get( i );
+			extents[ i ] = Math.max( p.xmax() - p.xmin(), p.ymax() - p.ymin() );
+		}
+		Arrays.sort( extents );
+		final double cellSize = Math.max( 1., extents[ extents.length / 2 ] );
+
+		final Map< Long, List< StarConvexPolygon > > grid = new HashMap<>();
+		for ( final StarConvexPolygon candidate : sorted )
+		{
+			if ( isSuppressed( candidate, grid, cellSize, threshold ) )
+				continue;
+
+			winners.add( candidate );
+			final long cx0 = cell( candidate.xmin(), cellSize );
+			final long cx1 = cell( candidate.xmax(), cellSize );
+			final long cy0 = cell( candidate.ymin(), cellSize );
+			final long cy1 = cell( candidate.ymax(), cellSize );
+			for ( long cx = cx0; cx <= cx1; cx++ )
+				for ( long cy = cy0; cy <= cy1; cy++ )
+					grid.computeIfAbsent( key( cx, cy ), k -> new ArrayList<>() ).add( candidate );
+		}
+		return winners;
+	}
+
+	private static boolean isSuppressed( final StarConvexPolygon candidate, final Map< Long, List< StarConvexPolygon > > grid, final double cellSize, final double threshold )
+	{
+		final long cx0 = cell( candidate.xmin(), cellSize );
+		final long cx1 = cell( candidate.xmax(), cellSize );
+		final long cy0 = cell( candidate.ymin(), cellSize );
+		final long cy1 = cell( candidate.ymax(), cellSize );
+		for ( long cx = cx0; cx <= cx1; cx++ )
+		{
+			for ( long cy = cy0; cy <= cy1; cy++ )
+			{
+				final List< StarConvexPolygon > winners = grid.get( key( cx, cy ) );
+				if ( winners == null )
+					continue;
+
+				for ( final StarConvexPolygon winner : winners )
+				{
+					// Test a winner only in the first cell shared with the
+					// candidate.
+					if ( cx != Math.max( cx0, cell( winner.xmin(), cellSize ) )
+							|| cy != Math.max( cy0, cell( winner.ymin(), cellSize ) ) )
+						continue;
+					if ( !winner.boundsIntersect( candidate ) )
+						continue;
+					final double inter = winner.intersectionArea( candidate );
+					final double minArea = Math.min( winner.area(), candidate.area() );
+					if ( inter / ( minArea + 1e-10 ) > threshold )
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static long cell( final double pos, final double cellSize )
+	{
+		return ( long ) Math.floor( pos / cellSize );
+	}
+
+	private static Long key( final long cx, final long cy )
+	{
+		return Long.valueOf( ( cx << 32 ) ^ ( cy & 0xffffffffL ) );
+	}
+
+	/**
+	 * Computes the area of a shape made of straight segments, such as the
+	 * intersection of two polygons.
+	 *
+	 * @param shape
+	 *            the shape.
+	 * @return its area.
+	 */
+	static double area( final Shape shape )
+	{
+		final PathIterator it = shape.getPathIterator( null );
+		final double[] coords = new double[ 6 ];
+		double area = 0.;
+		double x0 = 0., y0 = 0.;
+		double xp = 0., yp = 0.;
+		while ( !it.isDone() )
+		{
+			switch ( it.currentSegment( coords ) )
+			{
+			case PathIterator.SEG_MOVETO:
+				x0 = xp = coords[ 0 ];
+				y0 = yp = coords[ 1 ];
+				break;
+			case PathIterator.SEG_LINETO:
+				area += xp * coords[ 1 ] - coords[ 0 ] * yp;
+				xp = coords[ 0 ];
+				yp = coords[ 1 ];
+				break;
+			case PathIterator.SEG_CLOSE:
+				area += xp * y0 - x0 * yp;
+				xp = x0;
+				yp = y0;
+				break;
+			default:
+				break;
+			}
+			it.next();
+		}
+		/*
+		 * Area returns the outer boundaries and the holes with opposite
+		 * orientations, so the signed sum is the area of the shape.
+		 */
+		return Math.abs( area ) / 2.;
+	}
+}
@@ -0,0 +1,404 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.stardist.FrameMemory.Detection;
+
+/**
+ * A compact binary store for StarDist detections, faster to save and load
+ * than the vertex lists of TrackMate XML files.
+ * <p>
+ * The file starts with a magic number, the number of frames and an index
+ * giving, for each frame, its number of polygons and the position of its
+ * data. The data of a frame is the list of its polygons, each stored as its
+ * quality, its number of vertices, a quantization step and the first vertex
+ * as 32-bit floats in physical units, then the difference from each vertex
+ * to the previous one as a pair of 16-bit integers, in quantization steps.
+ * The step of a polygon is chosen so that its largest difference fills the
+ * 16-bit range, so a vertex takes 4 bytes instead of 8 and is stored to a
+ * fraction of its distance to the neighbor vertices. Deltas are computed
+ * from the decoded position of the previous vertex, so rounding errors do not
+ * accumulate along the polygon.
+ * <p>
+ * When a store is opened, only the index is read. The data of a frame is
+ * memory-mapped the first time the frame is accessed, and its spots are
+ * created one by one when they are accessed.
+ */
+public class PolygonStore implements AutoCloseable
+{
+
+	/** "SDP2". */
+	private static final int MAGIC = 0x53445032;
+
+	/** Largest delta written, with room for the rounding of the previous vertex. */
+	private static final int MAX_STEPS = Short.MAX_VALUE - 1;
+
+	private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+	private static final int INDEX_ENTRY_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES;
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	/** Per frame: number of polygons, offset and length of the data. */
+	private final SortedMap< Integer, long[] > index = new TreeMap<>();
+
+	private final Map< Integer, FrameData > cache = new HashMap<>();
+
+	/**
+	 * Opens a store and reads its index.
+	 *
+	 * @param path
+	 *            the path to the store file.
+	 * @throws IOException
+	 *             if the file cannot be read or is not a polygon store.
+	 */
+	public PolygonStore( final String path ) throws IOException
+	{
+		this.file = new RandomAccessFile( path, "r" );
+		this.channel = file.getChannel();
+		try
+		{
+			final ByteBuffer header = channel.map( MapMode.READ_ONLY, 0, HEADER_SIZE );
+			if ( header.getInt() != MAGIC )
+				throw new IOException( "Not a StarDist polygon store: " + path );
+			final int nFrames = header.getInt();
+			final ByteBuffer entries = channel.map( MapMode.READ_ONLY, HEADER_SIZE, ( long ) nFrames * INDEX_ENTRY_SIZE );
+			for ( int i = 0; i < nFrames; i++ )
+			{
+				final int frame = entries.getInt();
+				final int count = entries.getInt();
+				final long offset = entries.getLong();
+				final long length = entries.getLong();
+				index.put( Integer.valueOf( frame ), new long[] { count, offset, length } );
+			}
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the specified detections to a new store file.
+	 *
+	 * @param path
+	 *            the path to the store file, replaced if it exists.
+	 * @param frames
+	 *            the detections of each frame, in physical units.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public static void write( final String path, final Map< Integer, ? extends List< Detection > > frames ) throws IOException
+	{
+		final SortedMap< Integer, List< Detection > > sorted = new TreeMap<>( frames );
+		try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( new File( path ) ) ) ))
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( sorted.size() );
+
+			// Index.
+			long offset = HEADER_SIZE + ( long ) sorted.size() * INDEX_ENTRY_SIZE;
+			for ( final Map.Entry< Integer, List< Detection > > entry : sorted.entrySet() )
+			{
+				long length = 0;
+				for ( final Detection detection : entry.getValue() )
+					length += polygonSize( detection.x.length );
+				out.writeInt( entry.getKey().intValue() );
+				out.writeInt( entry.getValue().size() );
+				out.writeLong( offset );
+				out.writeLong( length );
+				offset += length;
+			}
+
+			// Data.
+			for ( final List< Detection > detections : sorted.values() )
+			{
+				for ( final Detection detection : detections )
+				{
+					final int nVertices = detection.x.length;
+					out.writeFloat( ( float ) detection.quality );
+					out.writeInt( nVertices );
+					final float step = step( detection );
+					out.writeFloat( step );
+					if ( nVertices == 0 )
+						continue;
+
+					float px = ( float ) detection.x[ 0 ];
+					float py = ( float ) detection.y[ 0 ];
+					out.writeFloat( px );
+					out.writeFloat( py );
+					for ( int i = 1; i < nVertices; i++ )
+					{
+						final short dx = quantize( detection.x[ i ] - px, step );
+						final short dy = quantize( detection.y[ i ] - py, step );
+						out.writeShort( dx );
+						out.writeShort( dy );
+						px += dx * step;
+						py += dy * step;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the quantization step of a polygon, so that its largest
+	 * difference between consecutive vertices is stored in
+	 * {@link #MAX_STEPS} steps.
+	 */
+	private static float step( final Detection detection )
+	{
+		double max = 0.;
+		for ( int i = 1; i < detection.x.length; i++ )
+		{
+			max = Math.max( max, Math.abs( detection.x[ i ] - detection.x[ i - 1 ] ) );
+			max = Math.max( max, Math.abs( detection.y[ i ] - detection.y[ i - 1 ] ) );
+		}
+		return ( max > 0. ) ? ( float ) ( max / MAX_STEPS ) : 1f;
+	}
+
+	private static short quantize( final double delta, final float step )
+	{
+		final long steps = Math.round( delta / step );
+		return ( short ) Math.max( Short.MIN_VALUE, Math.min( Short.MAX_VALUE, steps ) );
+	}
+
+	/**
+	 * Returns the size in bytes of the data of a polygon.
+	 */
+	private static int polygonSize( final int nVertices )
+	{
+		final int size = 2 * Float.BYTES + Integer.BYTES;
+		return ( nVertices == 0 ) ? size : size + 2 * Float.BYTES + 2 * Short.BYTES * ( nVertices - 1 );
+	}
+
+	/**
+	 * Returns the frames in this store, in increasing order.
+	 *
+	 * @return the frames.
+	 */
+	public List< Integer > frames()
+	{
+		return new ArrayList<>( index.keySet() );
+	}
+
+	/**
+	 * Returns the number of polygons in the specified frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return the number of polygons, 0 if the frame is not in the store.
+	 */
+	public int size( final int frame )
+	{
+		final long[] entry = index.get( Integer.valueOf( frame ) );
+		return ( null == entry ) ? 0 : ( int ) entry[ 0 ];
+	}
+
+	/**
+	 * Returns the detections of the specified frame, decoded from the store.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return a new list of detections, in physical units.
+	 * @throws IOException
+	 *             if the frame data cannot be mapped.
+	 */
+	public List< Detection > detections( final int frame ) throws IOException
+	{
+		final FrameData data = frameData( frame );
+		final List< Detection > detections = new ArrayList<>( data.offsets.length );
+		for ( int i = 0; i < data.offsets.length; i++ )
+			detections.add( data.detection( i ) );
+		return detections;
+	}
+
+	/**
+	 * Returns the spots of the specified frame. The list is backed by the
+	 * store: each spot is created the first time it is accessed, and the same
+	 * spot is returned afterwards.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return an unmodifiable list of spots.
+	 * @throws IOException
+	 *             if the frame data cannot be mapped.
+	 */
+	public List< Spot > spots( final int frame ) throws IOException
+	{
+		final FrameData data = frameData( frame );
+		return new AbstractList< Spot >()
+		{
+			@Override
+			public Spot get( final int i )
+			{
+				return data.spot( i );
+			}
+
+			@Override
+			public int size()
+			{
+				return data.offsets.length;
+			}
+		};
+	}
+
+	/**
+	 * Creates a spot collection with all the spots of this store.
+	 * <p>
+	 * A spot collection holds its spots, so all of them are created. Frames
+	 * are decoded one after the other and are not kept by the store, so that
+	 * the polygons are not held twice. To access some frames only, use
+	 * {@link #spots(int)}.
+	 *
+	 * @return a new spot collection.
+	 * @throws IOException
+	 *             if the data cannot be mapped.
+	 */
+	public SpotCollection toSpotCollection() throws IOException
+	{
+		final SpotCollection spots = new SpotCollection();
+		for ( final Integer frame : index.keySet() )
+		{
+			final FrameData cached;
+			synchronized ( this )
+			{
+				cached = cache.get( frame );
+			}
+			final FrameData data = ( null == cached ) ? map( frame ) : cached;
+			final List< Spot > frameSpots = new ArrayList<>( data.offsets.length );
+			for ( int i = 0; i < data.offsets.length; i++ )
+				frameSpots.add( data.spot( i ) );
+			spots.put( frame.intValue(), frameSpots );
+		}
+		return spots;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+
+	private synchronized FrameData frameData( final int frame ) throws IOException
+	{
+		final Integer key = Integer.valueOf( frame );
+		FrameData data = cache.get( key );
+		if ( null == data )
+		{
+			data = map( key );
+			cache.put( key, data );
+		}
+		return data;
+	}
+
+	private FrameData map( final Integer frame ) throws IOException
+	{
+		final long[] entry = index.get( frame );
+		return ( null == entry )
+				? new FrameData( ByteBuffer.allocate( 0 ), 0 )
+				: new FrameData( channel.map( MapMode.READ_ONLY, entry[ 1 ], entry[ 2 ] ), ( int ) entry[ 0 ] );
+	}
+
+	/**
+	 * The mapped data of one frame, with the position of each polygon.
+	 */
+	private static final class FrameData
+	{
+
+		private final ByteBuffer buffer;
+
+		private final int[] offsets;
+
+		private final Spot[] spots;
+
+		private FrameData( final ByteBuffer buffer, final int count )
+		{
+			this.buffer = buffer;
+			this.offsets = new int[ count ];
+			this.spots = new Spot[ count ];
+			int pos = 0;
+			for ( int i = 0; i < count; i++ )
+			{
+				offsets[ i ] = pos;
+				pos += polygonSize( buffer.getInt( pos + Float.BYTES ) );
+			}
+		}
+
+		private Detection detection( final int i )
+		{
+			final int pos = offsets[ i ];
+			final double quality = buffer.getFloat( pos );
+			final int nVertices = buffer.getInt( pos + Float.BYTES );
+			final double[] x = new double[ nVertices ];
+			final double[] y = new double[ nVertices ];
+			if ( nVertices > 0 )
+			{
+				final float step = buffer.getFloat( pos + Float.BYTES + Integer.BYTES );
+				int p = pos + 2 * Float.BYTES + Integer.BYTES;
+				float px = buffer.getFloat( p );
+				float py = buffer.getFloat( p + Float.BYTES );
+				p += 2 * Float.BYTES;
+				x[ 0 ] = px;
+				y[ 0 ] = py;
+				for ( int v = 1; v < nVertices; v++ )
+				{
+					px += buffer.getShort( p ) * step;
+					py += buffer.getShort( p + Short.BYTES ) * step;
+					p += 2 * Short.BYTES;
+					x[ v ] = px;
+					y[ v ] = py;
+				}
+			}
+			return new Detection( x, y, quality );
+		}
+
+		private synchronized Spot spot( final int i )
+		{
+			if ( null == spots[ i ] )
+				spots[ i ] = detection( i ).toSpot();
+			return spots[ i ];
+		}
+	}
+}
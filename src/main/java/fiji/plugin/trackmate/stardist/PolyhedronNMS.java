@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Non-maximum suppression for star-convex polyhedra.
+ * <p>
+ * Same principle as {@link PolygonNMS}: a candidate is suppressed if its
+ * intersection with a candidate of higher score, divided by the smallest of
+ * the two volumes, is larger than the threshold. Accepted candidates are
+ * indexed in a sparse 3D grid, a hash map of the non-empty cells only, so
+ * that each candidate is only compared to the winners whose bounding sphere
+ * may intersect its own.
+ */
+public class PolyhedronNMS
+{
+
+	private PolyhedronNMS()
+	{}
+
+	/**
+	 * Performs non-maximum suppression on the specified candidates.
+	 *
+	 * @param candidates
+	 *            the candidates, in any order. The list is not modified.
+	 * @param threshold
+	 *            the overlap threshold.
+	 * @return a new list containing the winners, sorted by decreasing score.
+	 */
+	public static List< StarConvexPolyhedron > nms( final List< StarConvexPolyhedron > candidates, final double threshold )
+	{
+		final List< StarConvexPolyhedron > sorted = new ArrayList<>( candidates );
+		sorted.sort( Comparator.comparingDouble( ( final StarConvexPolyhedron p ) -> p.score ).reversed() );
+
+		final List< StarConvexPolyhedron > winners = new ArrayList<>();
+		if ( sorted.isEmpty() )
+			return winners;
+
+		// Cell size: the largest bounding diameter.
+		double size = 1.;
+		for ( final StarConvexPolyhedron p : sorted )
+			size = Math.max( size, 2. * p.rmax() );
+		final double cellSize = size;
+
+		final Map< Long, List< StarConvexPolyhedron > > grid = new HashMap<>();
+		for ( final StarConvexPolyhedron candidate : sorted )
+		{
+			if ( isSuppressed( candidate, grid, cellSize, threshold ) )
+				continue;
+
+			winners.add( candidate );
+			final long[] cells = cells( candidate, cellSize );
+			for ( long cx = cells[ 0 ]; cx <= cells[ 3 ]; cx++ )
+				for ( long cy = cells[ 1 ]; cy <= cells[ 4 ]; cy++ )
+					for ( long cz = cells[ 2 ]; cz <= cells[ 5 ]; cz++ )
+						grid.computeIfAbsent( key( cx, cy, cz ), k -> new ArrayList<>() ).add( candidate );
+		}
+		return winners;
+	}
+
+	private static boolean isSuppressed( final StarConvexPolyhedron candidate, final Map< Long, List< StarConvexPolyhedron > > grid, final double cellSize, final double threshold )
+	{
+		final long[] cells = cells( candidate, cellSize );
+		for ( long cx = cells[ 0 ]; cx <= cells[ 3 ]; cx++ )
+		{
+			for ( long cy = cells[ 1 ]; cy <= cells[ 4 ]; cy++ )
+			{
+				for ( long cz = cells[ 2 ]; cz <= cells[ 5 ]; cz++ )
+				{
+					final List< StarConvexPolyhedron > winners = grid.get( key( cx, cy, cz ) );
+					if ( winners == null )
+						continue;
+
+					for ( final StarConvexPolyhedron winner : winners )
+					{
+						if ( !winner.boundsIntersect( candidate ) )
+							continue;
+						// Sample the smallest one, for the best precision.
+						final double inter = ( candidate.volume() < winner.volume() )
+								? candidate.intersectionVolume( winner )
+								: winner.intersectionVolume( candidate );
+						final double minVolume = Math.min( winner.volume(), candidate.volume() );
+						if ( inter / ( minVolume + 1e-10 ) > threshold )
+							return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the cells covered by the bounding box of the bounding sphere of
+	 * the specified polyhedron, as { xmin, ymin, zmin, xmax, ymax, zmax }.
+	 */
+	private static long[] cells( final StarConvexPolyhedron p, final double cellSize )
+	{
+		final double r = p.rmax();
+		return new long[] {
+				cell( p.x - r, cellSize ),
+				cell( p.y - r, cellSize ),
+				cell( p.z - r, cellSize ),
+				cell( p.x + r, cellSize ),
+				cell( p.y + r, cellSize ),
+				cell( p.z + r, cellSize ) };
+	}
+
+	private static long cell( final double pos, final double cellSize )
+	{
+		return ( long ) Math.floor( pos / cellSize );
+	}
+
+	private static Long key( final long cx, final long cy, final long cz )
+	{
+		return Long.valueOf( ( ( cx & 0x1fffffL ) << 42 ) | ( ( cy & 0x1fffffL ) << 21 ) | ( cz & 0x1fffffL ) );
+	}
+}
@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Reads the probability and distance maps written by a
+ * {@link PredictionWriter}. Maps are opened lazily: blocks are only loaded
+ * from disk when they are accessed, and are cached.
+ */
+public class PredictionReader
+{
+
+	private final N5Reader n5;
+
+	/**
+	 * Opens the specified N5 container.
+	 *
+	 * @param path
+	 *            the path to the N5 container.
+	 */
+	public PredictionReader( final String path )
+	{
+		this.n5 = new N5FSReader( path );
+	}
+
+	/**
+	 * Returns the groups of the CNN runs made in a frame, one per region and
+	 * pyramid level.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return the group names, sorted, possibly empty.
+	 */
+	public List< String > groups( final int frame )
+	{
+		final List< String > groups = new ArrayList<>();
+		final String frameGroup = "frame" + frame;
+		if ( !n5.exists( frameGroup ) )
+			return groups;
+
+		final String[] regions = n5.list( frameGroup );
+		Arrays.sort( regions );
+		for ( final String region : regions )
+		{
+			final String[] levels = n5.list( frameGroup + "/" + region );
+			Arrays.sort( levels );
+			for ( final String level : levels )
+				groups.add( frameGroup + "/" + region + "/" + level );
+		}
+		return groups;
+	}
+
+	/**
+	 * Opens the probability map of a CNN run.
+	 *
+	 * @param group
+	 *            the group of the CNN run.
+	 * @return a lazily loaded image.
+	 */
+	public RandomAccessibleInterval< FloatType > probability( final String group )
+	{
+		return N5Utils.open( n5, group + "/" + PredictionWriter.PROB_DATASET );
+	}
+
+	/**
+	 * Opens the distance map of a CNN run.
+	 *
+	 * @param group
+	 *            the group of the CNN run.
+	 * @return a lazily loaded image, with one channel per ray.
+	 */
+	public RandomAccessibleInterval< FloatType > distances( final String group )
+	{
+		return N5Utils.open( n5, group + "/" + PredictionWriter.DIST_DATASET );
+	}
+
+	/**
+	 * Returns the position, in image pixels, of the region processed by a
+	 * CNN run.
+	 *
+	 * @param group
+	 *            the group of the CNN run.
+	 * @return the X and Y position.
+	 */
+	public long[] offset( final String group )
+	{
+		return n5.getAttribute( group, PredictionWriter.OFFSET_ATTRIBUTE, long[].class );
+	}
+
+	/**
+	 * Returns the scale of the maps of a CNN run relative to the image.
+	 *
+	 * @param group
+	 *            the group of the CNN run.
+	 * @return the scale.
+	 */
+	public double scale( final String group )
+	{
+		return n5.getAttribute( group, PredictionWriter.SCALE_ATTRIBUTE, Double.class ).doubleValue();
+	}
+}
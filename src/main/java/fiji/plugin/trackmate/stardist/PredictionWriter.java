@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Writes the probability and distance maps predicted by StarDist to an N5
+ * container, so that they can be inspected or post-processed again without
+ * running the CNN. They can be read back with {@link PredictionReader}.
+ * <p>
+ * Each CNN run is stored in its own group,
+ * <code>frame&lt;t&gt;/x&lt;x&gt;_y&lt;y&gt;/level&lt;l&gt;</code>, where
+ * <code>x</code> and <code>y</code> are the pixel position of the processed
+ * region in the image and <code>l</code> the pyramid level. The group holds
+ * the <code>prob</code> and <code>dist</code> datasets, in gzip-compressed
+ * blocks, and the {@value #OFFSET_ATTRIBUTE} and {@value #SCALE_ATTRIBUTE}
+ * attributes that relate the map pixels to the image pixels.
+ * <p>
+ * Writes are made on a background thread so that detection does not wait for
+ * the disk. At most {@value #MAX_PENDING} writes can be pending: beyond
+ * that, {@link #write(int, Interval, int, double, RandomAccessibleInterval, RandomAccessibleInterval)}
+ * blocks until one of them is done. A failed write is reported by the next
+ * call to this method and by {@link #getErrorMessage()}, which detectors
+ * check once their frame is done without waiting for its writes. The
+ * pending writes are drained by {@link #close()} when the detection run
+ * ends.
+ */
+public class PredictionWriter
+{
+
+	public static final String PROB_DATASET = "prob";
+
+	public static final String DIST_DATASET = "dist";
+
+	/**
+	 * The attribute that stores the position of the processed region in the
+	 * image, in pixels, as a <code>long[]</code>.
+	 */
+	public static final String OFFSET_ATTRIBUTE = "offset";
+
+	/**
+	 * The attribute that stores the scale of the maps relative to the image,
+	 * as a <code>double</code>.
+	 */
+	public static final String SCALE_ATTRIBUTE = "scale";
+
+	private static final int MAX_PENDING = 4;
+
+	private static final int MAX_BLOCK_SIZE = 256;
+
+	private final N5Writer n5;
+
+	private final ThreadPoolExecutor executor;
+
+	private final Semaphore pending = new Semaphore( MAX_PENDING );
+
+	private volatile String errorMessage;
+
+	/**
+	 * Creates a writer to the specified N5 container.
+	 *
+	 * @param path
+	 *            the path to the N5 container.
+	 */
+	public PredictionWriter( final String path )
+	{
+		this.n5 = new N5FSWriter( path );
+		this.executor = new ThreadPoolExecutor( 1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			final Thread thread = new Thread( r, "StarDist prediction writer" );
+			thread.setDaemon( false );
+			return thread;
+		} );
+		executor.allowCoreThreadTimeOut( true );
+	}
+
+	/**
+	 * Returns the name of the group the maps of a CNN run are stored in.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param region
+	 *            the region processed, in image pixel coordinates.
+	 * @param level
+	 *            the pyramid level.
+	 * @return the group name.
+	 */
+	public static String group( final int frame, final Interval region, final int level )
+	{
+		return "frame" + frame + "/x" + region.min( 0 ) + "_y" + region.min( 1 ) + "/level" + level;
+	}
+
+	/**
+	 * Queues the maps of a CNN run for writing. The maps must not be modified
+	 * afterwards.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param region
+	 *            the region processed, in image pixel coordinates.
+	 * @param level
+	 *            the pyramid level.
+	 * @param scale
+	 *            the scale of the maps relative to the image.
+	 * @param prob
+	 *            the probability map.
+	 * @param dist
+	 *            the distance map.
+	 * @throws N5Exception
+	 *             if a previous write failed.
+	 */
+	public void write(
+			final int frame,
+			final Interval region,
+			final int level,
+			final double scale,
+			final RandomAccessibleInterval< FloatType > prob,
+			final RandomAccessibleInterval< FloatType > dist )
+	{
+		if ( null != errorMessage )
+			throw new N5Exception( errorMessage );
+
+		final String group = group( frame, region, level );
+		final long[] offset = new long[] { region.min( 0 ), region.min( 1 ) };
+		pending.acquireUninterruptibly();
+		executor.execute( () -> {
+			try
+			{
+				n5.createGroup( group );
+				n5.setAttribute( group, OFFSET_ATTRIBUTE, offset );
+				n5.setAttribute( group, SCALE_ATTRIBUTE, scale );
+				final GzipCompression compression = new GzipCompression();
+				N5Utils.save( prob, n5, group + "/" + PROB_DATASET, blockSize( prob ), compression );
+				N5Utils.save( dist, n5, group + "/" + DIST_DATASET, blockSize( dist ), compression );
+			}
+			catch ( final N5Exception e )
+			{
+				errorMessage = "Could not write the StarDist predictions:\n" + e.getMessage();
+			}
+			finally
+			{
+				pending.release();
+			}
+		} );
+	}
+
+	/**
+	 * Waits until all the queued maps are written.
+	 *
+	 * @return <code>true</code> if all writes succeeded.
+	 */
+	public boolean flush()
+	{
+		pending.acquireUninterruptibly( MAX_PENDING );
+		pending.release( MAX_PENDING );
+		return null == errorMessage;
+	}
+
+	/**
+	 * Waits until all the queued maps are written, then stops the writer
+	 * thread. The writer cannot be used after this call.
+	 *
+	 * @return <code>true</code> if all writes succeeded.
+	 */
+	public boolean close()
+	{
+		final boolean ok = flush();
+		executor.shutdown();
+		return ok;
+	}
+
+	/**
+	 * Returns the error message of the first write that failed, or
+	 * <code>null</code> if all writes succeeded so far.
+	 *
+	 * @return the error message.
+	 */
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Blocks are whole along all dimensions but X and Y, so that a block
+	 * holds all the rays of its pixels.
+	 */
+	private static int[] blockSize( final Interval interval )
+	{
+		final int[] blockSize = new int[ interval.numDimensions() ];
+		for ( int d = 0; d < blockSize.length; d++ )
+			blockSize[ d ] = ( d < 2 )
+					? ( int ) Math.min( interval.dimension( d ), MAX_BLOCK_SIZE )
+					: ( int ) interval.dimension( d );
+		return blockSize;
+	}
+}
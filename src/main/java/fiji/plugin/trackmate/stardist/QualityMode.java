@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * How the quality of a detected polygon is computed.
+ */
+public enum QualityMode
+{
+
+	/**
+	 * The max of the probability map inside the polygon.
+	 */
+	MAX_PROBABILITY( "Max probability" ),
+
+	/**
+	 * The mean of the probability map inside the polygon.
+	 */
+	MEAN_PROBABILITY( "Mean probability" ),
+
+	/**
+	 * The score of the candidate, that is the probability at its center. It
+	 * is known after NMS, so the probability map is not read again.
+	 */
+	SCORE( "Candidate score" );
+
+	private final String name;
+
+	private QualityMode( final String name )
+	{
+		this.name = name;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+
+	/**
+	 * Returns <code>true</code> if this mode reads the probability map.
+	 *
+	 * @return <code>true</code> if the probability map is needed.
+	 */
+	public boolean needsProbability()
+	{
+		return this != SCORE;
+	}
+
+	/**
+	 * Computes the quality of the specified polygon.
+	 *
+	 * @param polygon
+	 *            the polygon.
+	 * @param prob
+	 *            the probability map, in the same pixel coordinates as the
+	 *            polygon. Can be <code>null</code> if this mode does not
+	 *            need it.
+	 * @return the quality.
+	 */
+	public < R extends RealType< R > > double quality( final StarConvexPolygon polygon, final RandomAccessibleInterval< R > prob )
+	{
+		switch ( this )
+		{
+		case MEAN_PROBABILITY:
+			return polygon.meanIn( prob );
+		case SCORE:
+			return polygon.score;
+		case MAX_PROBABILITY:
+		default:
+			return polygon.maxIn( prob );
+		}
+	}
+
+	/**
+	 * Returns the mode with the specified name, or {@link #MAX_PROBABILITY}
+	 * if there is none.
+	 *
+	 * @param name
+	 *            the name of the mode, as returned by {@link #name()}.
+	 * @return the mode.
+	 */
+	public static QualityMode fromName( final String name )
+	{
+		for ( final QualityMode mode : values() )
+			if ( mode.name().equals( name ) )
+				return mode;
+		return MAX_PROBABILITY;
+	}
+}
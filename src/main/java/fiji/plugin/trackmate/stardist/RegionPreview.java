@@ -0,0 +1,308 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static fiji.plugin.trackmate.gui.Fonts.FONT;
+import static fiji.plugin.trackmate.gui.Fonts.SMALL_FONT;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.awt.Rectangle;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.swing.JButton;
+import javax.swing.JFormattedTextField;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.detection.DetectionUtils;
+import fiji.plugin.trackmate.stardist.FrameMemory.Detection;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import net.imagej.ImgPlus;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * A quick preview of the StarDist detection, restricted to the area ROI of
+ * the image or, if there is none, to the part of the current frame visible
+ * in its window.
+ * <p>
+ * The preview has a time budget. The time the CNN takes per pixel is
+ * measured on each preview, and if the next region would exceed the budget
+ * at the configured inference scale, a coarser scale is used. Detections are
+ * shown as an overlay on the image, and the time spent in each stage is
+ * reported next to the button.
+ */
+public class RegionPreview
+{
+
+	/** Default time budget, in seconds. */
+	public static final double DEFAULT_TIME_BUDGET = 5.;
+
+	/** Coarsest inference scale the time budget can lead to. */
+	private static final double MIN_SCALE = 0.1;
+
+	private static final NumberFormat BUDGET_FORMAT = new DecimalFormat( "#.#" );
+
+	private static final NumberFormat SCALE_FORMAT = new DecimalFormat( "#.##" );
+
+	private final Settings settings;
+
+	private final StarDistDetectorFactory< ? > factory;
+
+	private final Supplier< Map< String, Object > > detectionSettingsSupplier;
+
+	private final JPanel panel;
+
+	private final JButton btnPreview;
+
+	private final JFormattedTextField ftfBudget;
+
+	private final JLabel lblInfo;
+
+	/** CNN time per pixel measured on the last preview, in ms. */
+	private double msPerPixel = Double.NaN;
+
+	/**
+	 * Creates a region preview.
+	 *
+	 * @param settings
+	 *            the TrackMate settings, that hold the image.
+	 * @param factory
+	 *            the factory that creates the StarDist runner.
+	 * @param detectionSettingsSupplier
+	 *            supplies the detection settings from the configuration
+	 *            panel.
+	 */
+	public RegionPreview( final Settings settings, final StarDistDetectorFactory< ? > factory, final Supplier< Map< String, Object > > detectionSettingsSupplier )
+	{
+		this.settings = settings;
+		this.factory = factory;
+		this.detectionSettingsSupplier = detectionSettingsSupplier;
+
+		this.panel = new JPanel();
+		final GridBagLayout layout = new GridBagLayout();
+		layout.columnWeights = new double[] { 0.0, 0.0, 0.0, 1.0 };
+		panel.setLayout( layout );
+
+		btnPreview = new JButton( "Region preview" );
+		btnPreview.setFont( FONT );
+		btnPreview.setToolTipText( "<html>Runs the detection on the area ROI of the image, <br>or on the part of the current frame visible in its window. <br>Uses a coarser inference scale if needed to fit the time budget.</html>" );
+		final GridBagConstraints gbcBtn = new GridBagConstraints();
+		gbcBtn.insets = new Insets( 0, 0, 0, 5 );
+		gbcBtn.gridx = 0;
+		gbcBtn.gridy = 0;
+		panel.add( btnPreview, gbcBtn );
+
+		final JLabel lblBudget = new JLabel( "Budget (s):" );
+		lblBudget.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblBudget = new GridBagConstraints();
+		gbcLblBudget.insets = new Insets( 0, 5, 0, 5 );
+		gbcLblBudget.gridx = 1;
+		gbcLblBudget.gridy = 0;
+		panel.add( lblBudget, gbcLblBudget );
+
+		ftfBudget = new JFormattedTextField( BUDGET_FORMAT );
+		ftfBudget.setFont( FONT );
+		ftfBudget.setMinimumSize( new Dimension( 40, 26 ) );
+		ftfBudget.setColumns( 3 );
+		ftfBudget.setHorizontalAlignment( SwingConstants.CENTER );
+		ftfBudget.setValue( DEFAULT_TIME_BUDGET );
+		final GridBagConstraints gbcBudget = new GridBagConstraints();
+		gbcBudget.insets = new Insets( 0, 0, 0, 5 );
+		gbcBudget.gridx = 2;
+		gbcBudget.gridy = 0;
+		panel.add( ftfBudget, gbcBudget );
+
+		lblInfo = new JLabel( " " );
+		lblInfo.setFont( SMALL_FONT );
+		final GridBagConstraints gbcInfo = new GridBagConstraints();
+		gbcInfo.gridwidth = 4;
+		gbcInfo.fill = GridBagConstraints.HORIZONTAL;
+		gbcInfo.insets = new Insets( 5, 0, 0, 0 );
+		gbcInfo.gridx = 0;
+		gbcInfo.gridy = 1;
+		panel.add( lblInfo, gbcInfo );
+
+		btnPreview.addActionListener( e -> preview() );
+	}
+
+	public JPanel getPanel()
+	{
+		return panel;
+	}
+
+	private void preview()
+	{
+		final ImagePlus imp = settings.imp;
+		if ( null == imp )
+			return;
+
+		final Map< String, Object > detectionSettings = detectionSettingsSupplier.get();
+		final double budget = 1000. * ( ( Number ) ftfBudget.getValue() ).doubleValue();
+		btnPreview.setEnabled( false );
+		lblInfo.setText( "Running..." );
+		new Thread( () -> {
+			String info;
+			try
+			{
+				info = run( imp, detectionSettings, budget );
+			}
+			catch ( final RuntimeException e )
+			{
+				info = "Preview failed: " + e.getMessage();
+			}
+			final String text = info;
+			SwingUtilities.invokeLater( () -> {
+				lblInfo.setText( text );
+				btnPreview.setEnabled( true );
+			} );
+		}, "StarDist region preview" ).start();
+	}
+
+	/**
+	 * Runs the preview and returns the message to display.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private String run( final ImagePlus imp, final Map< String, Object > detectionSettings, final double budget )
+	{
+		final long start = System.currentTimeMillis();
+		final StarDistRunnerBase runner = factory.createRunner( detectionSettings );
+		if ( !runner.initialize() )
+			return runner.getErrorMessage();
+
+		// Current frame, and current Z slice for Z-stacks.
+		final ImgPlus img = TMUtils.rawWraps( imp );
+		final double[] calibration = TMUtils.getSpatialCalibration( img );
+		final int[] channels = StarDistDetectorFactory.getTargetChannels( detectionSettings );
+		final int frame = imp.getFrame() - 1;
+		final ImgPlus imFrame = TMUtils.hyperSlice( img, channels[ 0 ], frame );
+		final boolean is2D = DetectionUtils.is2D( imFrame );
+		final RandomAccessible input = is2D
+				? StarDistDetectorFactory.channelView( img, channels, frame )
+				: Views.hyperSlice( imFrame, 2, imp.getSlice() - 1 );
+
+		// Region: area ROI, or visible part of the image.
+		final Roi roi = imp.getRoi();
+		Rectangle rect;
+		if ( null != roi && roi.isArea() )
+			rect = roi.getBounds();
+		else if ( null != imp.getCanvas() )
+			rect = imp.getCanvas().getSrcRect();
+		else
+			rect = new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() );
+		rect = rect.intersection( new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() ) );
+		if ( rect.isEmpty() )
+			return "Empty region.";
+		final Interval region = new FinalInterval(
+				new long[] { rect.x, rect.y },
+				new long[] { rect.x + rect.width - 1, rect.y + rect.height - 1 } );
+		final Interval interval = ( is2D && channels.length > 1 )
+				? Intervals.addDimension( region, 0, channels.length - 1 )
+				: region;
+
+		// Coarser scale if the last measured speed says we won't make it.
+		final StarDistDetectorOptions options = StarDistDetectorOptions.fromSettings( detectionSettings );
+		double scale = options.getInferenceScale( calibration[ 0 ] );
+		final double nPixels = ( double ) rect.width * rect.height;
+		if ( !Double.isNaN( msPerPixel ) )
+		{
+			final double expected = msPerPixel * nPixels * scale * scale * pyramidFactor( options.pyramidLevels );
+			if ( expected > budget )
+				scale = Math.max( MIN_SCALE, Math.sqrt( budget / ( msPerPixel * nPixels * pyramidFactor( options.pyramidLevels ) ) ) );
+		}
+		// Same options, at the scale chosen above.
+		final StarDistDetectorOptions previewOptions = StarDistDetectorOptions.create( options )
+				.inferenceScale( scale )
+				.objectDiameter( 0. )
+				.get();
+
+		final StarDistDetector detector = new StarDistDetector( runner, input, interval, calibration, frame, null, previewOptions );
+		if ( !detector.process() )
+			return detector.getErrorMessage();
+
+		// Measured speed, for the next preview.
+		final Map< String, Long > timings = runner.getTimings();
+		final Long cnnTime = timings.get( StarDistRunnerBase.STAGE_CNN );
+		if ( null != cnnTime && cnnTime.longValue() > 0 )
+			msPerPixel = cnnTime.doubleValue() / ( nPixels * scale * scale * pyramidFactor( options.pyramidLevels ) );
+
+		// Show detections as an overlay.
+		final List< Detection > detections = detector.getDetections();
+		final Overlay overlay = new Overlay();
+		for ( final Detection detection : detections )
+		{
+			final float[] x = new float[ detection.x.length ];
+			final float[] y = new float[ detection.y.length ];
+			for ( int i = 0; i < x.length; i++ )
+			{
+				x[ i ] = ( float ) ( detection.x[ i ] / calibration[ 0 ] );
+				y[ i ] = ( float ) ( detection.y[ i ] / calibration[ 1 ] );
+			}
+			final PolygonRoi polygon = new PolygonRoi( x, y, x.length, Roi.POLYGON );
+			polygon.setStrokeColor( Color.YELLOW );
+			overlay.add( polygon );
+		}
+		imp.setOverlay( overlay );
+
+		final long total = System.currentTimeMillis() - start;
+		final StringBuilder str = new StringBuilder();
+		str.append( "<html>" + detections.size() + " spots in " + rect.width + " x " + rect.height
+				+ " pixels at scale " + SCALE_FORMAT.format( scale ) + ".<br>" );
+		long staged = 0;
+		for ( final Map.Entry< String, Long > timing : timings.entrySet() )
+		{
+			str.append( timing.getKey() + ": " + timing.getValue() + " ms, " );
+			staged += timing.getValue();
+		}
+		str.append( "other: " + ( total - staged ) + " ms, total: " + total + " ms.</html>" );
+		return str.toString();
+	}
+
+	/**
+	 * Number of pixels processed by a pyramid, relative to its first level.
+	 */
+	private static double pyramidFactor( final int nLevels )
+	{
+		double factor = 0.;
+		for ( int l = 0; l < nLevels; l++ )
+			factor += Math.pow( 0.25, l );
+		return factor;
+	}
+}
@@ -0,0 +1,47 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Receives the spots of each frame as soon as its detection is done, while
+ * later frames are still being processed.
+ */
+public interface SpotListener
+{
+
+	/**
+	 * Called once per frame, from the thread that processed it, when the
+	 * detection of this frame succeeded.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param spots
+	 *            the spots of this frame. They are the spots TrackMate gets
+	 *            at the end of the detection, so they must not be modified.
+	 *            The list cannot be modified.
+	 */
+	public void spotsDetected( int frame, List< Spot > spots );
+}
@@ -0,0 +1,283 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A star-convex polygon detected by StarDist, with its vertices in pixel
+ * coordinates.
+ */
+public class StarConvexPolygon
+{
+
+	/** The X coordinates of the vertices, in pixels. */
+	public final double[] x;
+
+	/** The Y coordinates of the vertices, in pixels. */
+	public final double[] y;
+
+	/** The score of this polygon, that is the probability at its center. */
+	public final double score;
+
+	/**
+	 * The quality of this polygon, as computed by a {@link QualityMode}: the
+	 * max or the mean of the probability inside it, or its score. Is
+	 * <code>NaN</code> until computed.
+	 */
+	public double quality = Double.NaN;
+
+	private final double area;
+
+	private final double xmin;
+
+	private final double xmax;
+
+	private final double ymin;
+
+	private final double ymax;
+
+	public StarConvexPolygon( final double[] x, final double[] y, final double score )
+	{
+		this.x = x;
+		this.y = y;
+		this.score = score;
+
+		double a = 0.;
+		double x0 = Double.POSITIVE_INFINITY;
+		double x1 = Double.NEGATIVE_INFINITY;
+		double y0 = Double.POSITIVE_INFINITY;
+		double y1 = Double.NEGATIVE_INFINITY;
+		for ( int i = 0; i < x.length; i++ )
+		{
+			final int j = ( i + 1 ) % x.length;
+			a += x[ i ] * y[ j ] - x[ j ] * y[ i ];
+			x0 = Math.min( x0, x[ i ] );
+			x1 = Math.max( x1, x[ i ] );
+			y0 = Math.min( y0, y[ i ] );
+			y1 = Math.max( y1, y[ i ] );
+		}
+		this.area = Math.abs( a ) / 2.;
+		this.xmin = x0;
+		this.xmax = x1;
+		this.ymin = y0;
+		this.ymax = y1;
+	}
+
+	/**
+	 * Returns the area of this polygon, in square pixels.
+	 *
+	 * @return the area.
+	 */
+	public double area()
+	{
+		return area;
+	}
+
+	public double xmin()
+	{
+		return xmin;
+	}
+
+	public double xmax()
+	{
+		return xmax;
+	}
+
+	public double ymin()
+	{
+		return ymin;
+	}
+
+	public double ymax()
+	{
+		return ymax;
+	}
+
+	/**
+	 * Returns <code>true</code> if the bounding-box of this polygon intersects
+	 * the one of the specified polygon.
+	 *
+	 * @param o
+	 *            the other polygon.
+	 * @return <code>true</code> if the bounding-boxes intersect.
+	 */
+	public boolean boundsIntersect( final StarConvexPolygon o )
+	{
+		return xmin <= o.xmax && o.xmin <= xmax && ymin <= o.ymax && o.ymin <= ymax;
+	}
+
+	/**
+	 * Returns a new polygon, with the same score and quality, whose vertices
+	 * are transformed by <code>x' = a * x + bx</code> and
+	 * <code>y' = a * y + by</code>.
+	 *
+	 * @param a
+	 *            the scale.
+	 * @param bx
+	 *            the X offset.
+	 * @param by
+	 *            the Y offset.
+	 * @return a new polygon.
+	 */
+	public StarConvexPolygon transform( final double a, final double bx, final double by )
+	{
+		final double[] xt = new double[ x.length ];
+		final double[] yt = new double[ y.length ];
+		for ( int i = 0; i < x.length; i++ )
+		{
+			xt[ i ] = a * x[ i ] + bx;
+			yt[ i ] = a * y[ i ] + by;
+		}
+		final StarConvexPolygon p = new StarConvexPolygon( xt, yt, score );
+		p.quality = quality;
+		return p;
+	}
+
+	Path2D toPath()
+	{
+		final Path2D.Double path = new Path2D.Double( Path2D.WIND_NON_ZERO, x.length );
+		path.moveTo( x[ 0 ], y[ 0 ] );
+		for ( int i = 1; i < x.length; i++ )
+			path.lineTo( x[ i ], y[ i ] );
+		path.closePath();
+		return path;
+	}
+
+	/**
+	 * Returns the area of the intersection of this polygon with the specified
+	 * one.
+	 *
+	 * @param o
+	 *            the other polygon.
+	 * @return the intersection area, in square pixels.
+	 */
+	public double intersectionArea( final StarConvexPolygon o )
+	{
+		if ( !boundsIntersect( o ) )
+			return 0.;
+		final Area inter = new Area( toPath() );
+		inter.intersect( new Area( o.toPath() ) );
+		return PolygonNMS.area( inter );
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified point is inside this
+	 * polygon, with the even-odd rule.
+	 *
+	 * @param px
+	 *            the X coordinate, in pixels.
+	 * @param py
+	 *            the Y coordinate, in pixels.
+	 * @return <code>true</code> if the point is inside.
+	 */
+	public boolean contains( final double px, final double py )
+	{
+		if ( px < xmin || px > xmax || py < ymin || py > ymax )
+			return false;
+		boolean inside = false;
+		for ( int i = 0, j = x.length - 1; i < x.length; j = i++ )
+		{
+			if ( ( y[ i ] > py ) != ( y[ j ] > py )
+					&& px < ( x[ j ] - x[ i ] ) * ( py - y[ i ] ) / ( y[ j ] - y[ i ] ) + x[ i ] )
+				inside = !inside;
+		}
+		return inside;
+	}
+
+	/**
+	 * Returns the max of the specified image over the pixels inside this
+	 * polygon. Like for ImageJ masks, a pixel is inside if its center is. If
+	 * the polygon contains no pixel center, the pixel closest to its centroid
+	 * is used.
+	 *
+	 * @param img
+	 *            the image, in the same pixel coordinates as this polygon.
+	 * @return the max value inside this polygon.
+	 */
+	public < R extends RealType< R > > double maxIn( final RandomAccessibleInterval< R > img )
+	{
+		return statsIn( img )[ 0 ];
+	}
+
+	/**
+	 * Returns the mean of the specified image over the pixels inside this
+	 * polygon, with the same rules as {@link #maxIn(RandomAccessibleInterval)}.
+	 *
+	 * @param img
+	 *            the image, in the same pixel coordinates as this polygon.
+	 * @return the mean value inside this polygon.
+	 */
+	public < R extends RealType< R > > double meanIn( final RandomAccessibleInterval< R > img )
+	{
+		return statsIn( img )[ 1 ];
+	}
+
+	/**
+	 * Returns the max and mean of the image over the pixels inside this
+	 * polygon.
+	 */
+	private < R extends RealType< R > > double[] statsIn( final RandomAccessibleInterval< R > img )
+	{
+		final long x0 = Math.max( img.min( 0 ), ( long ) Math.floor( xmin ) );
+		final long x1 = Math.min( img.max( 0 ), ( long ) Math.ceil( xmax ) );
+		final long y0 = Math.max( img.min( 1 ), ( long ) Math.floor( ymin ) );
+		final long y1 = Math.min( img.max( 1 ), ( long ) Math.ceil( ymax ) );
+		final RandomAccess< R > ra = img.randomAccess();
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0.;
+		long count = 0;
+		for ( long py = y0; py <= y1; py++ )
+		{
+			ra.setPosition( py, 1 );
+			for ( long px = x0; px <= x1; px++ )
+			{
+				if ( !contains( px + 0.5, py + 0.5 ) )
+					continue;
+				ra.setPosition( px, 0 );
+				final double v = ra.get().getRealDouble();
+				max = Math.max( max, v );
+				sum += v;
+				count++;
+			}
+		}
+		if ( count > 0 )
+			return new double[] { max, sum / count };
+
+		double cx = 0.;
+		double cy = 0.;
+		for ( int i = 0; i < x.length; i++ )
+		{
+			cx += x[ i ] / x.length;
+			cy += y[ i ] / y.length;
+		}
+		ra.setPosition( Math.max( img.min( 0 ), Math.min( img.max( 0 ), ( long ) Math.floor( cx ) ) ), 0 );
+		ra.setPosition( Math.max( img.min( 1 ), Math.min( img.max( 1 ), ( long ) Math.floor( cy ) ) ), 1 );
+		final double v = ra.get().getRealDouble();
+		return new double[] { v, v };
+	}
+}
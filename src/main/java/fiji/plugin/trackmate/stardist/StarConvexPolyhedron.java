@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+/**
+ * A star-convex polyhedron detected by StarDist 3D: a center, in pixel
+ * coordinates, and the distance to the object boundary along each ray.
+ */
+public class StarConvexPolyhedron
+{
+
+	/**
+	 * Number of samples per face and along the radius, used to estimate
+	 * intersection volumes.
+	 */
+	private static final int N_RADIAL_SAMPLES = 3;
+
+	public final StarDist3DRays rays;
+
+	/** The center, in pixel coordinates. */
+	public final double x, y, z;
+
+	/** The distance along each ray, in pixels. */
+	public final float[] dist;
+
+	/** The score of this polyhedron, that is the probability at its center. */
+	public final double score;
+
+	private final double volume;
+
+	private final double rmin;
+
+	private final double rmax;
+
+	public StarConvexPolyhedron( final StarDist3DRays rays, final double x, final double y, final double z, final float[] dist, final double score )
+	{
+		this.rays = rays;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.dist = dist;
+		this.score = score;
+
+		double min = Double.POSITIVE_INFINITY;
+		double max = 0.;
+		for ( final float d : dist )
+		{
+			min = Math.min( min, d );
+			max = Math.max( max, d );
+		}
+		this.rmin = min;
+		this.rmax = max;
+
+		// Sum of the tetrahedra spanned by the center and each face.
+		double v = 0.;
+		for ( int f = 0; f < rays.nFaces(); f++ )
+			v += faceVolume( f );
+		this.volume = v;
+	}
+
+	private double faceVolume( final int f )
+	{
+		final int[] faces = rays.faces;
+		return dist[ faces[ 3 * f ] ] * dist[ faces[ 3 * f + 1 ] ] * dist[ faces[ 3 * f + 2 ] ] * rays.faceTriple[ f ] / 6.;
+	}
+
+	/**
+	 * Returns the volume of this polyhedron, in cubic pixels.
+	 *
+	 * @return the volume.
+	 */
+	public double volume()
+	{
+		return volume;
+	}
+
+	/**
+	 * Returns the largest distance from the center to the boundary.
+	 *
+	 * @return the bounding radius, in pixels.
+	 */
+	public double rmax()
+	{
+		return rmax;
+	}
+
+	/**
+	 * Returns the X, Y, Z coordinates of the vertex at the tip of the
+	 * specified ray.
+	 */
+	double[] vertex( final int ray )
+	{
+		return new double[] {
+				x + dist[ ray ] * rays.vx[ ray ],
+				y + dist[ ray ] * rays.vy[ ray ],
+				z + dist[ ray ] * rays.vz[ ray ] };
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified point is inside this
+	 * polyhedron.
+	 *
+	 * @param px
+	 *            the X coordinate, in pixels.
+	 * @param py
+	 *            the Y coordinate, in pixels.
+	 * @param pz
+	 *            the Z coordinate, in pixels.
+	 * @return <code>true</code> if the point is inside.
+	 */
+	public boolean contains( final double px, final double py, final double pz )
+	{
+		final double ux = px - x;
+		final double uy = py - y;
+		final double uz = pz - z;
+		final double r2 = ux * ux + uy * uy + uz * uz;
+		if ( r2 <= rmin * rmin )
+			return true;
+		if ( r2 > rmax * rmax )
+			return false;
+
+		// Find the face whose cone contains the direction.
+		final double[] coefs = new double[ 3 ];
+		final int closest = rays.closestRay( ux, uy, uz );
+		for ( final int f : rays.facesOfRay[ closest ] )
+			if ( rays.decompose( f, ux, uy, uz, coefs ) )
+				return insideFace( f, coefs );
+		for ( int f = 0; f < rays.nFaces(); f++ )
+			if ( rays.decompose( f, ux, uy, uz, coefs ) )
+				return insideFace( f, coefs );
+		return false;
+	}
+
+	private boolean insideFace( final int f, final double[] coefs )
+	{
+		final int[] faces = rays.faces;
+		return coefs[ 0 ] / dist[ faces[ 3 * f ] ]
+				+ coefs[ 1 ] / dist[ faces[ 3 * f + 1 ] ]
+				+ coefs[ 2 ] / dist[ faces[ 3 * f + 2 ] ] <= 1.;
+	}
+
+	/**
+	 * Returns <code>true</code> if the bounding spheres of this polyhedron
+	 * and of the specified one intersect.
+	 *
+	 * @param o
+	 *            the other polyhedron.
+	 * @return <code>true</code> if the bounding spheres intersect.
+	 */
+	public boolean boundsIntersect( final StarConvexPolyhedron o )
+	{
+		final double dx = x - o.x;
+		final double dy = y - o.y;
+		final double dz = z - o.z;
+		final double r = rmax + o.rmax;
+		return dx * dx + dy * dy + dz * dz < r * r;
+	}
+
+	/**
+	 * Estimates the volume of the intersection of this polyhedron with the
+	 * specified one. Each tetrahedron spanned by the center and a face is
+	 * sampled at a few points along its axis, placed so that each one stands
+	 * for the same volume, and the points inside the other polyhedron are
+	 * summed.
+	 *
+	 * @param o
+	 *            the other polyhedron.
+	 * @return the estimated intersection volume, in cubic pixels.
+	 */
+	public double intersectionVolume( final StarConvexPolyhedron o )
+	{
+		if ( !boundsIntersect( o ) )
+			return 0.;
+
+		final int[] faces = rays.faces;
+		double inter = 0.;
+		for ( int f = 0; f < rays.nFaces(); f++ )
+		{
+			final double[] a = vertex( faces[ 3 * f ] );
+			final double[] b = vertex( faces[ 3 * f + 1 ] );
+			final double[] c = vertex( faces[ 3 * f + 2 ] );
+			final double cx = ( a[ 0 ] + b[ 0 ] + c[ 0 ] ) / 3. - x;
+			final double cy = ( a[ 1 ] + b[ 1 ] + c[ 1 ] ) / 3. - y;
+			final double cz = ( a[ 2 ] + b[ 2 ] + c[ 2 ] ) / 3. - z;
+			final double sampleVolume = faceVolume( f ) / N_RADIAL_SAMPLES;
+			for ( int k = 0; k < N_RADIAL_SAMPLES; k++ )
+			{
+				// The volume within radial fraction t of a cone is t^3.
+				final double t = Math.cbrt( ( k + 0.5 ) / N_RADIAL_SAMPLES );
+				if ( o.contains( x + t * cx, y + t * cy, z + t * cz ) )
+					inter += sampleVolume;
+			}
+		}
+		return inter;
+	}
+}
@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotMesh;
+import fiji.plugin.trackmate.detection.SpotDetector;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.mesh.Triangles;
+import net.imglib2.mesh.Vertices;
+import net.imglib2.mesh.impl.nio.BufferMesh;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+public class StarDist3DDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >
+{
+
+	private final static String BASE_ERROR_MESSAGE = "StarDist3DDetector: ";
+
+	protected final StarDist3DRunner stardistRunner;
+
+	protected final RandomAccessible< T > img;
+
+	protected final Interval interval;
+
+	protected final double[] calibration;
+
+	protected final List< Spot > spots = new ArrayList<>();
+
+	protected String baseErrorMessage;
+
+	protected String errorMessage;
+
+	protected long processingTime;
+
+	/**
+	 * Creates a StarDist 3D detector for one frame.
+	 *
+	 * @param stardistRunner
+	 *            the StarDist 3D runner to use.
+	 * @param img
+	 *            the 3D image to process.
+	 * @param interval
+	 *            the interval in the image to process.
+	 * @param calibration
+	 *            the spatial calibration of the image.
+	 */
+	public StarDist3DDetector(
+			final StarDist3DRunner stardistRunner,
+			final RandomAccessible< T > img,
+			final Interval interval,
+			final double[] calibration )
+	{
+		this.stardistRunner = stardistRunner;
+		this.img = img;
+		this.interval = interval;
+		this.calibration = calibration;
+		this.baseErrorMessage = BASE_ERROR_MESSAGE;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( null == img )
+		{
+			errorMessage = baseErrorMessage + "Image is null.";
+			return false;
+		}
+		if ( img.numDimensions() != 3 || interval.numDimensions() != 3 )
+		{
+			errorMessage = baseErrorMessage + "Image must be 3D, got " + img.numDimensions() + "D.";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+		spots.clear();
+
+		final RandomAccessibleInterval< T > input = Views.zeroMin( Views.interval( img, interval ) );
+		final List< StarConvexPolyhedron > polyhedra = stardistRunner.run( input );
+		if ( null == polyhedra )
+		{
+			errorMessage = baseErrorMessage + "Detector interrupted.\n";
+			return false;
+		}
+
+		// One mesh spot per polyhedron, in physical units.
+		for ( final StarConvexPolyhedron polyhedron : polyhedra )
+			spots.add( toSpot( polyhedron ) );
+
+		final long end = System.currentTimeMillis();
+		this.processingTime = end - start;
+		return true;
+	}
+
+	private Spot toSpot( final StarConvexPolyhedron polyhedron )
+	{
+		final StarDist3DRays rays = polyhedron.rays;
+		final BufferMesh mesh = new BufferMesh( rays.nRays, rays.nFaces() );
+		final Vertices vertices = mesh.vertices();
+		for ( int r = 0; r < rays.nRays; r++ )
+		{
+			final double[] v = polyhedron.vertex( r );
+			vertices.add(
+					calibration[ 0 ] * ( interval.min( 0 ) + v[ 0 ] ),
+					calibration[ 1 ] * ( interval.min( 1 ) + v[ 1 ] ),
+					calibration[ 2 ] * ( interval.min( 2 ) + v[ 2 ] ) );
+		}
+		final Triangles triangles = mesh.triangles();
+		for ( int f = 0; f < rays.nFaces(); f++ )
+			triangles.add( rays.faces[ 3 * f ], rays.faces[ 3 * f + 1 ], rays.faces[ 3 * f + 2 ] );
+		return new SpotMesh( mesh, polyhedron.score );
+	}
+
+	@Override
+	public List< Spot > getResult()
+	{
+		return spots;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+}
@@ -0,0 +1,260 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static fiji.plugin.trackmate.detection.DetectorKeys.DEFAULT_TARGET_CHANNEL;
+import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
+import static fiji.plugin.trackmate.stardist.StarDistCustomDetectorFactory.DEFAULT_OVERLAP_THRESHOLD;
+import static fiji.plugin.trackmate.stardist.StarDistCustomDetectorFactory.DEFAULT_SCORE_THRESHOLD;
+import static fiji.plugin.trackmate.stardist.StarDistCustomDetectorFactory.KEY_MODEL_FILEPATH;
+import static fiji.plugin.trackmate.stardist.StarDistCustomDetectorFactory.KEY_OVERLAP_THRESHOLD;
+import static fiji.plugin.trackmate.stardist.StarDistCustomDetectorFactory.KEY_SCORE_THRESHOLD;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.Priority;
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.detection.SpotDetector;
+import fiji.plugin.trackmate.detection.SpotDetectorFactory;
+import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+@Plugin( type = SpotDetectorFactory.class, priority = Priority.NORMAL - 2. )
+public class StarDist3DDetectorFactory< T extends RealType< T > & NativeType< T > > implements SpotDetectorFactory< T >
+{
+
+	/** A string key identifying this factory. */
+	public static final String DETECTOR_KEY = "STARDIST_3D_DETECTOR";
+
+	/** The pretty name of the target detector. */
+	public static final String NAME = "StarDist 3D detector custom model";
+
+	/** An html information text. */
+	public static final String INFO_TEXT = "<html>"
+			+ "This detector relies on a StarDist 3D model stored in a file to "
+			+ "detect cells in 3D images."
+			+ "<p>"
+			+ "The model must use the default golden spiral rays. The number of rays "
+			+ "and the Z anisotropy are read from the <code>config.json</code> file "
+			+ "of the model, in the model zip or next to it, unless they are set "
+			+ "here. The volume is processed in overlapping blocks, and the overlap "
+			+ "should be larger than the radius of the objects. Spots are created with a mesh from "
+			+ "the detected polyhedra, and a quality equal to the probability at "
+			+ "their center."
+			+ "<p>"
+			+ "For this detector to work, the update sites StartDist and CSBDeep "
+			+ "must be activated in your Fiji installation."
+			+ "<p>"
+			+ "Documentation for this module "
+			+ "<a href=\"https://imagej.net/plugins/trackmate/trackmate-stardist\">on the ImageJ Wiki</a>."
+			+ "<p>"
+			+ "If you use this detector for your work, please be so kind as to "
+			+ "also cite the StarDist 3D paper: "
+			+ "<a href=\"http://doi.org/10.1109/WACV45572.2020.9093435\">"
+			+ "Martin Weigert, Uwe Schmidt, Robert Haase, Ko Sugawara, and Gene Myers. "
+			+ "Star-convex Polyhedra for 3D Object Detection and Segmentation in "
+			+ "Microscopy. WACV, Snowmass Village, CO, USA, March 2020.</a>"
+			+ "</html>";
+
+	/**
+	 * The key to the parameter that stores the number of rays of the model. A
+	 * value of 0 reads it from the model configuration. Values are
+	 * {@link Integer}s.
+	 */
+	public static final String KEY_N_RAYS = "N_RAYS";
+
+	public static final Integer DEFAULT_N_RAYS = Integer.valueOf( 0 );
+
+	/**
+	 * The key to the parameter that stores the anisotropy along Z the model
+	 * was trained with, relative to X and Y. A value of 0 reads it from the
+	 * model configuration. Values are {@link Double}s.
+	 */
+	public static final String KEY_ANISOTROPY = "ANISOTROPY";
+
+	public static final Double DEFAULT_ANISOTROPY = Double.valueOf( 0. );
+
+	/**
+	 * The key to the parameter that stores the size, in pixels, of the blocks
+	 * the volume is processed in. Values are {@link Integer}s.
+	 */
+	public static final String KEY_BLOCK_SIZE = "BLOCK_SIZE";
+
+	public static final Integer DEFAULT_BLOCK_SIZE = Integer.valueOf( 128 );
+
+	/**
+	 * The key to the parameter that stores the overlap, in pixels, between
+	 * blocks. Values are {@link Integer}s.
+	 */
+	public static final String KEY_BLOCK_OVERLAP = "BLOCK_OVERLAP";
+
+	public static final Integer DEFAULT_BLOCK_OVERLAP = Integer.valueOf( 32 );
+
+	@Override
+	public SpotDetector< T > getDetector( final ImgPlus< T > img, final Map< String, Object > settings, final Interval interval, final int frame )
+	{
+		final StarDist3DRunner starDistRunner = createRunner( settings );
+		if ( !starDistRunner.initialize() )
+		{
+			System.err.println( starDistRunner.getErrorMessage() );
+			return null;
+		}
+
+		final double[] calibration = TMUtils.getSpatialCalibration( img );
+		final int channel = ( Integer ) settings.get( KEY_TARGET_CHANNEL ) - 1;
+		final ImgPlus< T > imFrame = TMUtils.hyperSlice( img, channel, frame );
+
+		final StarDist3DDetector< T > detector = new StarDist3DDetector<>(
+				starDistRunner,
+				imFrame,
+				interval,
+				calibration );
+		return detector;
+	}
+
+	/**
+	 * Creates the StarDist 3D runner to use with the specified settings. The
+	 * runner is not initialized.
+	 *
+	 * @param settings
+	 *            the detection settings.
+	 * @return a new StarDist 3D runner.
+	 */
+	protected StarDist3DRunner createRunner( final Map< String, Object > settings )
+	{
+		final File modelFile = new File( ( String ) settings.get( KEY_MODEL_FILEPATH ) );
+		final double probThresh = ( ( Number ) settings.get( KEY_SCORE_THRESHOLD ) ).doubleValue();
+		final double nmsThresh = ( ( Number ) settings.get( KEY_OVERLAP_THRESHOLD ) ).doubleValue();
+		final int nRays = ( ( Number ) settings.getOrDefault( KEY_N_RAYS, DEFAULT_N_RAYS ) ).intValue();
+		final double anisotropy = ( ( Number ) settings.getOrDefault( KEY_ANISOTROPY, DEFAULT_ANISOTROPY ) ).doubleValue();
+		final int blockSize = ( ( Number ) settings.getOrDefault( KEY_BLOCK_SIZE, DEFAULT_BLOCK_SIZE ) ).intValue();
+		final int blockOverlap = ( ( Number ) settings.getOrDefault( KEY_BLOCK_OVERLAP, DEFAULT_BLOCK_OVERLAP ) ).intValue();
+		return new StarDist3DRunner( modelFile, probThresh, nmsThresh, nRays, anisotropy, blockSize, blockOverlap );
+	}
+
+	@Override
+	public String checkSettings( final Map< String, Object > settings )
+	{
+		final String errorMessage = SpotDetectorFactory.super.checkSettings( settings );
+		if ( null != errorMessage )
+			return errorMessage;
+
+		final String modelFilePath = ( String ) settings.get( KEY_MODEL_FILEPATH );
+		if ( null == modelFilePath )
+			return "Model file path is not set.";
+
+		final File file = new File( modelFilePath );
+		if ( !file.exists() )
+			return "Model file " + modelFilePath + " does not exist.";
+
+		if ( !file.canRead() )
+			return "Model file " + modelFilePath + " exists but cannot be read.";
+
+		final int nRays = ( ( Number ) settings.getOrDefault( KEY_N_RAYS, DEFAULT_N_RAYS ) ).intValue();
+		if ( nRays != 0 && nRays < 4 )
+			return "The number of rays must be at least 4, or 0 to read it from the model, got " + nRays + ".";
+
+		final double anisotropy = ( ( Number ) settings.getOrDefault( KEY_ANISOTROPY, DEFAULT_ANISOTROPY ) ).doubleValue();
+		if ( !( anisotropy >= 0. ) )
+			return "The anisotropy must be positive, or 0 to read it from the model, got " + anisotropy + ".";
+
+		return null;
+	}
+
+	@Override
+	public boolean forbidMultithreading()
+	{
+		/*
+		 * We want to run one frame after another, because the inference for one
+		 * frame takes all the resources anyway.
+		 */
+		return true;
+	}
+
+	@Override
+	public boolean has3Dsegmentation()
+	{
+		return true;
+	}
+
+	@Override
+	public ConfigurationPanel getDetectorConfigurationPanel( final Settings settings, final Model model )
+	{
+		return new StarDist3DDetectorConfigurationPanel( settings, model );
+	}
+
+	@Override
+	public Map< String, Object > getDefaultSettings()
+	{
+		final Map< String, Object > settings = new HashMap<>();
+		settings.put( KEY_TARGET_CHANNEL, DEFAULT_TARGET_CHANNEL );
+		settings.put( KEY_MODEL_FILEPATH, "" );
+		settings.put( KEY_SCORE_THRESHOLD, DEFAULT_SCORE_THRESHOLD );
+		settings.put( KEY_OVERLAP_THRESHOLD, DEFAULT_OVERLAP_THRESHOLD );
+		settings.put( KEY_N_RAYS, DEFAULT_N_RAYS );
+		settings.put( KEY_ANISOTROPY, DEFAULT_ANISOTROPY );
+		settings.put( KEY_BLOCK_SIZE, DEFAULT_BLOCK_SIZE );
+		settings.put( KEY_BLOCK_OVERLAP, DEFAULT_BLOCK_OVERLAP );
+		return settings;
+	}
+
+	@Override
+	public String getInfoText()
+	{
+		return INFO_TEXT;
+	}
+
+	@Override
+	public ImageIcon getIcon()
+	{
+		return StarDistDetectorFactory.ICON;
+	}
+
+	@Override
+	public String getUrl()
+	{
+		return StarDistDetectorFactory.DOC_URL;
+	}
+
+	@Override
+	public String getKey()
+	{
+		return DETECTOR_KEY;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+}
@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The parameters of a StarDist 3D model read from the
+ * <code>config.json</code> file written by the StarDist Python package. The
+ * file is looked for in the model zip, then next to it.
+ * <p>
+ * Only the few values needed to run the model are read: the number of rays,
+ * the anisotropy of the rays, the grid of the prediction and the depth of
+ * the U-Net, which together give the size the input must be a multiple of.
+ * Axes are stored in the order Z, Y, X in the file, and in the order X, Y, Z
+ * here.
+ */
+public class StarDist3DModelConfig
+{
+
+	/** Name of the configuration file of the StarDist Python package. */
+	public static final String CONFIG_FILE = "config.json";
+
+	/** Number of rays, or 0 if the file does not have it. */
+	public final int nRays;
+
+	/**
+	 * Anisotropy of the rays along Z relative to X and Y, or
+	 * {@link Double#NaN} if the file does not have it.
+	 */
+	public final double anisotropy;
+
+	/** Subsampling of the prediction along X, Y and Z. */
+	public final int[] grid;
+
+	/** Depth of the U-Net. */
+	public final int unetDepth;
+
+	StarDist3DModelConfig( final int nRays, final double anisotropy, final int[] grid, final int unetDepth )
+	{
+		this.nRays = nRays;
+		this.anisotropy = anisotropy;
+		this.grid = grid;
+		this.unetDepth = unetDepth;
+	}
+
+	/**
+	 * Returns the size the input of the model must be a multiple of along
+	 * each dimension, given its grid and U-Net depth.
+	 *
+	 * @return the size divisor, in pixels.
+	 */
+	public int sizeDivBy()
+	{
+		int g = 1;
+		for ( final int gd : grid )
+			g = Math.max( g, gd );
+		return g << unetDepth;
+	}
+
+	/**
+	 * Reads the configuration of the specified model, from the
+	 * {@value #CONFIG_FILE} entry of the model zip, or from the
+	 * {@value #CONFIG_FILE} file in the same folder.
+	 *
+	 * @param modelFile
+	 *            the model file.
+	 * @return the configuration, or <code>null</code> if none was found.
+	 * @throws IOException
+	 *             if the configuration cannot be read.
+	 */
+	public static StarDist3DModelConfig read( final File modelFile ) throws IOException
+	{
+		if ( modelFile.isFile() && modelFile.getName().toLowerCase().endsWith( ".zip" ) )
+		{
+			try (ZipFile zip = new ZipFile( modelFile ))
+			{
+				final ZipEntry entry = zip.stream()
+						.filter( e -> !e.isDirectory() && ( e.getName().equals( CONFIG_FILE ) || e.getName().endsWith( "/" + CONFIG_FILE ) ) )
+						.findFirst()
+						.orElse( null );
+				if ( null != entry )
+				{
+					try (InputStream in = zip.getInputStream( entry ))
+					{
+						return parse( readAll( in ) );
+					}
+				}
+			}
+		}
+		final File sibling = new File( modelFile.getAbsoluteFile().getParentFile(), CONFIG_FILE );
+		if ( sibling.isFile() )
+			return parse( new String( Files.readAllBytes( sibling.toPath() ), StandardCharsets.UTF_8 ) );
+		return null;
+	}
+
+	/**
+	 * Parses the content of a configuration file. Missing values take the
+	 * defaults of the StarDist Python package.
+	 *
+	 * @param json
+	 *            the content of the file.
+	 * @return the configuration.
+	 */
+	static StarDist3DModelConfig parse( final String json )
+	{
+		final String nRays = value( json, "n_rays" );
+		final double[] anisotropy = array( value( json, "anisotropy" ) );
+		final double[] grid = array( value( json, "grid" ) );
+		final String unetDepth = value( json, "unet_n_depth" );
+		return new StarDist3DModelConfig(
+				( null == nRays ) ? 0 : Integer.parseInt( nRays ),
+				( null == anisotropy || anisotropy.length != 3 ) ? Double.NaN : anisotropy[ 0 ] / anisotropy[ 2 ],
+				( null == grid || grid.length != 3 ) ? new int[] { 1, 1, 1 } : new int[] { ( int ) grid[ 2 ], ( int ) grid[ 1 ], ( int ) grid[ 0 ] },
+				( null == unetDepth ) ? 2 : Integer.parseInt( unetDepth ) );
+	}
+
+	/**
+	 * Returns the first value of the specified key in a JSON text, as a
+	 * number, an array or <code>null</code>, or <code>null</code> if the key
+	 * is not found.
+	 */
+	private static String value( final String json, final String key )
+	{
+		final Matcher matcher = Pattern.compile( "\"" + Pattern.quote( key ) + "\"\\s*:\\s*(\\[[^\\]]*\\]|[-+0-9.eE]+|null)" ).matcher( json );
+		if ( !matcher.find() || matcher.group( 1 ).equals( "null" ) )
+			return null;
+		return matcher.group( 1 );
+	}
+
+	private static double[] array( final String str )
+	{
+		if ( null == str || !str.startsWith( "[" ) )
+			return null;
+		final String content = str.substring( 1, str.length() - 1 ).trim();
+		if ( content.isEmpty() )
+			return new double[ 0 ];
+		final String[] tokens = content.split( "\\s*,\\s*" );
+		final double[] values = new double[ tokens.length ];
+		for ( int i = 0; i < tokens.length; i++ )
+			values[ i ] = Double.parseDouble( tokens[ i ] );
+		return values;
+	}
+
+	private static String readAll( final InputStream in ) throws IOException
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[ 8192 ];
+		int n;
+		while ( ( n = in.read( buffer ) ) > 0 )
+			out.write( buffer, 0, n );
+		return new String( out.toByteArray(), StandardCharsets.UTF_8 );
+	}
+}
@@ -0,0 +1,242 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The rays of a StarDist 3D model, and the triangular faces that connect
+ * their tips.
+ * <p>
+ * Reproduces the golden spiral rays of the StarDist Python package, which
+ * most 3D models are trained with. Ray directions are unit vectors in pixel
+ * coordinates, stored as X, Y, Z. Faces are the faces of the convex hull of
+ * the rays corrected for anisotropy, oriented so that their normal points
+ * outward. Because all the polyhedra predicted by a model share the same
+ * rays, everything that only depends on the rays is precomputed here.
+ */
+public class StarDist3DRays
+{
+
+	/** Number of rays. */
+	public final int nRays;
+
+	/** X, Y, Z components of the unit ray directions. */
+	final double[] vx, vy, vz;
+
+	/** Vertex indices of the faces, 3 per face. */
+	final int[] faces;
+
+	/** Triple product of the ray directions of each face. */
+	final double[] faceTriple;
+
+	/**
+	 * Per face, the inverse of the matrix whose columns are the ray
+	 * directions of the face, stored row by row, 9 values per face.
+	 */
+	final double[] faceInverse;
+
+	/** Per ray, the indices of the faces it belongs to. */
+	final int[][] facesOfRay;
+
+	/**
+	 * Creates the golden spiral rays of a StarDist 3D model.
+	 *
+	 * @param nRays
+	 *            the number of rays of the model.
+	 * @param anisotropy
+	 *            the anisotropy of the model along Z, relative to X and Y.
+	 */
+	public StarDist3DRays( final int nRays, final double anisotropy )
+	{
+		this.nRays = nRays;
+		this.vx = new double[ nRays ];
+		this.vy = new double[ nRays ];
+		this.vz = new double[ nRays ];
+
+		// Same construction as Rays_GoldenSpiral in StarDist.
+		final double g = ( 3. - Math.sqrt( 5. ) ) * Math.PI;
+		final double[] ax = new double[ nRays ];
+		final double[] ay = new double[ nRays ];
+		final double[] az = new double[ nRays ];
+		for ( int i = 0; i < nRays; i++ )
+		{
+			final double phi = g * i;
+			final double z = nRays > 1 ? -1. + 2. * i / ( nRays - 1 ) : 0.;
+			final double rho = Math.sqrt( Math.max( 0., 1. - z * z ) );
+			ax[ i ] = rho * Math.cos( phi );
+			ay[ i ] = rho * Math.sin( phi );
+			az[ i ] = z / anisotropy;
+			final double norm = Math.sqrt( ax[ i ] * ax[ i ] + ay[ i ] * ay[ i ] + az[ i ] * az[ i ] );
+			vx[ i ] = ax[ i ] / norm;
+			vy[ i ] = ay[ i ] / norm;
+			vz[ i ] = az[ i ] / norm;
+		}
+
+		this.faces = convexHull( ax, ay, az );
+		final int nFaces = faces.length / 3;
+		this.faceTriple = new double[ nFaces ];
+		this.faceInverse = new double[ 9 * nFaces ];
+		final List< List< Integer > > rayFaces = new ArrayList<>( nRays );
+		for ( int i = 0; i < nRays; i++ )
+			rayFaces.add( new ArrayList<>() );
+		for ( int f = 0; f < nFaces; f++ )
+		{
+			final int a = faces[ 3 * f ];
+			final int b = faces[ 3 * f + 1 ];
+			final int c = faces[ 3 * f + 2 ];
+			rayFaces.get( a ).add( f );
+			rayFaces.get( b ).add( f );
+			rayFaces.get( c ).add( f );
+			faceTriple[ f ] = triple( vx[ a ], vy[ a ], vz[ a ], vx[ b ], vy[ b ], vz[ b ], vx[ c ], vy[ c ], vz[ c ] );
+			invert( vx[ a ], vx[ b ], vx[ c ], vy[ a ], vy[ b ], vy[ c ], vz[ a ], vz[ b ], vz[ c ], faceInverse, 9 * f );
+		}
+		this.facesOfRay = new int[ nRays ][];
+		for ( int i = 0; i < nRays; i++ )
+			facesOfRay[ i ] = rayFaces.get( i ).stream().mapToInt( Integer::intValue ).toArray();
+	}
+
+	public int nFaces()
+	{
+		return faces.length / 3;
+	}
+
+	/**
+	 * Returns the index of the ray closest to the specified direction.
+	 */
+	int closestRay( final double ux, final double uy, final double uz )
+	{
+		int best = 0;
+		double bestDot = Double.NEGATIVE_INFINITY;
+		for ( int i = 0; i < nRays; i++ )
+		{
+			final double dot = ux * vx[ i ] + uy * vy[ i ] + uz * vz[ i ];
+			if ( dot > bestDot )
+			{
+				bestDot = dot;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Decomposes a direction on the rays of the specified face. Writes the 3
+	 * coefficients in the specified array and returns <code>true</code> if
+	 * they are all positive, that is if the direction is in the cone of the
+	 * face.
+	 */
+	boolean decompose( final int face, final double ux, final double uy, final double uz, final double[] coefs )
+	{
+		final int o = 9 * face;
+		final double[] m = faceInverse;
+		coefs[ 0 ] = m[ o ] * ux + m[ o + 1 ] * uy + m[ o + 2 ] * uz;
+		coefs[ 1 ] = m[ o + 3 ] * ux + m[ o + 4 ] * uy + m[ o + 5 ] * uz;
+		coefs[ 2 ] = m[ o + 6 ] * ux + m[ o + 7 ] * uy + m[ o + 8 ] * uz;
+		final double eps = -1e-9;
+		return coefs[ 0 ] >= eps && coefs[ 1 ] >= eps && coefs[ 2 ] >= eps;
+	}
+
+	/**
+	 * Brute-force convex hull of points around the origin. Fine for the few
+	 * hundred rays of a StarDist model, and computed only once per model.
+	 */
+	private static int[] convexHull( final double[] x, final double[] y, final double[] z )
+	{
+		final int n = x.length;
+		final List< int[] > hull = new ArrayList<>();
+		for ( int i = 0; i < n; i++ )
+		{
+			for ( int j = i + 1; j < n; j++ )
+			{
+				for ( int k = j + 1; k < n; k++ )
+				{
+					// Normal of the plane through i, j, k.
+					final double ux = x[ j ] - x[ i ], uy = y[ j ] - y[ i ], uz = z[ j ] - z[ i ];
+					final double wx = x[ k ] - x[ i ], wy = y[ k ] - y[ i ], wz = z[ k ] - z[ i ];
+					double nx = uy * wz - uz * wy;
+					double ny = uz * wx - ux * wz;
+					double nz = ux * wy - uy * wx;
+					final double norm = Math.sqrt( nx * nx + ny * ny + nz * nz );
+					if ( norm < 1e-12 )
+						continue;
+					nx /= norm;
+					ny /= norm;
+					nz /= norm;
+
+					// Face if all points are on the same side.
+					boolean above = false;
+					boolean below = false;
+					for ( int l = 0; l < n && !( above && below ); l++ )
+					{
+						final double d = nx * ( x[ l ] - x[ i ] ) + ny * ( y[ l ] - y[ i ] ) + nz * ( z[ l ] - z[ i ] );
+						if ( d > 1e-9 )
+							above = true;
+						else if ( d < -1e-9 )
+							below = true;
+					}
+					if ( above && below )
+						continue;
+
+					// Orient outward: the origin is inside the hull.
+					final boolean outward = nx * x[ i ] + ny * y[ i ] + nz * z[ i ] > 0.;
+					hull.add( outward ? new int[] { i, j, k } : new int[] { i, k, j } );
+				}
+			}
+		}
+		final int[] faces = new int[ 3 * hull.size() ];
+		for ( int f = 0; f < hull.size(); f++ )
+			System.arraycopy( hull.get( f ), 0, faces, 3 * f, 3 );
+		return faces;
+	}
+
+	static double triple(
+			final double ax, final double ay, final double az,
+			final double bx, final double by, final double bz,
+			final double cx, final double cy, final double cz )
+	{
+		return ax * ( by * cz - bz * cy ) - ay * ( bx * cz - bz * cx ) + az * ( bx * cy - by * cx );
+	}
+
+	/**
+	 * Inverts the 3x3 matrix given row by row, and writes the result row by
+	 * row in the specified array at the specified offset.
+	 */
+	private static void invert(
+			final double a, final double b, final double c,
+			final double d, final double e, final double f,
+			final double g, final double h, final double i,
+			final double[] out, final int o )
+	{
+		final double det = a * ( e * i - f * h ) - b * ( d * i - f * g ) + c * ( d * h - e * g );
+		out[ o ] = ( e * i - f * h ) / det;
+		out[ o + 1 ] = ( c * h - b * i ) / det;
+		out[ o + 2 ] = ( b * f - c * e ) / det;
+		out[ o + 3 ] = ( f * g - d * i ) / det;
+		out[ o + 4 ] = ( a * i - c * g ) / det;
+		out[ o + 5 ] = ( c * d - a * f ) / det;
+		out[ o + 6 ] = ( d * h - e * g ) / det;
+		out[ o + 7 ] = ( b * g - a * h ) / det;
+		out[ o + 8 ] = ( a * e - b * d ) / det;
+	}
+}
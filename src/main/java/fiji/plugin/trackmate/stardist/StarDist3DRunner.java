@@ -0,0 +1,350 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.scijava.Context;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+
+import de.csbdresden.csbdeep.commands.GenericNetwork;
+import fiji.plugin.trackmate.stardist.util.Normalization;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Runs a StarDist 3D model on a volume.
+ * <p>
+ * The StarDist Fiji plugin only ships the 2D post-processing, so the 3D one
+ * is done here. The volume is normalized as a whole, then processed in
+ * overlapping blocks so that large light-sheet volumes fit in memory. In
+ * each block, candidates are only created in the core of the block, and
+ * suppressed against the whole block. The winners of all blocks are then
+ * merged with a last NMS that resolves the objects split across block
+ * boundaries.
+ * <p>
+ * The number of rays, the anisotropy and the size the input must be a
+ * multiple of are read from the configuration of the model, see
+ * {@link StarDist3DModelConfig}. Each block is further split in tiles by the
+ * CNN if it is larger than {@value #MAX_TILE_SIZE} pixels.
+ */
+public class StarDist3DRunner
+{
+
+	private final static Context context = TMUtils.getContext();
+
+	/** Max number of pixels the CNN processes at once. */
+	public static final long MAX_TILE_SIZE = 128L * 128L * 128L;
+
+	/** Size divisor of the input used when the model has no configuration. */
+	private static final int DEFAULT_SIZE_DIV_BY = 16;
+
+	private final File modelFile;
+
+	private final double probThresh;
+
+	private final double nmsThresh;
+
+	private final int nRays;
+
+	private final double anisotropy;
+
+	private StarDist3DRays rays;
+
+	private int sizeDivBy = DEFAULT_SIZE_DIV_BY;
+
+	private final int blockSize;
+
+	private final int blockOverlap;
+
+	private String errorMessage;
+
+	/**
+	 * Creates a runner for a StarDist 3D model.
+	 *
+	 * @param modelFile
+	 *            the model file, a zip as exported by the StarDist Python
+	 *            package.
+	 * @param probThresh
+	 *            the probability threshold.
+	 * @param nmsThresh
+	 *            the overlap threshold.
+	 * @param nRays
+	 *            the number of rays of the model, or 0 to read it from the
+	 *            model configuration.
+	 * @param anisotropy
+	 *            the anisotropy of the model along Z, or 0 to read it from the
+	 *            model configuration.
+	 * @param blockSize
+	 *            the size of the blocks the volume is processed in, in
+	 *            pixels.
+	 * @param blockOverlap
+	 *            the overlap between blocks, in pixels. Should be larger than
+	 *            the object radius.
+	 */
+	public StarDist3DRunner( final File modelFile, final double probThresh, final double nmsThresh, final int nRays, final double anisotropy, final int blockSize, final int blockOverlap )
+	{
+		this.modelFile = modelFile;
+		this.probThresh = probThresh;
+		this.nmsThresh = nmsThresh;
+		this.nRays = nRays;
+		this.anisotropy = anisotropy;
+		this.blockSize = blockSize;
+		this.blockOverlap = Math.max( 0, blockOverlap );
+	}
+
+	/**
+	 * Initializes this runner and reads the model configuration. Returns
+	 * <code>true</code> if the model file can be used. If <code>false</code>,
+	 * an error message can be obtained via {@link #getErrorMessage()}.
+	 *
+	 * @return <code>true</code> if the initialization was successful.
+	 */
+	public boolean initialize()
+	{
+		this.errorMessage = null;
+		if ( !modelFile.exists() || !modelFile.canRead() )
+		{
+			errorMessage = "Cannot read model file " + modelFile + ".";
+			return false;
+		}
+		if ( blockSize <= 2 * blockOverlap )
+		{
+			errorMessage = "Block size (" + blockSize + ") must be larger than twice the block overlap (" + blockOverlap + ").";
+			return false;
+		}
+
+		final StarDist3DModelConfig config;
+		try
+		{
+			config = StarDist3DModelConfig.read( modelFile );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			errorMessage = "Cannot read the configuration of model " + modelFile + ": " + e.getMessage();
+			return false;
+		}
+		final int n = ( nRays > 0 ) ? nRays : ( null == config ) ? 0 : config.nRays;
+		if ( n <= 0 )
+		{
+			errorMessage = "No " + StarDist3DModelConfig.CONFIG_FILE + " found in or next to the model file. Set the number of rays of the model.";
+			return false;
+		}
+		final double a = ( anisotropy > 0. ) ? anisotropy
+				: ( null != config && config.anisotropy > 0. ) ? config.anisotropy : 1.;
+		this.rays = new StarDist3DRays( n, a );
+		this.sizeDivBy = ( null == config ) ? DEFAULT_SIZE_DIV_BY : config.sizeDivBy();
+		return true;
+	}
+
+	/**
+	 * Returns the rays of the model, known once the runner is initialized.
+	 *
+	 * @return the rays, or <code>null</code> before initialization.
+	 */
+	public StarDist3DRays getRays()
+	{
+		return rays;
+	}
+
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Detects objects in the specified volume.
+	 *
+	 * @param input
+	 *            the volume, with a min at 0 and dimensions X, Y, Z.
+	 * @return the detected polyhedra, in pixel coordinates, or
+	 *         <code>null</code> if StarDist failed.
+	 */
+	public < T extends RealType< T > > List< StarConvexPolyhedron > run( final RandomAccessibleInterval< T > input )
+	{
+		this.errorMessage = null;
+		final double[] range = Normalization.percentiles( input );
+
+		final List< StarConvexPolyhedron > winners = new ArrayList<>();
+		for ( final Interval core : cores( input ) )
+		{
+			final Interval block = Intervals.intersect( Intervals.expand( core, blockOverlap ), input );
+			final List< StarConvexPolyhedron > candidates = predict( input, block, core, range );
+			if ( null == candidates )
+				return null;
+			winners.addAll( PolyhedronNMS.nms( candidates, nmsThresh ) );
+		}
+		return PolyhedronNMS.nms( winners, nmsThresh );
+	}
+
+	/**
+	 * Splits the volume in non-overlapping cores, that each block extends by
+	 * the overlap.
+	 */
+	private List< Interval > cores( final Interval input )
+	{
+		final int coreSize = blockSize - 2 * blockOverlap;
+		final long[][] starts = new long[ 3 ][];
+		for ( int d = 0; d < 3; d++ )
+		{
+			final int n = ( int ) ( ( input.dimension( d ) + coreSize - 1 ) / coreSize );
+			starts[ d ] = new long[ n ];
+			for ( int i = 0; i < n; i++ )
+				starts[ d ][ i ] = input.min( d ) + ( long ) i * coreSize;
+		}
+
+		final List< Interval > cores = new ArrayList<>();
+		for ( final long x : starts[ 0 ] )
+			for ( final long y : starts[ 1 ] )
+				for ( final long z : starts[ 2 ] )
+					cores.add( new FinalInterval(
+							new long[] { x, y, z },
+							new long[] {
+									Math.min( input.max( 0 ), x + coreSize - 1 ),
+									Math.min( input.max( 1 ), y + coreSize - 1 ),
+									Math.min( input.max( 2 ), z + coreSize - 1 ) } ) );
+		return cores;
+	}
+
+	/**
+	 * Runs the CNN on one block and returns the candidates whose center is in
+	 * the core of the block.
+	 */
+	private < T extends RealType< T > > List< StarConvexPolyhedron > predict( final RandomAccessibleInterval< T > input, final Interval block, final Interval core, final double[] range )
+	{
+		// Normalized copy of the block.
+		final Img< FloatType > copy = Normalization.normalize( Views.interval( input, block ), range );
+		final int nTiles = ( int ) Math.ceil( ( double ) Intervals.numElements( block ) / MAX_TILE_SIZE );
+
+		final Map< String, Object > paramsCNN = new HashMap<>();
+		paramsCNN.put( "normalizeInput", false );
+		paramsCNN.put( "clip", false );
+		paramsCNN.put( "batchSize", 1 );
+		paramsCNN.put( "showProgressDialog", false );
+		paramsCNN.put( "blockMultiple", sizeDivBy );
+		paramsCNN.put( "overlap", blockOverlap );
+		paramsCNN.put( "nTiles", nTiles );
+		paramsCNN.put( "modelFile", modelFile );
+
+		final Dataset prediction;
+		try
+		{
+			final DatasetService datasetService = context.getService( DatasetService.class );
+			final CommandService commandService = context.getService( CommandService.class );
+			final ImgPlus< FloatType > imgPlus = new ImgPlus<>( copy, "block", new AxisType[] { Axes.X, Axes.Y, Axes.Z } );
+			paramsCNN.put( "input", datasetService.create( imgPlus ) );
+			final Future< CommandModule > futureCNN = commandService.run( GenericNetwork.class, false, paramsCNN );
+			prediction = ( Dataset ) futureCNN.get().getOutput( "output" );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			errorMessage = e.getMessage();
+			return null;
+		}
+
+		final int[] dims = new int[] {
+				prediction.dimensionIndex( Axes.X ),
+				prediction.dimensionIndex( Axes.Y ),
+				prediction.dimensionIndex( Axes.Z ) };
+		final int cDim = prediction.dimensionIndex( Axes.CHANNEL );
+		if ( cDim < 0 || prediction.dimension( cDim ) != rays.nRays + 1 )
+		{
+			errorMessage = "The model does not predict " + rays.nRays + " rays. Check the number of rays.";
+			return null;
+		}
+
+		// The model may predict on a coarser grid than the input.
+		final long[] grid = new long[ 3 ];
+		final long[] predSize = new long[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			predSize[ d ] = prediction.dimension( dims[ d ] );
+			grid[ d ] = Math.max( 1L, Math.round( ( double ) block.dimension( d ) / predSize[ d ] ) );
+		}
+
+		@SuppressWarnings( "unchecked" )
+		final RandomAccessibleInterval< FloatType > pred = ( RandomAccessibleInterval< FloatType > ) prediction.getImgPlus();
+		final RandomAccess< FloatType > ra = pred.randomAccess();
+		final List< StarConvexPolyhedron > candidates = new ArrayList<>();
+		final long[] pos = new long[ 3 ];
+		for ( long gz = 0; gz < predSize[ 2 ]; gz++ )
+		{
+			for ( long gy = 0; gy < predSize[ 1 ]; gy++ )
+			{
+				for ( long gx = 0; gx < predSize[ 0 ]; gx++ )
+				{
+					pos[ 0 ] = block.min( 0 ) + gx * grid[ 0 ];
+					pos[ 1 ] = block.min( 1 ) + gy * grid[ 1 ];
+					pos[ 2 ] = block.min( 2 ) + gz * grid[ 2 ];
+					if ( !inside( pos, core ) )
+						continue;
+
+					ra.setPosition( gx, dims[ 0 ] );
+					ra.setPosition( gy, dims[ 1 ] );
+					ra.setPosition( gz, dims[ 2 ] );
+					ra.setPosition( 0, cDim );
+					final float prob = ra.get().get();
+					if ( prob <= probThresh )
+						continue;
+
+					final float[] dist = new float[ rays.nRays ];
+					for ( int r = 0; r < rays.nRays; r++ )
+					{
+						ra.setPosition( r + 1, cDim );
+						dist[ r ] = Math.max( 1e-3f, ra.get().get() );
+					}
+					candidates.add( new StarConvexPolyhedron( rays, pos[ 0 ], pos[ 1 ], pos[ 2 ], dist, prob ) );
+				}
+			}
+		}
+		return candidates;
+	}
+
+	private static boolean inside( final long[] pos, final Interval interval )
+	{
+		for ( int d = 0; d < pos.length; d++ )
+			if ( pos[ d ] < interval.min( d ) || pos[ d ] > interval.max( d ) )
+				return false;
+		return true;
+	}
+}
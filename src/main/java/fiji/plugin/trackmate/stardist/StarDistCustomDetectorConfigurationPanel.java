@@ -38,25 +38,37 @@ import java.io.File;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.swing.JButton;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
 import javax.swing.JSlider;
+import javax.swing.JTable;
 import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.detection.DetectionUtils;
 import fiji.plugin.trackmate.detection.SpotDetectorFactory;
 import fiji.plugin.trackmate.gui.GuiUtils;
 import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
 import fiji.plugin.trackmate.stardist.util.FileChooser;
 import fiji.plugin.trackmate.stardist.util.FileChooser.DialogType;
 import fiji.plugin.trackmate.util.DetectionPreview;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.view.Views;
 
 public class StarDistCustomDetectorConfigurationPanel extends ConfigurationPanel
 {
@@ -67,6 +79,12 @@ public class StarDistCustomDetectorConfigurationPanel extends ConfigurationPanel
 
 	private static final String TITLE = StarDistCustomDetectorFactory.NAME;
 
+	/** Score thresholds tested by the threshold sweep. */
+	private static final double[] SWEEP_SCORE_THRESHOLDS = new double[] { 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9 };
+
+	/** Overlap thresholds tested by the threshold sweep. */
+	private static final double[] SWEEP_OVERLAP_THRESHOLDS = new double[] { 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7 };
+
 	private static final FileFilter fileFilter = new FileNameExtensionFilter( "Models stored as zip files.", "zip" );
 
 	private final JSlider sliderChannel;
@@ -79,11 +97,15 @@ public class StarDistCustomDetectorConfigurationPanel extends ConfigurationPanel
 
 	private final JFormattedTextField ftfOverlapThreshold;
 
+	private final StarDistOptionsPanel optionsPanel;
+
+	private final JButton btnSweep;
+
 	public StarDistCustomDetectorConfigurationPanel( final Settings settings, final Model model )
 	{
 		final GridBagLayout gridBagLayout = new GridBagLayout();
 		gridBagLayout.columnWidths = new int[] { 200, 0, 32 };
-		gridBagLayout.rowHeights = new int[] { 0, 84, 0, 27, 0, 0, 0, 150 };
+		gridBagLayout.rowHeights = new int[] { 0, 84, 0, 27, 0, 0, 0, 0, 0, 0, 150 };
 		gridBagLayout.columnWeights = new double[] { 1.0, 1.0, 0.0 };
 		setLayout( gridBagLayout );
 
@@ -227,6 +249,54 @@ public class StarDistCustomDetectorConfigurationPanel extends ConfigurationPanel
 		gbcOverlap.gridy = 6;
 		add( ftfOverlapThreshold, gbcOverlap );
 
+		/*
+		 * Detection options.
+		 */
+
+		optionsPanel = new StarDistOptionsPanel();
+		final GridBagConstraints gbcOptionsPanel = new GridBagConstraints();
+		gbcOptionsPanel.gridwidth = 3;
+		gbcOptionsPanel.fill = GridBagConstraints.HORIZONTAL;
+		gbcOptionsPanel.gridx = 0;
+		gbcOptionsPanel.gridy = 7;
+		add( optionsPanel, gbcOptionsPanel );
+
+		/*
+		 * Threshold sweep.
+		 */
+
+		final JLabel lblSweep = new JLabel( "Threshold sweep:" );
+		lblSweep.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLblSweep = new GridBagConstraints();
+		gbcLblSweep.anchor = GridBagConstraints.EAST;
+		gbcLblSweep.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblSweep.gridx = 0;
+		gbcLblSweep.gridy = 8;
+		add( lblSweep, gbcLblSweep );
+
+		btnSweep = new JButton( "Sweep" );
+		btnSweep.setFont( FONT );
+		btnSweep.setToolTipText( "<html>Runs the model once on the current frame and reports <br>the number of spots for a grid of score and overlap thresholds. <br>Select a row of the table to use its thresholds.</html>" );
+		final GridBagConstraints gbcBtnSweep = new GridBagConstraints();
+		gbcBtnSweep.gridwidth = 2;
+		gbcBtnSweep.insets = new Insets( 5, 5, 5, 5 );
+		gbcBtnSweep.gridx = 1;
+		gbcBtnSweep.gridy = 8;
+		add( btnSweep, gbcBtnSweep );
+
+		/*
+		 * Region preview.
+		 */
+
+		final GridBagConstraints gbcRegionPreview = new GridBagConstraints();
+		gbcRegionPreview.gridwidth = 3;
+		gbcRegionPreview.fill = GridBagConstraints.HORIZONTAL;
+		gbcRegionPreview.insets = new Insets( 5, 5, 5, 5 );
+		gbcRegionPreview.gridx = 0;
+		gbcRegionPreview.gridy = 9;
+		final RegionPreview regionPreview = new RegionPreview( settings, new StarDistCustomDetectorFactory<>(), () -> getSettings() );
+		add( regionPreview.getPanel(), gbcRegionPreview );
+
 		/*
 		 * Preview.
 		 */
@@ -237,7 +307,7 @@ public class StarDistCustomDetectorConfigurationPanel extends ConfigurationPanel
 		gbcBtnPreview.anchor = GridBagConstraints.SOUTH;
 		gbcBtnPreview.insets = new Insets( 5, 5, 5, 5 );
 		gbcBtnPreview.gridx = 0;
-		gbcBtnPreview.gridy = 7;
+		gbcBtnPreview.gridy = 10;
 
 		final DetectionPreview detectionPreview = DetectionPreview.create()
 				.model( model )
@@ -279,6 +349,7 @@ public class StarDistCustomDetectorConfigurationPanel extends ConfigurationPanel
 		}
 
 		btnBrowse.addActionListener( l -> browse() );
+		btnSweep.addActionListener( l -> sweep( settings ) );
 	}
 
 	@Override
@@ -292,6 +363,7 @@ public class StarDistCustomDetectorConfigurationPanel extends ConfigurationPanel
 		settings.put( KEY_SCORE_THRESHOLD, scoreThreshold );
 		final double overlapThreshold = ( ( Number ) ftfOverlapThreshold.getValue() ).doubleValue();
 		settings.put( KEY_OVERLAP_THRESHOLD, overlapThreshold );
+		optionsPanel.putSettings( settings );
 		return settings;
 	}
 
@@ -302,6 +374,7 @@ public class StarDistCustomDetectorConfigurationPanel extends ConfigurationPanel
 		modelFileTextField.setText( ( String ) settings.get( KEY_MODEL_FILEPATH ) );
 		ftfScoreThreshold.setValue( settings.get( KEY_SCORE_THRESHOLD ) );
 		ftfOverlapThreshold.setValue( settings.get( KEY_OVERLAP_THRESHOLD ) );
+		optionsPanel.setSettings( settings );
 	}
 
 	@Override
@@ -314,6 +387,89 @@ public class StarDistCustomDetectorConfigurationPanel extends ConfigurationPanel
 		return new StarDistCustomDetectorFactory();
 	}
 
+	/**
+	 * Runs the threshold sweep on the current frame of the image, in a
+	 * separate thread, and shows the results in a table.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private void sweep( final Settings settings )
+	{
+		final ImagePlus imp = settings.imp;
+		if ( null == imp )
+			return;
+
+		final Map< String, Object > detectionSettings = getSettings();
+		final int[] channels;
+		try
+		{
+			channels = StarDistDetectorFactory.getTargetChannels( detectionSettings );
+		}
+		catch ( final NumberFormatException e )
+		{
+			showSweepError( "Cannot parse the channel list: " + e.getMessage() );
+			return;
+		}
+		final StarDistRunnerBase runner = new StarDistCustomDetectorFactory().createRunner( detectionSettings );
+		runner.setQualityMode( StarDistDetectorOptions.fromSettings( detectionSettings ).qualityMode );
+		btnSweep.setEnabled( false );
+		new Thread( () -> {
+			try
+			{
+				if ( !runner.initialize() )
+				{
+					showSweepError( runner.getErrorMessage() );
+					return;
+				}
+				final ImgPlus img = TMUtils.rawWraps( imp );
+				final ImgPlus imFrame = TMUtils.hyperSlice( img, channels[ 0 ], imp.getFrame() - 1 );
+				final RandomAccessibleInterval input = DetectionUtils.is2D( imFrame )
+						? StarDistDetectorFactory.channelView( img, channels, imp.getFrame() - 1 )
+						: Views.hyperSlice( imFrame, 2, imp.getSlice() - 1 );
+				final List< SweepResult > results = runner.sweep( input, SWEEP_SCORE_THRESHOLDS, SWEEP_OVERLAP_THRESHOLDS );
+				if ( null == results )
+					showSweepError( runner.getErrorMessage() );
+				else
+					SwingUtilities.invokeLater( () -> showSweep( results ) );
+			}
+			finally
+			{
+				SwingUtilities.invokeLater( () -> btnSweep.setEnabled( true ) );
+			}
+		}, "StarDist threshold sweep" ).start();
+	}
+
+	private void showSweepError( final String message )
+	{
+		SwingUtilities.invokeLater( () -> JOptionPane.showMessageDialog( this, message, TITLE, JOptionPane.ERROR_MESSAGE ) );
+	}
+
+	private void showSweep( final List< SweepResult > results )
+	{
+		final String[] columns = new String[] { "Score threshold", "Overlap threshold", "N spots", "Mean quality", "Median quality" };
+		final Object[][] data = new Object[ results.size() ][];
+		for ( int i = 0; i < data.length; i++ )
+		{
+			final SweepResult result = results.get( i );
+			data[ i ] = new Object[] {
+					result.probThresh,
+					result.nmsThresh,
+					result.count(),
+					THRESHOLD_FORMAT.format( result.meanQuality() ),
+					THRESHOLD_FORMAT.format( result.qualityQuantile( 0.5 ) ) };
+		}
+		final JTable table = new JTable( data, columns );
+		table.setDefaultEditor( Object.class, null );
+		table.setSelectionMode( ListSelectionModel.SINGLE_SELECTION );
+		table.getSelectionModel().addListSelectionListener( e -> {
+			final int row = table.getSelectedRow();
+			if ( e.getValueIsAdjusting() || row < 0 )
+				return;
+			ftfScoreThreshold.setValue( results.get( row ).probThresh );
+			ftfOverlapThreshold.setValue( results.get( row ).nmsThresh );
+		} );
+		JOptionPane.showMessageDialog( this, new JScrollPane( table ), TITLE + " - threshold sweep", JOptionPane.PLAIN_MESSAGE );
+	}
+
 	protected void browse()
 	{
 		btnBrowse.setEnabled( false );
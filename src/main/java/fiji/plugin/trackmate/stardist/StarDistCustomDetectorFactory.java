@@ -21,8 +21,6 @@
  */
 package fiji.plugin.trackmate.stardist;
 
-import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
-
 import java.io.File;
 import java.util.Map;
 
@@ -31,12 +29,8 @@ import org.scijava.plugin.Plugin;
 
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
-import fiji.plugin.trackmate.detection.SpotDetector;
 import fiji.plugin.trackmate.detection.SpotDetectorFactory;
 import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
-import fiji.plugin.trackmate.util.TMUtils;
-import net.imagej.ImgPlus;
-import net.imglib2.Interval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 
@@ -73,7 +67,8 @@ public class StarDistCustomDetectorFactory< T extends RealType< T > & NativeType
 	public static final String INFO_TEXT = "<html>"
 			+ "This detector relies on StarDist to detect cells, using a custom model stored in a file."
 			+ "<p>"
-			+ "It only works for 2D images."
+			+ "On 3D images, the 2D model runs on each Z slice and the polygons of "
+			+ "adjacent slices are linked into 3D objects. "
 			+ "And for this detector to work, the update sites StartDist and CSBDeep "
 			+ "must be activated in your Fiji installation."
 			+ "<p>"
@@ -87,29 +82,19 @@ public class StarDistCustomDetectorFactory< T extends RealType< T > & NativeType
 			+ "</html>";
 
 	@Override
-	public SpotDetector< T > getDetector( final ImgPlus< T > img, final Map< String, Object > settings, final Interval interval, final int frame )
+	protected StarDistRunnerBase createRunner( final Map< String, Object > settings )
 	{
 		final String modelFilePath = ( String ) settings.get( KEY_MODEL_FILEPATH );
 		final File modelFile = new File( modelFilePath );
 		final double probThresh = ( double ) settings.get( KEY_SCORE_THRESHOLD );
 		final double nmsThresh = ( double ) settings.get( KEY_OVERLAP_THRESHOLD );
-		final StarDistRunnerCustom starDistRunner = new StarDistRunnerCustom( modelFile, probThresh, nmsThresh );
-		if ( !starDistRunner.initialize() )
-		{
-			System.err.println( starDistRunner.getErrorMessage() );
-			return null;
-		}
-
-		final double[] calibration = TMUtils.getSpatialCalibration( img );
-		final int channel = ( Integer ) settings.get( KEY_TARGET_CHANNEL ) - 1;
-		final ImgPlus< T > imFrame = TMUtils.hyperSlice( img, channel, frame );
-		final StarDistDetector< T > detector = new StarDistDetector<>( starDistRunner, imFrame, interval, calibration );
-		return detector;
+		return new StarDistRunnerCustom( modelFile, probThresh, nmsThresh );
 	}
 
 	@Override
 	public ConfigurationPanel getDetectorConfigurationPanel( final Settings settings, final Model model )
 	{
+		setTrackMateSettings( settings );
 		return new StarDistCustomDetectorConfigurationPanel( settings, model );
 	}
 
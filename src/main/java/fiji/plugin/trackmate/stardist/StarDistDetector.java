@@ -21,29 +21,38 @@
  */
 package fiji.plugin.trackmate.stardist;
 
-import java.awt.Polygon;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.scijava.Cancelable;
 
-import de.csbdresden.stardist.Candidates;
 import fiji.plugin.trackmate.Spot;
-import fiji.plugin.trackmate.SpotRoi;
 import fiji.plugin.trackmate.detection.DetectionUtils;
 import fiji.plugin.trackmate.detection.SpotDetector;
-import ij.ImagePlus;
-import ij.gui.PolygonRoi;
-import ij.measure.Measurements;
+import fiji.plugin.trackmate.stardist.FrameMemory.Detection;
+import fiji.plugin.trackmate.stardist.util.ArrayPool;
+import fiji.plugin.trackmate.stardist.util.PolygonSimplification;
+import fiji.plugin.trackmate.stardist.util.Prefetcher;
+import fiji.plugin.trackmate.stardist.util.Resampling;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Pair;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
-public class StarDistDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >
+public class StarDistDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >, Cancelable
 {
 
 	private final static String BASE_ERROR_MESSAGE = "StarDistDetector: ";
@@ -56,6 +65,8 @@ public class StarDistDetector< T extends RealType< T > & NativeType< T > > imple
 
 	protected final List< Spot > spots = new ArrayList<>();
 
+	protected final List< Detection > detections = new ArrayList<>();
+
 	protected String baseErrorMessage;
 
 	protected String errorMessage;
@@ -64,30 +75,146 @@ public class StarDistDetector< T extends RealType< T > & NativeType< T > > imple
 
 	protected final StarDistRunnerBase stardistRunner;
 
+	protected final int frame;
+
+	protected final FrameMemory memory;
+
+	protected final StarDistDetectorOptions options;
+
+	protected final LabelImageWriter labels;
+
+	protected final PredictionWriter predictions;
+
+	protected SpotListener spotListener;
+
+	protected DetectionJournal journal;
+
+	protected Prefetcher< ArrayImg< FloatType, FloatArray > > prefetcher;
+
+	protected Consumer< Boolean > onProcessed;
+
+	protected volatile String cancelReason;
+
 	public StarDistDetector(
 			final StarDistRunnerBase stardistRunner,
 			final RandomAccessible< T > img,
 			final Interval interval,
 			final double[] calibration )
+	{
+		this( stardistRunner, img, interval, calibration, 0, null, StarDistDetectorOptions.DEFAULT );
+	}
+
+	/**
+	 * Creates a StarDist detector for one frame.
+	 *
+	 * @param stardistRunner
+	 *            the StarDist runner to use.
+	 * @param img
+	 *            the 2D image to process. Multi-channel input is passed as a
+	 *            3D image with the channels as last dimension.
+	 * @param interval
+	 *            the interval in the image to process.
+	 * @param calibration
+	 *            the spatial calibration of the image.
+	 * @param frame
+	 *            the frame this detector processes.
+	 * @param memory
+	 *            the memory of the last frame processed, shared across the
+	 *            detectors of a detection run. Can be <code>null</code>, in
+	 *            which case the options that need it are ignored.
+	 * @param options
+	 *            the detection options.
+	 */
+	public StarDistDetector(
+			final StarDistRunnerBase stardistRunner,
+			final RandomAccessible< T > img,
+			final Interval interval,
+			final double[] calibration,
+			final int frame,
+			final FrameMemory memory,
+			final StarDistDetectorOptions options )
+	{
+		this( stardistRunner, img, interval, calibration, frame, memory, options, null, null );
+	}
+
+	/**
+	 * Creates a StarDist detector for one frame, that can also write the label
+	 * image and the CNN predictions of the frame.
+	 *
+	 * @param stardistRunner
+	 *            the StarDist runner to use.
+	 * @param img
+	 *            the 2D image to process. Multi-channel input is passed as a
+	 *            3D image with the channels as last dimension.
+	 * @param interval
+	 *            the interval in the image to process.
+	 * @param calibration
+	 *            the spatial calibration of the image.
+	 * @param frame
+	 *            the frame this detector processes.
+	 * @param memory
+	 *            the memory of the last frame processed, shared across the
+	 *            detectors of a detection run. Can be <code>null</code>, in
+	 *            which case the options that need it are ignored.
+	 * @param options
+	 *            the detection options.
+	 * @param labels
+	 *            the writer the label image of the frame is written to once
+	 *            detection is done. Can be <code>null</code>, in which case no
+	 *            label image is written.
+	 * @param predictions
+	 *            the writer the probability and distance maps of each CNN run
+	 *            are written to. Can be <code>null</code>, in which case they
+	 *            are not written.
+	 */
+	public StarDistDetector(
+			final StarDistRunnerBase stardistRunner,
+			final RandomAccessible< T > img,
+			final Interval interval,
+			final double[] calibration,
+			final int frame,
+			final FrameMemory memory,
+			final StarDistDetectorOptions options,
+			final LabelImageWriter labels,
+			final PredictionWriter predictions )
 	{
 		this.stardistRunner = stardistRunner;
 		this.img = img;
 		this.interval = DetectionUtils.squeeze( interval );
 		this.calibration = calibration;
+		this.frame = frame;
+		this.memory = memory;
+		this.options = options;
+		this.labels = labels;
+		this.predictions = predictions;
 		this.baseErrorMessage = BASE_ERROR_MESSAGE;
 	}
 
 	@Override
 	public boolean checkInput()
+	{
+		if ( checkImage() )
+			return true;
+		if ( null != onProcessed )
+			onProcessed.accept( Boolean.FALSE );
+		return false;
+	}
+
+	private boolean checkImage()
 	{
 		if ( null == img )
 		{
 			errorMessage = baseErrorMessage + "Image is null.";
 			return false;
 		}
-		if ( img.numDimensions() != 2 )
+		if ( img.numDimensions() != 2 && img.numDimensions() != 3 )
 		{
-			errorMessage = baseErrorMessage + "Image must be 2D, got " + img.numDimensions() + "D.";
+			errorMessage = baseErrorMessage + "Image must be 2D, possibly with channels, got " + img.numDimensions() + "D.";
+			return false;
+		}
+		if ( interval.numDimensions() != img.numDimensions() )
+		{
+			errorMessage = baseErrorMessage + "Interval must be " + img.numDimensions() + "D, got " + interval.numDimensions() + "D.";
 			return false;
 		}
 		return true;
@@ -95,20 +222,319 @@ public class StarDistDetector< T extends RealType< T > & NativeType< T > > imple
 
 	@Override
 	public boolean process()
+	{
+		boolean ok = false;
+		try
+		{
+			ok = processFrame();
+			return ok;
+		}
+		finally
+		{
+			if ( null != onProcessed )
+				onProcessed.accept( Boolean.valueOf( ok ) );
+		}
+	}
+
+	private boolean processFrame()
 	{
 		final long start = System.currentTimeMillis();
 		spots.clear();
+		detections.clear();
+		if ( isCanceled() )
+		{
+			errorMessage = baseErrorMessage + "Canceled. " + cancelReason;
+			return false;
+		}
+
+		// Frame completed by a previous run.
+		final List< Detection > journaled = ( null == journal ) ? null : journal.get( frame );
+		if ( null != journaled )
+		{
+			detections.addAll( journaled );
+			for ( final Detection detection : journaled )
+				spots.add( detection.toSpot() );
+			if ( null != memory )
+				memory.store( frame, interval, null, journaled );
+			if ( !finishFrame() )
+				return false;
+			this.processingTime = System.currentTimeMillis() - start;
+			return true;
+		}
 
-		// Properly set the image to process.
-		final RandomAccessibleInterval< T > crop = Views.interval( img, interval );
-		final long[] min = new long[ interval.numDimensions() ];
-		interval.min( min );
+		// Pre-screen the frame.
+		Long hash = null;
+		if ( options.preScreen && null != memory )
+		{
+			final RandomAccessibleInterval< T > input = Views.zeroMin( Views.interval( img, interval ) );
+			final PreScreenStats stats = computePreScreenStats( input );
+			if ( stats.std <= options.preScreenMaxStd )
+			{
+				// No signal. Skip the frame.
+				memory.store( frame, interval, null, Collections.emptyList() );
+				if ( !finishFrame() )
+					return false;
+				this.processingTime = System.currentTimeMillis() - start;
+				return true;
+			}
+
+			hash = Long.valueOf( stats.hash );
+			final List< Detection > identical = memory.getIdentical( interval, stats.hash );
+			if ( identical != null )
+			{
+				// Same content as the last frame. Reuse its detections.
+				detections.addAll( identical );
+				for ( final Detection detection : identical )
+					spots.add( detection.toSpot() );
+				memory.store( frame, interval, hash, identical );
+				if ( !finishFrame() )
+					return false;
+				this.processingTime = System.currentTimeMillis() - start;
+				return true;
+			}
+		}
+
+		// Launch StarDist on the whole frame, or around previous detections.
+		final List< Detection > previous = ( null == memory || options.isKeyFrame( frame ) )
+				? null
+				: memory.getPrevious( frame, interval );
+		if ( null == previous )
+		{
+			if ( !detect( interval, detections ) )
+				return false;
+		}
+		else
+		{
+			/*
+			 * Objects crossing the edge of a window are detected in its
+			 * context, and kept by the window they are centered in.
+			 */
+			final int context = Math.max( options.halo, maxObjectSize( previous, calibration ) );
+			for ( final Interval window : roiWindows( previous, calibration, options.roiPadding, interval ) )
+				if ( !detect( window, context, detections ) )
+					return false;
+		}
+
+		if ( isCanceled() )
+		{
+			errorMessage = baseErrorMessage + "Canceled. " + cancelReason;
+			return false;
+		}
+
+		// Create spots from detections.
+		for ( final Detection detection : detections )
+			spots.add( detection.toSpot() );
+		if ( null != memory )
+			memory.store( frame, interval, hash, detections );
+		if ( !finishFrame() )
+			return false;
+
+		final long end = System.currentTimeMillis();
+		this.processingTime = end - start;
+
+		return true;
+	}
+
+	/**
+	 * Sets the listener the spots of this frame are handed to as soon as the
+	 * detection is done.
+	 *
+	 * @param spotListener
+	 *            the listener. Can be <code>null</code>.
+	 */
+	public void setSpotListener( final SpotListener spotListener )
+	{
+		this.spotListener = spotListener;
+	}
+
+	/**
+	 * Sets the action run once this detector is done with its frame: after
+	 * {@link #process()}, or after {@link #checkInput()} failed, since
+	 * {@link #process()} is not called then. It receives whether the frame
+	 * succeeded. The factory uses it to release the resources of a detection
+	 * run after its last frame, or after a frame failed or was canceled.
+	 *
+	 * @param onProcessed
+	 *            the action. Can be <code>null</code>.
+	 */
+	public void setOnProcessed( final Consumer< Boolean > onProcessed )
+	{
+		this.onProcessed = onProcessed;
+	}
+
+	/**
+	 * Sets the journal the detections of this frame are appended to, and
+	 * read from if this frame was completed by a previous run.
+	 *
+	 * @param journal
+	 *            the journal. Can be <code>null</code>.
+	 */
+	public void setJournal( final DetectionJournal journal )
+	{
+		this.journal = journal;
+	}
+
+	/**
+	 * Sets the prefetcher that reads the input of whole frames ahead of time.
+	 * The CNN normalizes it as it does any other input. It is only used when
+	 * the whole frame is processed at native resolution on a single level.
+	 *
+	 * @param prefetcher
+	 *            the prefetcher. Can be <code>null</code>.
+	 */
+	public void setPrefetcher( final Prefetcher< ArrayImg< FloatType, FloatArray > > prefetcher )
+	{
+		this.prefetcher = prefetcher;
+	}
+
+	/**
+	 * Writes the outputs of this frame once its detections are known, then
+	 * hands its spots to the spot listener.
+	 *
+	 * @return <code>true</code> if the outputs were written.
+	 */
+	private boolean finishFrame()
+	{
+		if ( !writeLabels() || !writeJournal() || !checkPredictions() )
+			return false;
+		if ( null != spotListener )
+			spotListener.spotsDetected( frame, Collections.unmodifiableList( spots ) );
+		return true;
+	}
+
+	/**
+	 * Reports a failed write of the predictions queued so far, if a
+	 * prediction writer was set. The writes of this frame are not waited
+	 * for: they go on while the next frame is processed, and are drained
+	 * when the detection run ends.
+	 *
+	 * @return <code>true</code> if no write failed so far.
+	 */
+	private boolean checkPredictions()
+	{
+		if ( null == predictions || null == predictions.getErrorMessage() )
+			return true;
+		errorMessage = baseErrorMessage + predictions.getErrorMessage();
+		return false;
+	}
+
+	/**
+	 * Appends the current detections to the journal, if a journal was set
+	 * and this frame is not in it yet.
+	 *
+	 * @return <code>true</code> if the detections were journaled or not
+	 *         needed.
+	 */
+	private boolean writeJournal()
+	{
+		if ( null == journal || null != journal.get( frame ) )
+			return true;
+		try
+		{
+			journal.append( frame, detections );
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = baseErrorMessage + "Could not write the journal:\n" + e.getMessage();
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the label image of the current detections, if a label image
+	 * writer was set.
+	 *
+	 * @return <code>true</code> if the label image was written or not
+	 *         needed.
+	 */
+	private boolean writeLabels()
+	{
+		if ( null == labels )
+			return true;
+		try
+		{
+			labels.write( frame, detections, calibration );
+			return true;
+		}
+		catch ( final N5Exception e )
+		{
+			errorMessage = baseErrorMessage + "Could not write the label image:\n" + e.getMessage();
+			return false;
+		}
+	}
+
+	/**
+	 * Runs StarDist on the specified region of the image, and adds the
+	 * resulting detections to the specified list.
+	 *
+	 * @param region
+	 *            the region to process, in image pixel coordinates.
+	 * @param detections
+	 *            the list to add detections to.
+	 * @return <code>true</code> if StarDist ran successfully.
+	 */
+	protected boolean detect( final Interval region, final List< Detection > detections )
+	{
+		return detect( region, options.halo, detections );
+	}
+
+	/**
+	 * Runs StarDist on the specified region of the image expanded by the
+	 * specified halo, and adds the resulting detections centered in the
+	 * region to the specified list.
+	 *
+	 * @param region
+	 *            the region to process, in image pixel coordinates.
+	 * @param halo
+	 *            the width, in pixels, of the context read around the region.
+	 * @param detections
+	 *            the list to add detections to.
+	 * @return <code>true</code> if StarDist ran successfully.
+	 */
+	protected boolean detect( final Interval region, final int halo, final List< Detection > detections )
+	{
+		// Properly set the image to process, with context around the region.
+		final Interval padded = withHalo( region, halo, ( img instanceof Interval ) ? ( Interval ) img : null );
+		final RandomAccessibleInterval< T > crop = Views.interval( img, withChannels( padded ) );
 		final RandomAccessibleInterval< T > input = Views.zeroMin( crop );
 
-		// Launch StarDist.
-		final Pair< Candidates, RandomAccessibleInterval< FloatType > > output = stardistRunner.run( input );
+		// Launch StarDist, possibly at a lower resolution.
+		final double scale = options.getInferenceScale( calibration[ 0 ] );
+		stardistRunner.setQualityMode( options.qualityMode );
+		stardistRunner.setExcludeBoundary( options.excludeBoundary );
+		if ( null != predictions )
+			stardistRunner.setPredictionListener( ( prob, dist, level, levelScale ) -> predictions.write( frame, padded, level, scale * levelScale, prob, dist ) );
+		final boolean prefetched = null != prefetcher
+				&& scale >= 1.
+				&& options.pyramidLevels <= 1
+				&& Intervals.equals( region, interval );
+		final ArrayImg< FloatType, FloatArray > downsampled = ( scale < 1. )
+				? Resampling.downsample( input, scale )
+				: null;
+		final List< StarConvexPolygon > polygons;
+		try
+		{
+			if ( prefetched )
+				polygons = runPrefetched( input );
+			else if ( null != downsampled )
+				polygons = runStarDist( downsampled );
+			else
+				polygons = runStarDist( input );
+		}
+		catch ( final N5Exception e )
+		{
+			errorMessage = baseErrorMessage + e.getMessage();
+			return false;
+		}
+		finally
+		{
+			// Polygons and quality are computed, the input can be reused.
+			if ( null != downsampled )
+				ArrayPool.release( downsampled );
+		}
 
-		if ( null == output )
+		if ( null == polygons )
 		{
 			/*
 			 * Most likely we got interrupted by the user. Don't mind it and
@@ -118,34 +544,324 @@ public class StarDistDetector< T extends RealType< T > & NativeType< T > > imple
 			return false;
 		}
 
-		final Candidates polygons = output.getA();
-		final RandomAccessibleInterval< FloatType > probaImg = output.getB();
-		final ImagePlus proba = ImageJFunctions.wrap( probaImg, "proba" );
+		// Create detections, scaled back to native resolution.
+		for ( final StarConvexPolygon polygon : polygons )
+		{
+			final double[] xpix = new double[ polygon.x.length ];
+			final double[] ypix = new double[ polygon.y.length ];
+			for ( int i = 0; i < xpix.length; i++ )
+			{
+				xpix[ i ] = padded.min( 0 ) + Resampling.toNative( polygon.x[ i ], scale );
+				ypix[ i ] = padded.min( 1 ) + Resampling.toNative( polygon.y[ i ], scale );
+			}
+
+			// Objects centered in the halo belong to the neighbouring region.
+			if ( halo > 0 && !isCenteredIn( xpix, ypix, region ) )
+				continue;
+
+			// Possibly drop vertices, in pixel units.
+			final double[][] simplified = PolygonSimplification.simplify( xpix, ypix, options.simplifyTolerance );
+			final double[] xpoly = simplified[ 0 ];
+			final double[] ypoly = simplified[ 1 ];
+			for ( int i = 0; i < xpoly.length; i++ )
+			{
+				xpoly[ i ] *= calibration[ 0 ];
+				ypoly[ i ] *= calibration[ 1 ];
+			}
+			detections.add( new Detection( xpoly, ypoly, polygon.quality ) );
+		}
+		return true;
+	}
+
+	/**
+	 * Expands a region by the specified halo along X and Y, clipped to the
+	 * specified bounds. Other dimensions are left unchanged.
+	 *
+	 * @param region
+	 *            the region.
+	 * @param halo
+	 *            the halo width, in pixels.
+	 * @param bounds
+	 *            the bounds to clip to, or <code>null</code> to not clip.
+	 * @return the expanded region, or the region itself if the halo is 0.
+	 */
+	public static Interval withHalo( final Interval region, final long halo, final Interval bounds )
+	{
+		if ( halo <= 0 )
+			return region;
+		final long[] min = Intervals.minAsLongArray( region );
+		final long[] max = Intervals.maxAsLongArray( region );
+		for ( int d = 0; d < 2; d++ )
+		{
+			min[ d ] -= halo;
+			max[ d ] += halo;
+			if ( null != bounds )
+			{
+				min[ d ] = Math.max( min[ d ], bounds.min( d ) );
+				max[ d ] = Math.min( max[ d ], bounds.max( d ) );
+			}
+		}
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * Returns <code>true</code> if the mean of the specified vertices, in
+	 * pixels, is in a pixel of the region. Adjacent regions share no pixel,
+	 * so an object is kept by exactly one of them.
+	 */
+	private static boolean isCenteredIn( final double[] xpix, final double[] ypix, final Interval region )
+	{
+		double cx = 0.;
+		double cy = 0.;
+		for ( int i = 0; i < xpix.length; i++ )
+		{
+			cx += xpix[ i ] / xpix.length;
+			cy += ypix[ i ] / ypix.length;
+		}
+		return cx >= region.min( 0 ) - 0.5 && cx < region.max( 0 ) + 0.5
+				&& cy >= region.min( 1 ) - 0.5 && cy < region.max( 1 ) + 0.5;
+	}
+
+	/**
+	 * Extends a 2D region with the channel dimension of the image, if it has
+	 * one.
+	 */
+	private Interval withChannels( final Interval region )
+	{
+		if ( region.numDimensions() >= interval.numDimensions() )
+			return region;
+		return new FinalInterval(
+				new long[] { region.min( 0 ), region.min( 1 ), interval.min( 2 ) },
+				new long[] { region.max( 0 ), region.max( 1 ), interval.max( 2 ) } );
+	}
+
+	/**
+	 * Runs StarDist on the specified image, on a single resolution or on a
+	 * pyramid depending on the options.
+	 *
+	 * @param input
+	 *            the image to process.
+	 * @return the detected polygons with their quality, in pixel coordinates
+	 *         of the input, or <code>null</code> if StarDist failed.
+	 */
+	protected < R extends RealType< R > > List< StarConvexPolygon > runStarDist( final RandomAccessibleInterval< R > input )
+	{
+		if ( options.pyramidLevels > 1 )
+			return stardistRunner.runPyramid( input, options.pyramidLevels );
+
+		return stardistRunner.runPolygons( input );
+	}
+
+	/**
+	 * Runs StarDist on the input of this frame read by the prefetcher, or
+	 * on the specified input if it could not be read.
+	 *
+	 * @param input
+	 *            the input of this frame.
+	 * @return the detected polygons with their quality, or <code>null</code>
+	 *         if StarDist failed or was interrupted.
+	 */
+	private List< StarConvexPolygon > runPrefetched( final RandomAccessibleInterval< T > input )
+	{
+		final ArrayImg< FloatType, FloatArray > prefetched;
+		try
+		{
+			prefetched = prefetcher.get( frame );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch ( final ExecutionException | CancellationException e )
+		{
+			return runStarDist( input );
+		}
+		// Read for another region, for instance with another halo.
+		if ( !Intervals.equalDimensions( prefetched, input ) )
+			return runStarDist( input );
+		return runStarDist( prefetched );
+	}
+
+	/**
+	 * Returns the largest extent, in pixels, of the bounding-boxes of the
+	 * specified detections along X or Y.
+	 *
+	 * @param detections
+	 *            the detections, in physical units.
+	 * @param calibration
+	 *            the spatial calibration of the image.
+	 * @return the largest object size, rounded up, or 0 if there are no
+	 *         detections.
+	 */
+	static int maxObjectSize( final List< Detection > detections, final double[] calibration )
+	{
+		double size = 0.;
+		for ( final Detection detection : detections )
+		{
+			double xmin = Double.POSITIVE_INFINITY;
+			double xmax = Double.NEGATIVE_INFINITY;
+			double ymin = Double.POSITIVE_INFINITY;
+			double ymax = Double.NEGATIVE_INFINITY;
+			for ( int i = 0; i < detection.x.length; i++ )
+			{
+				xmin = Math.min( xmin, detection.x[ i ] );
+				xmax = Math.max( xmax, detection.x[ i ] );
+				ymin = Math.min( ymin, detection.y[ i ] );
+				ymax = Math.max( ymax, detection.y[ i ] );
+			}
+			size = Math.max( size, ( xmax - xmin ) / calibration[ 0 ] );
+			size = Math.max( size, ( ymax - ymin ) / calibration[ 1 ] );
+		}
+		return ( int ) Math.ceil( size );
+	}
 
-		// Create spots from output.
-		for ( final Integer polygonID : polygons.getWinner() )
+	/**
+	 * Computes the regions to process around previous detections. Each region
+	 * is the bounding-box of a detection, padded and clipped to the specified
+	 * bounds. Overlapping regions are merged so that no pixel is processed
+	 * twice.
+	 *
+	 * @param detections
+	 *            the previous detections, in physical units.
+	 * @param calibration
+	 *            the spatial calibration of the image.
+	 * @param padding
+	 *            the padding in pixels.
+	 * @param bounds
+	 *            the interval the regions must be contained in.
+	 * @return a new list of non-overlapping regions, in pixel coordinates.
+	 */
+	static List< Interval > roiWindows( final List< Detection > detections, final double[] calibration, final int padding, final Interval bounds )
+	{
+		// Boxes stored as { xmin, ymin, xmax, ymax }.
+		final List< long[] > boxes = new ArrayList<>( detections.size() );
+		for ( final Detection detection : detections )
 		{
-			// Collect quality = max of proba.
-			final PolygonRoi roi = polygons.getPolygonRoi( polygonID );
-			proba.setRoi( roi );
-			final double quality = proba.getStatistics( Measurements.MIN_MAX ).max;
+			double xmin = Double.POSITIVE_INFINITY;
+			double xmax = Double.NEGATIVE_INFINITY;
+			double ymin = Double.POSITIVE_INFINITY;
+			double ymax = Double.NEGATIVE_INFINITY;
+			for ( int i = 0; i < detection.x.length; i++ )
+			{
+				final double x = detection.x[ i ] / calibration[ 0 ];
+				final double y = detection.y[ i ] / calibration[ 1 ];
+				xmin = Math.min( xmin, x );
+				xmax = Math.max( xmax, x );
+				ymin = Math.min( ymin, y );
+				ymax = Math.max( ymax, y );
+			}
+			final long[] box = new long[] {
+					Math.max( bounds.min( 0 ), ( long ) Math.floor( xmin ) - padding ),
+					Math.max( bounds.min( 1 ), ( long ) Math.floor( ymin ) - padding ),
+					Math.min( bounds.max( 0 ), ( long ) Math.ceil( xmax ) + padding ),
+					Math.min( bounds.max( 1 ), ( long ) Math.ceil( ymax ) + padding ) };
+			if ( box[ 0 ] <= box[ 2 ] && box[ 1 ] <= box[ 3 ] )
+				boxes.add( box );
+		}
 
-			// Create ROI.
-			final Polygon polygon = roi.getPolygon();
-			final double[] xpoly = new double[ polygon.npoints ];
-			final double[] ypoly = new double[ polygon.npoints ];
-			for ( int i = 0; i < polygon.npoints; i++ )
+		// Merge overlapping boxes until none overlap.
+		boolean merged = true;
+		while ( merged )
+		{
+			merged = false;
+			for ( int i = 0; i < boxes.size() && !merged; i++ )
 			{
-				xpoly[ i ] = calibration[ 0 ] * ( interval.min( 0 ) + polygon.xpoints[ i ] );
-				ypoly[ i ] = calibration[ 1 ] * ( interval.min( 1 ) + polygon.ypoints[ i ] );
+				final long[] a = boxes.get( i );
+				for ( int j = i + 1; j < boxes.size(); j++ )
+				{
+					final long[] b = boxes.get( j );
+					if ( a[ 0 ] > b[ 2 ] || b[ 0 ] > a[ 2 ] || a[ 1 ] > b[ 3 ] || b[ 1 ] > a[ 3 ] )
+						continue;
+
+					a[ 0 ] = Math.min( a[ 0 ], b[ 0 ] );
+					a[ 1 ] = Math.min( a[ 1 ], b[ 1 ] );
+					a[ 2 ] = Math.max( a[ 2 ], b[ 2 ] );
+					a[ 3 ] = Math.max( a[ 3 ], b[ 3 ] );
+					boxes.remove( j );
+					merged = true;
+					break;
+				}
 			}
-			spots.add( SpotRoi.createSpot( xpoly, ypoly, quality ) );
 		}
 
-		final long end = System.currentTimeMillis();
-		this.processingTime = end - start;
+		final List< Interval > windows = new ArrayList<>( boxes.size() );
+		for ( final long[] box : boxes )
+			windows.add( new FinalInterval( new long[] { box[ 0 ], box[ 1 ] }, new long[] { box[ 2 ], box[ 3 ] } ) );
+		return windows;
+	}
 
-		return true;
+	/**
+	 * Computes in one pass the standard deviation of the pixel values of the
+	 * specified image and a 64-bit hash of its content.
+	 *
+	 * @param input
+	 *            the image.
+	 * @return the standard deviation and the hash.
+	 */
+	static final < T extends RealType< T > > PreScreenStats computePreScreenStats( final RandomAccessibleInterval< T > input )
+	{
+		// Welford's online algorithm, and FNV-1a on the pixel value bits.
+		long n = 0;
+		double mean = 0.;
+		double m2 = 0.;
+		long hash = 0xcbf29ce484222325L;
+		for ( final T pixel : Views.flatIterable( input ) )
+		{
+			final double val = pixel.getRealDouble();
+			n++;
+			final double delta = val - mean;
+			mean += delta / n;
+			m2 += delta * ( val - mean );
+
+			hash ^= Double.doubleToLongBits( val );
+			hash *= 0x100000001b3L;
+		}
+		final double std = n > 1 ? Math.sqrt( m2 / ( n - 1 ) ) : 0.;
+		return new PreScreenStats( std, hash );
+	}
+
+	static final class PreScreenStats
+	{
+
+		final double std;
+
+		final long hash;
+
+		private PreScreenStats( final double std, final long hash )
+		{
+			this.std = std;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Returns the detections made by the last call to {@link #process()}, as
+	 * polygons in physical units.
+	 *
+	 * @return the detections.
+	 */
+	public List< Detection > getDetections()
+	{
+		return detections;
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return null != cancelReason;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		cancelReason = ( null == reason ) ? "" : reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
 	}
 
 	@Override
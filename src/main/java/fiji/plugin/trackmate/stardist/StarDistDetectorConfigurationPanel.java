@@ -54,11 +54,13 @@ public class StarDistDetectorConfigurationPanel extends ConfigurationPanel
 
 	private final JSlider sliderChannel;
 
+	private final StarDistOptionsPanel optionsPanel;
+
 	public StarDistDetectorConfigurationPanel( final Settings settings, final Model model )
 	{
 		final GridBagLayout gridBagLayout = new GridBagLayout();
 		gridBagLayout.columnWidths = new int[] { 200, 0, 32 };
-		gridBagLayout.rowHeights = new int[] { 0, 145, 0, 0, 150 };
+		gridBagLayout.rowHeights = new int[] { 0, 145, 0, 0, 0, 150 };
 		gridBagLayout.columnWeights = new double[] { 0., 1., 0. };
 		setLayout( gridBagLayout );
 
@@ -129,6 +131,31 @@ public class StarDistDetectorConfigurationPanel extends ConfigurationPanel
 		gbcLabelChannel.gridy = 2;
 		add( labelChannel, gbcLabelChannel );
 
+		/*
+		 * Detection options.
+		 */
+
+		optionsPanel = new StarDistOptionsPanel();
+		final GridBagConstraints gbcOptionsPanel = new GridBagConstraints();
+		gbcOptionsPanel.gridwidth = 3;
+		gbcOptionsPanel.fill = GridBagConstraints.HORIZONTAL;
+		gbcOptionsPanel.gridx = 0;
+		gbcOptionsPanel.gridy = 3;
+		add( optionsPanel, gbcOptionsPanel );
+
+		/*
+		 * Region preview.
+		 */
+
+		final GridBagConstraints gbcRegionPreview = new GridBagConstraints();
+		gbcRegionPreview.gridwidth = 3;
+		gbcRegionPreview.fill = GridBagConstraints.HORIZONTAL;
+		gbcRegionPreview.insets = new Insets( 5, 5, 5, 5 );
+		gbcRegionPreview.gridx = 0;
+		gbcRegionPreview.gridy = 4;
+		final RegionPreview regionPreview = new RegionPreview( settings, new StarDistDetectorFactory<>(), () -> getSettings() );
+		add( regionPreview.getPanel(), gbcRegionPreview );
+
 		/*
 		 * Preview.
 		 */
@@ -139,7 +166,7 @@ public class StarDistDetectorConfigurationPanel extends ConfigurationPanel
 		gbcBtnPreview.anchor = GridBagConstraints.SOUTH;
 		gbcBtnPreview.insets = new Insets( 5, 5, 5, 5 );
 		gbcBtnPreview.gridx = 0;
-		gbcBtnPreview.gridy = 4;
+		gbcBtnPreview.gridy = 5;
 
 		final DetectionPreview detectionPreview = DetectionPreview.create()
 				.model( model )
@@ -178,9 +205,10 @@ public class StarDistDetectorConfigurationPanel extends ConfigurationPanel
 	@Override
 	public Map< String, Object > getSettings()
 	{
-		final HashMap< String, Object > settings = new HashMap<>( 2 );
+		final HashMap< String, Object > settings = new HashMap<>( 3 );
 		final int targetChannel = sliderChannel.getValue();
 		settings.put( KEY_TARGET_CHANNEL, targetChannel );
+		optionsPanel.putSettings( settings );
 		return settings;
 	}
 
@@ -188,6 +216,7 @@ public class StarDistDetectorConfigurationPanel extends ConfigurationPanel
 	public void setSettings( final Map< String, Object > settings )
 	{
 		sliderChannel.setValue( ( Integer ) settings.get( KEY_TARGET_CHANNEL ) );
+		optionsPanel.setSettings( settings );
 	}
 
 	@Override
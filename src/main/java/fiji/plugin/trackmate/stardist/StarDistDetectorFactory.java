@@ -24,24 +24,49 @@ package fiji.plugin.trackmate.stardist;
 import static fiji.plugin.trackmate.detection.DetectorKeys.DEFAULT_TARGET_CHANNEL;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.swing.ImageIcon;
 
+import org.jdom2.Element;
 import org.scijava.plugin.Plugin;
 
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.DetectionUtils;
 import fiji.plugin.trackmate.detection.SpotDetector;
 import fiji.plugin.trackmate.detection.SpotDetectorFactory;
 import fiji.plugin.trackmate.gui.GuiUtils;
 import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
+import fiji.plugin.trackmate.stardist.util.FrameCache;
+import fiji.plugin.trackmate.stardist.util.Prefetcher;
 import fiji.plugin.trackmate.util.TMUtils;
 import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 @Plugin( type = SpotDetectorFactory.class )
 public class StarDistDetectorFactory< T extends RealType< T > & NativeType< T > > implements SpotDetectorFactory< T >
@@ -57,7 +82,8 @@ public class StarDistDetectorFactory< T extends RealType< T > & NativeType< T >
 	public static final String INFO_TEXT = "<html>"
 			+ "This detector relies on StarDist to detect the nuclei of cells."
 			+ "<p>"
-			+ "It only works for 2D images."
+			+ "On 3D images, the 2D model runs on each Z slice and the polygons of "
+			+ "adjacent slices are linked into 3D objects. "
 			+ "And for this detector to work, the update sites StartDist and CSBDeep "
 			+ "must be activated in your Fiji installation."
 			+ "<p>"
@@ -80,10 +106,281 @@ public class StarDistDetectorFactory< T extends RealType< T > & NativeType< T >
 
 	public static final ImageIcon ICON = new ImageIcon( GuiUtils.getResource( "images/TrackMateStarDist-logo100x100.png", StarDistDetectorFactory.class ) );
 
+	/**
+	 * The key to the parameter that stores whether frames are pre-screened
+	 * before running StarDist. If <code>true</code>, frames with no signal
+	 * are skipped, and frames identical to the previous one reuse its
+	 * detections. Values are {@link Boolean}s.
+	 */
+	public static final String KEY_PRESCREEN = "PRESCREEN";
+
+	public static final Boolean DEFAULT_PRESCREEN = Boolean.FALSE;
+
+	/**
+	 * The key to the parameter that stores the intensity standard deviation
+	 * below or equal to which a frame is considered to have no signal when
+	 * pre-screening. Values are {@link Double}s, in image intensity units.
+	 */
+	public static final String KEY_PRESCREEN_MAX_STD = "PRESCREEN_MAX_STD";
+
+	public static final Double DEFAULT_PRESCREEN_MAX_STD = Double.valueOf( 0. );
+
+	/**
+	 * The key to the parameter that stores the interval, in frames, between
+	 * key-frames. Key-frames are processed as a whole. In between, StarDist
+	 * only runs in padded regions around the detections of the previous
+	 * frame, so an object that appears away from them is only found at the
+	 * next key-frame. This interval is the largest delay, in frames, before
+	 * a new object is detected. A value of 1 processes all frames as a
+	 * whole. Values are {@link Integer}s.
+	 */
+	public static final String KEY_KEYFRAME_INTERVAL = "KEYFRAME_INTERVAL";
+
+	public static final Integer DEFAULT_KEYFRAME_INTERVAL = Integer.valueOf( 1 );
+
+	/**
+	 * The key to the parameter that stores the padding, in pixels, added
+	 * around previous detections to build the regions processed between
+	 * key-frames. Values are {@link Integer}s.
+	 */
+	public static final String KEY_ROI_PADDING = "ROI_PADDING";
+
+	public static final Integer DEFAULT_ROI_PADDING = Integer.valueOf( 20 );
+
+	/**
+	 * The key to the parameter that stores the scale at which StarDist runs.
+	 * The input is downsampled by this factor before inference, and the
+	 * resulting polygons are scaled back to the native resolution. Values
+	 * are {@link Double}s in <code>]0, 1]</code>.
+	 */
+	public static final String KEY_INFERENCE_SCALE = "INFERENCE_SCALE";
+
+	public static final Double DEFAULT_INFERENCE_SCALE = Double.valueOf( 1. );
+
+	/**
+	 * The key to the parameter that stores the expected object diameter, in
+	 * physical units. If strictly positive, the inference scale is determined
+	 * from it and {@link #KEY_INFERENCE_SCALE} is ignored. Values are
+	 * {@link Double}s.
+	 */
+	public static final String KEY_OBJECT_DIAMETER = "OBJECT_DIAMETER";
+
+	public static final Double DEFAULT_OBJECT_DIAMETER = Double.valueOf( 0. );
+
+	/**
+	 * The key to the parameter that stores the number of resolution levels
+	 * StarDist runs on. Each level is downsampled by a factor 2 from the
+	 * previous one, and the candidates of all levels are merged with a single
+	 * NMS. A value of 1 disables the pyramid detection. Values are
+	 * {@link Integer}s.
+	 */
+	public static final String KEY_PYRAMID_LEVELS = "PYRAMID_LEVELS";
+
+	public static final Integer DEFAULT_PYRAMID_LEVELS = Integer.valueOf( 1 );
+
+	/**
+	 * The key to the parameter that stores the tolerance, in pixels, of the
+	 * Douglas-Peucker simplification applied to the polygons of the detected
+	 * spots. Removed vertices lie within this distance of the simplified
+	 * polygon. A value of 0 disables the simplification. Values are
+	 * {@link Double}s.
+	 */
+	public static final String KEY_SIMPLIFY_TOLERANCE = "SIMPLIFY_TOLERANCE";
+
+	public static final Double DEFAULT_SIMPLIFY_TOLERANCE = Double.valueOf( 0. );
+
+	/**
+	 * The key to the parameter that stores the path to the N5 container the
+	 * label images are written to, frame by frame, during detection. An empty
+	 * path disables the label image output. Values are {@link String}s.
+	 */
+	public static final String KEY_LABEL_IMAGE_PATH = "LABEL_IMAGE_PATH";
+
+	public static final String DEFAULT_LABEL_IMAGE_PATH = "";
+
+	/**
+	 * The key to the parameter that stores the path to the N5 container the
+	 * probability and distance maps predicted by the CNN are written to. They
+	 * can be read back with {@link PredictionReader}. An empty path disables
+	 * the export. Values are {@link String}s.
+	 */
+	public static final String KEY_PREDICTION_PATH = "PREDICTION_PATH";
+
+	public static final String DEFAULT_PREDICTION_PATH = "";
+
+	/**
+	 * The key to the parameter that stores the channels fed to the model, for
+	 * models trained on multi-channel input. Channels are 1-based and
+	 * separated by commas, for instance <code>"1,2"</code>. They are stacked
+	 * in the given order, without copying the image. An empty string uses
+	 * the single target channel. Only used on 2D images. Values are
+	 * {@link String}s.
+	 */
+	public static final String KEY_TARGET_CHANNELS = "TARGET_CHANNELS";
+
+	public static final String DEFAULT_TARGET_CHANNELS = "";
+
+	/**
+	 * The key to the parameter that stores the path to the journal the
+	 * detections of each frame are appended to as soon as the frame is done.
+	 * A detection run restarted with the same image, settings and journal
+	 * skips the frames already in the journal. An empty path disables the
+	 * journal. Values are {@link String}s.
+	 */
+	public static final String KEY_JOURNAL_PATH = "JOURNAL_PATH";
+
+	public static final String DEFAULT_JOURNAL_PATH = "";
+
+	/**
+	 * The key to the parameter that stores the number of frames of input kept
+	 * in memory. The input of each frame is read once from the image, in the
+	 * detection interval only, and the next frame is read ahead while the
+	 * current one is processed. The cached frames are released at the end of
+	 * the detection run. A value of 0, the default, reads the image directly.
+	 * Values are {@link Integer}s.
+	 */
+	public static final String KEY_INPUT_CACHE_SIZE = "INPUT_CACHE_SIZE";
+
+	public static final Integer DEFAULT_INPUT_CACHE_SIZE = Integer.valueOf( 0 );
+
+	/**
+	 * The key to the parameter that stores the number of frames whose input
+	 * is read ahead, in a separate thread, while the current frame is
+	 * processed. Only the read is done ahead: the CNN normalizes the input as
+	 * it does without prefetching, so the results are the same. Only used
+	 * when whole frames are processed at native resolution on a single level
+	 * and without key-frames. A value of 0, the default, reads the input of
+	 * each frame when it is processed. Values are {@link Integer}s.
+	 */
+	public static final String KEY_PREFETCH_DEPTH = "PREFETCH_DEPTH";
+
+	public static final Integer DEFAULT_PREFETCH_DEPTH = Integer.valueOf( 0 );
+
+	/**
+	 * The key to the parameter that stores how the quality of the spots is
+	 * computed: the max or the mean of the probability inside the polygon,
+	 * or the score of the candidate, which does not read the probability map
+	 * again after NMS. Values are the {@link String} names of
+	 * {@link QualityMode}s.
+	 */
+	public static final String KEY_QUALITY_MODE = "QUALITY_MODE";
+
+	public static final String DEFAULT_QUALITY_MODE = QualityMode.MAX_PROBABILITY.name();
+
+	/**
+	 * The key to the parameter that stores the width, in pixels, of the halo
+	 * of context read around the detection interval. StarDist runs on the
+	 * interval expanded by the halo, within the image, and only the objects
+	 * centered in the interval are kept. Adjacent intervals or tiles can
+	 * then be merged without finding the same object twice. A value of 0
+	 * processes the interval alone. Values are {@link Integer}s.
+	 */
+	public static final String KEY_HALO = "HALO";
+
+	public static final Integer DEFAULT_HALO = Integer.valueOf( 0 );
+
+	/**
+	 * The key to the parameter that stores the width, in pixels, of the
+	 * border of the processed image in which StarDist candidates are
+	 * discarded. Values are {@link Integer}s.
+	 */
+	public static final String KEY_EXCLUDE_BOUNDARY = "EXCLUDE_BOUNDARY";
+
+	public static final Integer DEFAULT_EXCLUDE_BOUNDARY = Integer.valueOf( 2 );
+
+	/**
+	 * The keys of the settings that were added after the first version of
+	 * this detector. Settings maps and files that do not have them are still
+	 * valid, and the missing keys take their default value.
+	 */
+	public static final List< String > OPTIONAL_KEYS = Collections.unmodifiableList( Arrays.asList(
+			KEY_PRESCREEN,
+			KEY_PRESCREEN_MAX_STD,
+			KEY_KEYFRAME_INTERVAL,
+			KEY_ROI_PADDING,
+			KEY_INFERENCE_SCALE,
+			KEY_OBJECT_DIAMETER,
+			KEY_PYRAMID_LEVELS,
+			KEY_SIMPLIFY_TOLERANCE,
+			KEY_LABEL_IMAGE_PATH,
+			KEY_PREDICTION_PATH,
+			KEY_TARGET_CHANNELS,
+			KEY_JOURNAL_PATH,
+			KEY_INPUT_CACHE_SIZE,
+			KEY_PREFETCH_DEPTH,
+			KEY_QUALITY_MODE,
+			KEY_HALO,
+			KEY_EXCLUDE_BOUNDARY ) );
+
+	/**
+	 * The settings that change where the outputs are written or how fast
+	 * the frames are processed, but not the detections. They are not part of
+	 * the journal key, so that they can change between the runs that resume
+	 * a journal.
+	 */
+	private static final List< String > NON_DETECTION_KEYS = Collections.unmodifiableList( Arrays.asList(
+			KEY_JOURNAL_PATH,
+			KEY_LABEL_IMAGE_PATH,
+			KEY_PREDICTION_PATH,
+			KEY_INPUT_CACHE_SIZE,
+			KEY_PREFETCH_DEPTH ) );
+
+	private FrameMemory memory;
+
+	private ImgPlus< T > memoryImg;
+
+	private Map< String, Object > memorySettings;
+
+	private LabelImageWriter labelWriter;
+
+	private ImgPlus< T > labelWriterImg;
+
+	private String labelWriterPath;
+
+	private PredictionWriter predictionWriter;
+
+	private String predictionWriterPath;
+
+	private DetectionJournal journal;
+
+	private String journalPath;
+
+	private long journalKey;
+
+	private FrameCache< T > inputCache;
+
+	private ImgPlus< T > inputCacheImg;
+
+	private int[] inputCacheChannels;
+
+	private int inputCacheSize;
+
+	private Prefetcher< ArrayImg< FloatType, FloatArray > > prefetcher;
+
+	private ImgPlus< T > prefetcherImg;
+
+	private int[] prefetcherChannels;
+
+	private Interval prefetcherInterval;
+
+	private int prefetcherDepth;
+
+	private int prefetcherCacheSize;
+
+	private final List< SpotListener > spotListeners = new CopyOnWriteArrayList<>();
+
+	private ImgPlus< T > runImg;
+
+	private Map< String, Object > runSettings;
+
+	private int runLastFrame = -1;
+
+	private Settings trackmateSettings;
+
 	@Override
 	public SpotDetector< T > getDetector( final ImgPlus< T > img, final Map< String, Object > settings, final Interval interval, final int frame )
 	{
-		final StarDistRunner starDistRunner = new StarDistRunner();
+		final StarDistRunnerBase starDistRunner = createRunner( settings );
 		if ( !starDistRunner.initialize() )
 		{
 			System.err.println( starDistRunner.getErrorMessage() );
@@ -91,12 +388,579 @@ public class StarDistDetectorFactory< T extends RealType< T > & NativeType< T >
 		}
 
 		final double[] calibration = TMUtils.getSpatialCalibration( img );
-		final int channel = ( Integer ) settings.get( KEY_TARGET_CHANNEL ) - 1;
-		final ImgPlus< T > imFrame = TMUtils.hyperSlice( img, channel, frame );
-		final StarDistDetector< T > detector = new StarDistDetector<>( starDistRunner, imFrame, interval, calibration );
+		final int[] channels;
+		try
+		{
+			channels = getTargetChannels( settings );
+		}
+		catch ( final NumberFormatException e )
+		{
+			System.err.println( "StarDistDetectorFactory: Cannot parse the channel list: " + e.getMessage() );
+			return null;
+		}
+		final int nChannels = img.dimensionIndex( Axes.CHANNEL ) < 0 ? 1 : ( int ) img.dimension( img.dimensionIndex( Axes.CHANNEL ) );
+		for ( final int channel : channels )
+		{
+			if ( channel < 0 || channel >= nChannels )
+			{
+				System.err.println( "StarDistDetectorFactory: Channel " + ( channel + 1 ) + " does not exist in the image." );
+				return null;
+			}
+		}
+		final ImgPlus< T > imFrame = TMUtils.hyperSlice( img, channels[ 0 ], frame );
+		final boolean lastFrame = startFrame( img, settings, frame );
+
+		final StarDistDetectorOptions options = StarDistDetectorOptions.fromSettings( settings );
+		if ( !DetectionUtils.is2D( imFrame ) )
+		{
+			// Z-stack: run the 2D model slice by slice, on the first channel, and link in 3D.
+			final RandomAccessibleInterval< T > stack;
+			try
+			{
+				stack = ( options.inputCacheSize > 0 )
+						? getInputCache( img, new int[] { channels[ 0 ] }, StarDistDetector.withHalo( interval, options.halo, imFrame ), options.inputCacheSize ).get( frame )
+						: imFrame;
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				endRun();
+				return null;
+			}
+			final StarDistSliceDetector< T > detector = new StarDistSliceDetector<>(
+					starDistRunner,
+					stack,
+					interval,
+					calibration,
+					frame,
+					options );
+			if ( !spotListeners.isEmpty() )
+				detector.setSpotListener( this::fireSpotsDetected );
+			detector.setOnProcessed( ok -> frameProcessed( ok.booleanValue(), lastFrame ) );
+			return detector;
+		}
+
+		final FrameMemory frameMemory = options.needsFrameMemory() ? getFrameMemory( img, settings ) : null;
+
+		final LabelImageWriter labels = options.labelImagePath.isEmpty() ? null : getLabelWriter( img, options.labelImagePath );
+		final PredictionWriter predictions = options.predictionPath.isEmpty() ? null : getPredictionWriter( options.predictionPath );
+		final DetectionJournal frameJournal;
+		try
+		{
+			frameJournal = options.journalPath.isEmpty() ? null : getJournal( img, settings, interval, options.journalPath );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "StarDistDetectorFactory: Cannot open the journal " + options.journalPath + ":\n" + e.getMessage() );
+			endRun();
+			return null;
+		}
+
+		// Multi-channel models get the channels stacked in a view.
+		final Interval inputInterval = ( channels.length > 1 )
+				? Intervals.addDimension( DetectionUtils.squeeze( interval ), 0, channels.length - 1 )
+				: interval;
+		// Context read around the interval.
+		final Interval readInterval = StarDistDetector.withHalo( inputInterval, options.halo, imFrame );
+		final RandomAccessibleInterval< T > input;
+		try
+		{
+			if ( options.inputCacheSize > 0 )
+				input = getInputCache( img, channels, readInterval, options.inputCacheSize ).get( frame );
+			else
+				input = ( channels.length > 1 ) ? channelView( img, channels, frame ) : imFrame;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			endRun();
+			return null;
+		}
+
+		final StarDistDetector< T > detector = new StarDistDetector<>(
+				starDistRunner,
+				input,
+				inputInterval,
+				calibration,
+				frame,
+				frameMemory,
+				options,
+				labels,
+				predictions );
+		if ( !spotListeners.isEmpty() )
+			detector.setSpotListener( this::fireSpotsDetected );
+		detector.setJournal( frameJournal );
+		detector.setOnProcessed( ok -> frameProcessed( ok.booleanValue(), lastFrame ) );
+		if ( options.prefetchDepth > 0
+				&& options.getInferenceScale( calibration[ 0 ] ) >= 1.
+				&& options.pyramidLevels <= 1
+				&& options.keyFrameInterval <= 1 )
+			detector.setPrefetcher( getPrefetcher( img, channels, readInterval, options.prefetchDepth, options.inputCacheSize ) );
 		return detector;
 	}
 
+	/**
+	 * Registers a listener that receives the spots of each frame as soon as
+	 * the frame is done, while later frames are still being processed. Only
+	 * detectors created after this call notify it.
+	 *
+	 * @param listener
+	 *            the listener.
+	 */
+	public void addSpotListener( final SpotListener listener )
+	{
+		spotListeners.add( listener );
+	}
+
+	/**
+	 * Removes a listener registered with
+	 * {@link #addSpotListener(SpotListener)}.
+	 *
+	 * @param listener
+	 *            the listener.
+	 * @return <code>true</code> if the listener was registered.
+	 */
+	public boolean removeSpotListener( final SpotListener listener )
+	{
+		return spotListeners.remove( listener );
+	}
+
+	private void fireSpotsDetected( final int frame, final List< Spot > spots )
+	{
+		for ( final SpotListener listener : spotListeners )
+			listener.spotsDetected( frame, spots );
+	}
+
+	/**
+	 * Returns the 0-based indices of the channels fed to the model, read from
+	 * {@link #KEY_TARGET_CHANNELS} if it is set, and from the target channel
+	 * otherwise.
+	 *
+	 * @param settings
+	 *            the detection settings.
+	 * @return the channel indices, never empty.
+	 * @throws NumberFormatException
+	 *             if the channel list cannot be parsed.
+	 */
+	public static int[] getTargetChannels( final Map< String, Object > settings )
+	{
+		final String str = ( String ) settings.getOrDefault( KEY_TARGET_CHANNELS, DEFAULT_TARGET_CHANNELS );
+		if ( null == str || str.trim().isEmpty() )
+			return new int[] { ( Integer ) settings.get( KEY_TARGET_CHANNEL ) - 1 };
+
+		final String[] tokens = str.trim().split( "[,;\\s]+" );
+		final int[] channels = new int[ tokens.length ];
+		for ( int i = 0; i < tokens.length; i++ )
+			channels[ i ] = Integer.parseInt( tokens[ i ] ) - 1;
+		return channels;
+	}
+
+	/**
+	 * Returns a view on the specified channels of one frame of an image. With
+	 * several channels, their hyperslices are stacked along a new last
+	 * dimension, so the model input is assembled without copying the pixels.
+	 *
+	 * @param img
+	 *            the image.
+	 * @param channels
+	 *            the 0-based channel indices, in the order the model expects
+	 *            them.
+	 * @param frame
+	 *            the frame.
+	 * @return a view on the frame, with the channels as last dimension if
+	 *         there are more than one.
+	 */
+	public static < T > RandomAccessibleInterval< T > channelView( final ImgPlus< T > img, final int[] channels, final int frame )
+	{
+		if ( channels.length == 1 )
+			return TMUtils.hyperSlice( img, channels[ 0 ], frame );
+
+		final List< RandomAccessibleInterval< T > > slices = new ArrayList<>( channels.length );
+		for ( final int channel : channels )
+			slices.add( TMUtils.hyperSlice( img, channel, frame ) );
+		return Views.stack( slices );
+	}
+
+	/**
+	 * Creates the StarDist runner to use with the specified settings. The
+	 * runner is not initialized.
+	 *
+	 * @param settings
+	 *            the detection settings.
+	 * @return a new StarDist runner.
+	 */
+	protected StarDistRunnerBase createRunner( final Map< String, Object > settings )
+	{
+		return new StarDistRunner();
+	}
+
+	/**
+	 * Returns the memory of the last frame processed, shared by all the
+	 * detectors created for the same image and settings. A new memory is
+	 * created if the image or the settings changed.
+	 *
+	 * @param img
+	 *            the image to process.
+	 * @param settings
+	 *            the detection settings.
+	 * @return the frame memory.
+	 */
+	protected synchronized FrameMemory getFrameMemory( final ImgPlus< T > img, final Map< String, Object > settings )
+	{
+		if ( memory == null || memoryImg != img || !settings.equals( memorySettings ) )
+		{
+			memory = new FrameMemory();
+			memoryImg = img;
+			memorySettings = new HashMap<>( settings );
+		}
+		return memory;
+	}
+
+	/**
+	 * Returns the input cache shared by all the detectors created for the
+	 * same image, channels and interval. A new cache is created if one of
+	 * them or the cache size changed.
+	 *
+	 * @param img
+	 *            the image to process.
+	 * @param channels
+	 *            the 0-based channels fed to the model.
+	 * @param interval
+	 *            the interval of the input to read, with the channels as last
+	 *            dimension if there are several.
+	 * @param size
+	 *            the number of frames to keep in memory.
+	 * @return the input cache.
+	 */
+	protected synchronized FrameCache< T > getInputCache( final ImgPlus< T > img, final int[] channels, final Interval interval, final int size )
+	{
+		if ( inputCache == null || inputCacheImg != img || !Arrays.equals( channels, inputCacheChannels )
+				|| !inputCache.covers( interval ) || size != inputCacheSize )
+		{
+			if ( null != inputCache )
+				inputCache.close();
+			// Not read ahead past the last frame of the run.
+			final int nFrames = lastFrame( img ) + 1;
+			final int[] c = channels.clone();
+			inputCache = new FrameCache<>(
+					f -> ( c.length > 1 ) ? channelView( img, c, f ) : TMUtils.hyperSlice( img, c[ 0 ], f ),
+					interval,
+					nFrames,
+					size );
+			inputCacheImg = img;
+			inputCacheChannels = c;
+			inputCacheSize = size;
+		}
+		return inputCache;
+	}
+
+	/**
+	 * Returns the prefetcher shared by all the detectors created for the same
+	 * image, channels and interval. It reads the input of the next frames,
+	 * through the input cache if there is one. A new
+	 * prefetcher is created if one of them, the depth or the cache size
+	 * changed.
+	 *
+	 * @param img
+	 *            the image to process.
+	 * @param channels
+	 *            the 0-based channels fed to the model.
+	 * @param interval
+	 *            the interval of the input, with the channels as last
+	 *            dimension if there are several.
+	 * @param depth
+	 *            the number of frames prepared ahead.
+	 * @param cacheSize
+	 *            the size of the input cache, 0 to read the image directly.
+	 * @return the prefetcher.
+	 */
+	protected synchronized Prefetcher< ArrayImg< FloatType, FloatArray > > getPrefetcher( final ImgPlus< T > img, final int[] channels, final Interval interval, final int depth, final int cacheSize )
+	{
+		if ( prefetcher == null || prefetcherImg != img || !Arrays.equals( channels, prefetcherChannels )
+				|| !Intervals.equals( interval, prefetcherInterval ) || depth != prefetcherDepth || cacheSize != prefetcherCacheSize )
+		{
+			if ( null != prefetcher )
+				prefetcher.close();
+			// Not read ahead past the last frame of the run.
+			final int nFrames = lastFrame( img ) + 1;
+			final int[] c = channels.clone();
+			final FrameCache< T > cache = ( cacheSize > 0 ) ? getInputCache( img, c, interval, cacheSize ) : null;
+			prefetcher = new Prefetcher<>( f -> StarDistRunnerBase.toFloat( ( null != cache )
+					? cache.get( f )
+					: Views.interval( ( c.length > 1 ) ? channelView( img, c, f ) : TMUtils.hyperSlice( img, c[ 0 ], f ), interval ) ),
+					nFrames,
+					depth );
+			prefetcherImg = img;
+			prefetcherChannels = c;
+			prefetcherInterval = new FinalInterval( interval );
+			prefetcherDepth = depth;
+			prefetcherCacheSize = cacheSize;
+		}
+		return prefetcher;
+	}
+
+	/**
+	 * Returns the label image writer shared by all the detectors created for
+	 * the same image and path. A new writer is created, and the labels of an
+	 * earlier run are cleared, at the start of a run or if the image or the
+	 * path changed.
+	 *
+	 * @param img
+	 *            the image to process.
+	 * @param path
+	 *            the path to the N5 container.
+	 * @return the label image writer.
+	 */
+	protected synchronized LabelImageWriter getLabelWriter( final ImgPlus< T > img, final String path )
+	{
+		if ( labelWriter == null || labelWriterImg != img || !path.equals( labelWriterPath ) )
+		{
+			if ( null != labelWriter )
+				labelWriter.close();
+			final int timeDim = img.dimensionIndex( Axes.TIME );
+			final int nFrames = ( timeDim < 0 ) ? 1 : ( int ) img.dimension( timeDim );
+			labelWriter = new LabelImageWriter(
+					path,
+					( int ) img.dimension( img.dimensionIndex( Axes.X ) ),
+					( int ) img.dimension( img.dimensionIndex( Axes.Y ) ),
+					nFrames );
+			labelWriterImg = img;
+			labelWriterPath = path;
+		}
+		return labelWriter;
+	}
+
+	/**
+	 * Registers that a detector is created for the specified frame. A
+	 * detection run processes the frames of an image in order with the same
+	 * settings. A frame that is not after the previous one, another image or
+	 * other settings start a new run, and end the previous one.
+	 *
+	 * @param img
+	 *            the image to process.
+	 * @param settings
+	 *            the detection settings.
+	 * @param frame
+	 *            the frame.
+	 * @return <code>true</code> if the frame is the last one of the run, in
+	 *         which case the run must be ended once it is processed.
+	 * @see #setTrackMateSettings(Settings)
+	 */
+	protected synchronized boolean startFrame( final ImgPlus< T > img, final Map< String, Object > settings, final int frame )
+	{
+		if ( img != runImg || frame <= runLastFrame || !settings.equals( runSettings ) )
+		{
+			endRun();
+			runImg = img;
+			runSettings = new HashMap<>( settings );
+		}
+		runLastFrame = frame;
+		return frame >= lastFrame( img );
+	}
+
+	/**
+	 * Returns the last frame processed in a run on the specified image: the
+	 * end of the time interval of the TrackMate settings if they were given
+	 * for an image with as many frames, the last frame of the image
+	 * otherwise.
+	 */
+	private int lastFrame( final ImgPlus< T > img )
+	{
+		final int timeDim = img.dimensionIndex( Axes.TIME );
+		final int nFrames = ( timeDim < 0 ) ? 1 : ( int ) img.dimension( timeDim );
+		if ( null != trackmateSettings && null != trackmateSettings.imp
+				&& trackmateSettings.imp.getNFrames() == nFrames
+				&& trackmateSettings.tend >= 0 && trackmateSettings.tend < nFrames )
+			return trackmateSettings.tend;
+		return nFrames - 1;
+	}
+
+	/**
+	 * Called once a detector is done with its frame. The run is ended after
+	 * its last frame, and after a frame that failed or was canceled, since
+	 * TrackMate may not request the next frames then.
+	 *
+	 * @param ok
+	 *            whether the frame succeeded.
+	 * @param lastFrame
+	 *            whether the frame is the last one of the run.
+	 */
+	protected void frameProcessed( final boolean ok, final boolean lastFrame )
+	{
+		if ( !ok || lastFrame )
+			endRun();
+	}
+
+	/**
+	 * Sets the TrackMate settings of the detection runs made with this
+	 * factory, so that a run ends after the last frame of their time
+	 * interval rather than after the last frame of the image. They are set
+	 * when the configuration panel of this factory is created, and can be
+	 * set by scripts that run TrackMate without its GUI.
+	 *
+	 * @param settings
+	 *            the TrackMate settings. Can be <code>null</code>.
+	 */
+	public synchronized void setTrackMateSettings( final Settings settings )
+	{
+		this.trackmateSettings = settings;
+	}
+
+	/**
+	 * Ends the current detection run, and releases its resources. The pending
+	 * predictions are written and the writer thread is stopped. Write errors
+	 * were already reported by the detector of their frame. The cached and
+	 * prefetched frames are discarded, and the journal and the label image
+	 * container are closed.
+	 */
+	protected synchronized void endRun()
+	{
+		if ( null != predictionWriter )
+		{
+			predictionWriter.close();
+			predictionWriter = null;
+			predictionWriterPath = null;
+		}
+		if ( null != prefetcher )
+		{
+			prefetcher.close();
+			prefetcher = null;
+			prefetcherImg = null;
+		}
+		if ( null != inputCache )
+		{
+			inputCache.close();
+			inputCache = null;
+			inputCacheImg = null;
+		}
+		if ( null != labelWriter )
+		{
+			labelWriter.close();
+			labelWriter = null;
+			labelWriterImg = null;
+			labelWriterPath = null;
+		}
+		if ( null != journal )
+		{
+			try
+			{
+				journal.close();
+			}
+			catch ( final IOException e )
+			{
+				System.err.println( "StarDistDetectorFactory: Cannot close the journal " + journalPath + ":\n" + e.getMessage() );
+			}
+			journal = null;
+			journalPath = null;
+		}
+		runImg = null;
+		runSettings = null;
+		runLastFrame = -1;
+	}
+
+	/**
+	 * Returns the prediction writer shared by all the detectors created for
+	 * the same path.
+	 *
+	 * @param path
+	 *            the path to the N5 container.
+	 * @return the prediction writer.
+	 */
+	protected synchronized PredictionWriter getPredictionWriter( final String path )
+	{
+		if ( predictionWriter == null || !path.equals( predictionWriterPath ) )
+		{
+			if ( null != predictionWriter )
+				predictionWriter.close();
+			predictionWriter = new PredictionWriter( path );
+			predictionWriterPath = path;
+		}
+		return predictionWriter;
+	}
+
+	/**
+	 * Returns the detection journal shared by all the detectors created for
+	 * the same path and journal key.
+	 *
+	 * @param img
+	 *            the image to process.
+	 * @param settings
+	 *            the detection settings.
+	 * @param interval
+	 *            the interval to process.
+	 * @param path
+	 *            the path to the journal file.
+	 * @return the journal.
+	 * @throws IOException
+	 *             if the journal cannot be opened, or was written for another
+	 *             image, interval or settings.
+	 * @see #journalKey(ImgPlus, Map, Interval)
+	 */
+	protected synchronized DetectionJournal getJournal( final ImgPlus< T > img, final Map< String, Object > settings, final Interval interval, final String path ) throws IOException
+	{
+		final long key = journalKey( img, settings, interval );
+		if ( journal == null || key != journalKey || !path.equals( journalPath ) )
+		{
+			if ( null != journal )
+				journal.close();
+			// Not reused if the new one cannot be opened.
+			journal = null;
+			journal = new DetectionJournal( path, key );
+			journalPath = path;
+			journalKey = key;
+		}
+		return journal;
+	}
+
+	/**
+	 * Returns the key a detection journal is written for. It is the first 64
+	 * bits of the SHA-1 digest of the image name, source and size, of the
+	 * interval to process, and of the settings that change the detections,
+	 * in key order. Missing settings count as their default value, and
+	 * numbers are compared by value, so that equivalent settings give the
+	 * same key.
+	 *
+	 * @param img
+	 *            the image to process.
+	 * @param settings
+	 *            the detection settings.
+	 * @param interval
+	 *            the interval to process.
+	 * @return the key.
+	 */
+	protected long journalKey( final ImgPlus< T > img, final Map< String, Object > settings, final Interval interval )
+	{
+		final SortedMap< String, Object > keySettings = new TreeMap<>( getDefaultSettings() );
+		keySettings.putAll( settings );
+		keySettings.keySet().removeAll( NON_DETECTION_KEYS );
+
+		final StringBuilder str = new StringBuilder();
+		str.append( "name=" ).append( img.getName() ).append( '\n' );
+		str.append( "source=" ).append( img.getSource() ).append( '\n' );
+		str.append( "dimensions=" ).append( Arrays.toString( Intervals.dimensionsAsLongArray( img ) ) ).append( '\n' );
+		str.append( "min=" ).append( Arrays.toString( Intervals.minAsLongArray( interval ) ) ).append( '\n' );
+		str.append( "max=" ).append( Arrays.toString( Intervals.maxAsLongArray( interval ) ) ).append( '\n' );
+		for ( final Map.Entry< String, Object > entry : keySettings.entrySet() )
+		{
+			final Object value = entry.getValue();
+			str.append( entry.getKey() ).append( '=' )
+					.append( ( value instanceof Number ) ? Double.toString( ( ( Number ) value ).doubleValue() ) : String.valueOf( value ) )
+					.append( '\n' );
+		}
+
+		final byte[] digest;
+		try
+		{
+			digest = MessageDigest.getInstance( "SHA-1" ).digest( str.toString().getBytes( StandardCharsets.UTF_8 ) );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			// Every Java platform has SHA-1.
+			throw new IllegalStateException( e );
+		}
+		return ByteBuffer.wrap( digest ).getLong();
+	}
+
 	@Override
 	public boolean forbidMultithreading()
 	{
@@ -113,9 +977,16 @@ public class StarDistDetectorFactory< T extends RealType< T > & NativeType< T >
 		return true;
 	}
 
+	@Override
+	public boolean has3Dsegmentation()
+	{
+		return true;
+	}
+
 	@Override
 	public ConfigurationPanel getDetectorConfigurationPanel( final Settings settings, final Model model )
 	{
+		setTrackMateSettings( settings );
 		return new StarDistDetectorConfigurationPanel( settings, model );
 	}
 
@@ -124,9 +995,96 @@ public class StarDistDetectorFactory< T extends RealType< T > & NativeType< T >
 	{
 		final Map< String, Object > settings = new HashMap<>();
 		settings.put( KEY_TARGET_CHANNEL, DEFAULT_TARGET_CHANNEL );
+		settings.put( KEY_PRESCREEN, DEFAULT_PRESCREEN );
+		settings.put( KEY_PRESCREEN_MAX_STD, DEFAULT_PRESCREEN_MAX_STD );
+		settings.put( KEY_KEYFRAME_INTERVAL, DEFAULT_KEYFRAME_INTERVAL );
+		settings.put( KEY_ROI_PADDING, DEFAULT_ROI_PADDING );
+		settings.put( KEY_INFERENCE_SCALE, DEFAULT_INFERENCE_SCALE );
+		settings.put( KEY_OBJECT_DIAMETER, DEFAULT_OBJECT_DIAMETER );
+		settings.put( KEY_PYRAMID_LEVELS, DEFAULT_PYRAMID_LEVELS );
+		settings.put( KEY_SIMPLIFY_TOLERANCE, DEFAULT_SIMPLIFY_TOLERANCE );
+		settings.put( KEY_LABEL_IMAGE_PATH, DEFAULT_LABEL_IMAGE_PATH );
+		settings.put( KEY_PREDICTION_PATH, DEFAULT_PREDICTION_PATH );
+		settings.put( KEY_TARGET_CHANNELS, DEFAULT_TARGET_CHANNELS );
+		settings.put( KEY_JOURNAL_PATH, DEFAULT_JOURNAL_PATH );
+		settings.put( KEY_INPUT_CACHE_SIZE, DEFAULT_INPUT_CACHE_SIZE );
+		settings.put( KEY_PREFETCH_DEPTH, DEFAULT_PREFETCH_DEPTH );
+		settings.put( KEY_QUALITY_MODE, DEFAULT_QUALITY_MODE );
+		settings.put( KEY_HALO, DEFAULT_HALO );
+		settings.put( KEY_EXCLUDE_BOUNDARY, DEFAULT_EXCLUDE_BOUNDARY );
 		return settings;
 	}
 
+	@Override
+	public String checkSettings( final Map< String, Object > settings )
+	{
+		// Settings made before the optional keys existed.
+		addMissingDefaults( settings );
+		return SpotDetectorFactory.super.checkSettings( settings );
+	}
+
+	@Override
+	public boolean unmarshall( final Element element, final Map< String, Object > settings )
+	{
+		settings.clear();
+		boolean ok = true;
+		for ( final Map.Entry< String, Object > entry : getDefaultSettings().entrySet() )
+		{
+			final String key = entry.getKey();
+			final String str = element.getAttributeValue( key );
+			if ( null == str )
+			{
+				if ( OPTIONAL_KEYS.contains( key ) )
+					continue;
+				System.err.println( "StarDistDetectorFactory: Attribute " + key + " could not be found in XML element." );
+				ok = false;
+				continue;
+			}
+			try
+			{
+				settings.put( key, parseValue( str, entry.getValue() ) );
+			}
+			catch ( final NumberFormatException e )
+			{
+				System.err.println( "StarDistDetectorFactory: Could not read the attribute " + key + ": " + str );
+				ok = false;
+			}
+		}
+		// Files saved before the optional keys existed.
+		addMissingDefaults( settings );
+		return ok;
+	}
+
+	/**
+	 * Adds the optional keys missing in the specified settings map, with their
+	 * default value.
+	 *
+	 * @param settings
+	 *            the settings map to complete.
+	 */
+	protected void addMissingDefaults( final Map< String, Object > settings )
+	{
+		final Map< String, Object > defaults = getDefaultSettings();
+		for ( final String key : OPTIONAL_KEYS )
+			if ( defaults.containsKey( key ) )
+				settings.putIfAbsent( key, defaults.get( key ) );
+	}
+
+	/**
+	 * Parses a value read from a file to the class of the specified default
+	 * value.
+	 */
+	private static Object parseValue( final String str, final Object defaultValue )
+	{
+		if ( defaultValue instanceof Integer )
+			return Integer.valueOf( str.trim() );
+		if ( defaultValue instanceof Double )
+			return Double.valueOf( str.trim() );
+		if ( defaultValue instanceof Boolean )
+			return Boolean.valueOf( str.trim() );
+		return str;
+	}
+
 	@Override
 	public String getInfoText()
 	{
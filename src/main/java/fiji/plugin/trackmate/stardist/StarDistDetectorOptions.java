@@ -0,0 +1,449 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_EXCLUDE_BOUNDARY;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_HALO;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_INFERENCE_SCALE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_INPUT_CACHE_SIZE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_JOURNAL_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_KEYFRAME_INTERVAL;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_LABEL_IMAGE_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_OBJECT_DIAMETER;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_PRESCREEN;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_PREDICTION_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_PREFETCH_DEPTH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_QUALITY_MODE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_PRESCREEN_MAX_STD;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_PYRAMID_LEVELS;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_ROI_PADDING;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_SIMPLIFY_TOLERANCE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_EXCLUDE_BOUNDARY;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_HALO;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_INFERENCE_SCALE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_INPUT_CACHE_SIZE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_JOURNAL_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_KEYFRAME_INTERVAL;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_LABEL_IMAGE_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_OBJECT_DIAMETER;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_PRESCREEN;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_PREDICTION_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_PREFETCH_DEPTH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_QUALITY_MODE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_PRESCREEN_MAX_STD;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_PYRAMID_LEVELS;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_ROI_PADDING;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_SIMPLIFY_TOLERANCE;
+
+import java.util.Map;
+
+/**
+ * The options of a {@link StarDistDetector} that are not related to the
+ * StarDist model itself. Instances are immutable and created with a builder:
+ *
+ * <pre>
+ * StarDistDetectorOptions options = StarDistDetectorOptions.create()
+ * 		.preScreen( true )
+ * 		.keyFrameInterval( 10 )
+ * 		.get();
+ * </pre>
+ */
+public class StarDistDetectorOptions
+{
+
+	/** Options for which the detector behaves as a plain detector. */
+	public static final StarDistDetectorOptions DEFAULT = create().get();
+
+	/**
+	 * The typical diameter, in pixels, of the objects the StarDist models are
+	 * trained on. Used to determine the inference scale from the expected
+	 * object diameter.
+	 */
+	public static final double MODEL_OBJECT_DIAMETER = 20.;
+
+	/**
+	 * If <code>true</code>, frames are pre-screened before running StarDist.
+	 */
+	public final boolean preScreen;
+
+	/**
+	 * Frames whose intensity standard deviation is lower or equal to this
+	 * value are considered to have no signal when pre-screening.
+	 */
+	public final double preScreenMaxStd;
+
+	/**
+	 * The interval, in frames, between full-frame detections. In between, the
+	 * detection only runs around the detections of the previous frame, and
+	 * new objects that appear elsewhere are only found at the next
+	 * key-frame. A value of 1 disables the ROI-restricted detection.
+	 */
+	public final int keyFrameInterval;
+
+	/**
+	 * The padding, in pixels, added around the bounding-box of previous
+	 * detections to build the regions processed between key-frames.
+	 */
+	public final int roiPadding;
+
+	/**
+	 * The scale at which StarDist runs, in <code>]0, 1]</code>. The input is
+	 * downsampled by this factor before inference. Ignored if an object
+	 * diameter is set.
+	 */
+	public final double inferenceScale;
+
+	/**
+	 * The expected object diameter, in physical units. If strictly positive,
+	 * the inference scale is determined from it so that objects have the
+	 * diameter the model was trained on.
+	 */
+	public final double objectDiameter;
+
+	/**
+	 * The number of resolution levels StarDist runs on, including the
+	 * inference resolution. Values larger than 1 enable the pyramid
+	 * detection.
+	 */
+	public final int pyramidLevels;
+
+	/**
+	 * The tolerance, in pixels, of the simplification of the spot polygons. A
+	 * value of 0 keeps all the vertices.
+	 */
+	public final double simplifyTolerance;
+
+	/**
+	 * The path to the N5 container the label images are written to. An empty
+	 * path disables the label image output.
+	 */
+	public final String labelImagePath;
+
+	/**
+	 * The path to the N5 container the CNN predictions are written to. An
+	 * empty path disables the export.
+	 */
+	public final String predictionPath;
+
+	/**
+	 * The path to the journal of the detections of each frame. An empty path
+	 * disables the journal.
+	 */
+	public final String journalPath;
+
+	/**
+	 * The number of frames of input kept in memory. A value of 0 reads the
+	 * image directly.
+	 */
+	public final int inputCacheSize;
+
+	/**
+	 * The number of frames whose input is read ahead. A value
+	 * of 0 disables the prefetching.
+	 */
+	public final int prefetchDepth;
+
+	/**
+	 * How the quality of the spots is computed.
+	 */
+	public final QualityMode qualityMode;
+
+	/**
+	 * The width, in pixels, of the context read around each processed
+	 * region. Only the objects centered in the region are kept. A value of 0
+	 * processes the region alone.
+	 */
+	public final int halo;
+
+	/**
+	 * The width, in pixels, of the border of the processed image in which
+	 * StarDist candidates are discarded.
+	 */
+	public final int excludeBoundary;
+
+	private StarDistDetectorOptions( final Builder builder )
+	{
+		this.preScreen = builder.preScreen;
+		this.preScreenMaxStd = builder.preScreenMaxStd;
+		this.keyFrameInterval = Math.max( 1, builder.keyFrameInterval );
+		this.roiPadding = Math.max( 0, builder.roiPadding );
+		this.inferenceScale = builder.inferenceScale;
+		this.objectDiameter = builder.objectDiameter;
+		this.pyramidLevels = Math.max( 1, builder.pyramidLevels );
+		this.simplifyTolerance = Math.max( 0., builder.simplifyTolerance );
+		this.labelImagePath = ( null == builder.labelImagePath ) ? "" : builder.labelImagePath.trim();
+		this.predictionPath = ( null == builder.predictionPath ) ? "" : builder.predictionPath.trim();
+		this.journalPath = ( null == builder.journalPath ) ? "" : builder.journalPath.trim();
+		this.inputCacheSize = Math.max( 0, builder.inputCacheSize );
+		this.prefetchDepth = Math.max( 0, builder.prefetchDepth );
+		this.qualityMode = ( null == builder.qualityMode ) ? QualityMode.MAX_PROBABILITY : builder.qualityMode;
+		this.halo = Math.max( 0, builder.halo );
+		this.excludeBoundary = Math.max( 0, builder.excludeBoundary );
+	}
+
+	/**
+	 * Returns the scale at which StarDist must run for an image with the
+	 * specified pixel size. The scale is never larger than 1: objects smaller
+	 * than what the model expects are processed at native resolution.
+	 *
+	 * @param pixelSize
+	 *            the pixel size, in physical units.
+	 * @return the inference scale, in <code>]0, 1]</code>.
+	 */
+	public double getInferenceScale( final double pixelSize )
+	{
+		final double scale = ( objectDiameter > 0. )
+				? MODEL_OBJECT_DIAMETER * pixelSize / objectDiameter
+				: inferenceScale;
+		if ( !( scale > 0. ) || scale > 1. )
+			return 1.;
+		return scale;
+	}
+
+	/**
+	 * Returns <code>true</code> if detectors created with these options need
+	 * to remember the detections made in the previous frame.
+	 *
+	 * @return <code>true</code> if a {@link FrameMemory} is needed.
+	 */
+	public boolean needsFrameMemory()
+	{
+		return preScreen || keyFrameInterval > 1;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified frame is a key-frame, that is
+	 * a frame processed as a whole.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return <code>true</code> if the frame is a key-frame.
+	 */
+	public boolean isKeyFrame( final int frame )
+	{
+		return keyFrameInterval <= 1 || frame % keyFrameInterval == 0;
+	}
+
+	public static Builder create()
+	{
+		return new Builder();
+	}
+
+	/**
+	 * Returns a builder initialized with the values of the specified
+	 * options, to create options that only differ by a few values.
+	 *
+	 * @param options
+	 *            the options to copy.
+	 * @return a new builder.
+	 */
+	public static Builder create( final StarDistDetectorOptions options )
+	{
+		return create()
+				.preScreen( options.preScreen )
+				.preScreenMaxStd( options.preScreenMaxStd )
+				.keyFrameInterval( options.keyFrameInterval )
+				.roiPadding( options.roiPadding )
+				.inferenceScale( options.inferenceScale )
+				.objectDiameter( options.objectDiameter )
+				.pyramidLevels( options.pyramidLevels )
+				.simplifyTolerance( options.simplifyTolerance )
+				.labelImagePath( options.labelImagePath )
+				.predictionPath( options.predictionPath )
+				.journalPath( options.journalPath )
+				.inputCacheSize( options.inputCacheSize )
+				.prefetchDepth( options.prefetchDepth )
+				.qualityMode( options.qualityMode )
+				.halo( options.halo )
+				.excludeBoundary( options.excludeBoundary );
+	}
+
+	/**
+	 * Creates options from a detector settings map. Missing keys take their
+	 * default value.
+	 *
+	 * @param settings
+	 *            the detector settings map.
+	 * @return new options.
+	 */
+	public static StarDistDetectorOptions fromSettings( final Map< String, Object > settings )
+	{
+		return create()
+				.preScreen( ( Boolean ) settings.getOrDefault( KEY_PRESCREEN, DEFAULT_PRESCREEN ) )
+				.preScreenMaxStd( ( ( Number ) settings.getOrDefault( KEY_PRESCREEN_MAX_STD, DEFAULT_PRESCREEN_MAX_STD ) ).doubleValue() )
+				.keyFrameInterval( ( ( Number ) settings.getOrDefault( KEY_KEYFRAME_INTERVAL, DEFAULT_KEYFRAME_INTERVAL ) ).intValue() )
+				.roiPadding( ( ( Number ) settings.getOrDefault( KEY_ROI_PADDING, DEFAULT_ROI_PADDING ) ).intValue() )
+				.inferenceScale( ( ( Number ) settings.getOrDefault( KEY_INFERENCE_SCALE, DEFAULT_INFERENCE_SCALE ) ).doubleValue() )
+				.objectDiameter( ( ( Number ) settings.getOrDefault( KEY_OBJECT_DIAMETER, DEFAULT_OBJECT_DIAMETER ) ).doubleValue() )
+				.pyramidLevels( ( ( Number ) settings.getOrDefault( KEY_PYRAMID_LEVELS, DEFAULT_PYRAMID_LEVELS ) ).intValue() )
+				.simplifyTolerance( ( ( Number ) settings.getOrDefault( KEY_SIMPLIFY_TOLERANCE, DEFAULT_SIMPLIFY_TOLERANCE ) ).doubleValue() )
+				.labelImagePath( ( String ) settings.getOrDefault( KEY_LABEL_IMAGE_PATH, DEFAULT_LABEL_IMAGE_PATH ) )
+				.predictionPath( ( String ) settings.getOrDefault( KEY_PREDICTION_PATH, DEFAULT_PREDICTION_PATH ) )
+				.journalPath( ( String ) settings.getOrDefault( KEY_JOURNAL_PATH, DEFAULT_JOURNAL_PATH ) )
+				.inputCacheSize( ( ( Number ) settings.getOrDefault( KEY_INPUT_CACHE_SIZE, DEFAULT_INPUT_CACHE_SIZE ) ).intValue() )
+				.prefetchDepth( ( ( Number ) settings.getOrDefault( KEY_PREFETCH_DEPTH, DEFAULT_PREFETCH_DEPTH ) ).intValue() )
+				.qualityMode( QualityMode.fromName( ( String ) settings.getOrDefault( KEY_QUALITY_MODE, DEFAULT_QUALITY_MODE ) ) )
+				.halo( ( ( Number ) settings.getOrDefault( KEY_HALO, DEFAULT_HALO ) ).intValue() )
+				.excludeBoundary( ( ( Number ) settings.getOrDefault( KEY_EXCLUDE_BOUNDARY, DEFAULT_EXCLUDE_BOUNDARY ) ).intValue() )
+				.get();
+	}
+
+	public static class Builder
+	{
+
+		private boolean preScreen = DEFAULT_PRESCREEN;
+
+		private double preScreenMaxStd = DEFAULT_PRESCREEN_MAX_STD;
+
+		private int keyFrameInterval = DEFAULT_KEYFRAME_INTERVAL;
+
+		private int roiPadding = DEFAULT_ROI_PADDING;
+
+		private double inferenceScale = DEFAULT_INFERENCE_SCALE;
+
+		private double objectDiameter = DEFAULT_OBJECT_DIAMETER;
+
+		private int pyramidLevels = DEFAULT_PYRAMID_LEVELS;
+
+		private double simplifyTolerance = DEFAULT_SIMPLIFY_TOLERANCE;
+
+		private String labelImagePath = DEFAULT_LABEL_IMAGE_PATH;
+
+		private String predictionPath = DEFAULT_PREDICTION_PATH;
+
+		private String journalPath = DEFAULT_JOURNAL_PATH;
+
+		private int inputCacheSize = DEFAULT_INPUT_CACHE_SIZE;
+
+		private int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+
+		private QualityMode qualityMode = QualityMode.fromName( DEFAULT_QUALITY_MODE );
+
+		private int halo = DEFAULT_HALO;
+
+		private int excludeBoundary = DEFAULT_EXCLUDE_BOUNDARY;
+
+		private Builder()
+		{}
+
+		public Builder preScreen( final boolean preScreen )
+		{
+			this.preScreen = preScreen;
+			return this;
+		}
+
+		public Builder preScreenMaxStd( final double preScreenMaxStd )
+		{
+			this.preScreenMaxStd = preScreenMaxStd;
+			return this;
+		}
+
+		public Builder keyFrameInterval( final int keyFrameInterval )
+		{
+			this.keyFrameInterval = keyFrameInterval;
+			return this;
+		}
+
+		public Builder roiPadding( final int roiPadding )
+		{
+			this.roiPadding = roiPadding;
+			return this;
+		}
+
+		public Builder inferenceScale( final double inferenceScale )
+		{
+			this.inferenceScale = inferenceScale;
+			return this;
+		}
+
+		public Builder objectDiameter( final double objectDiameter )
+		{
+			this.objectDiameter = objectDiameter;
+			return this;
+		}
+
+		public Builder pyramidLevels( final int pyramidLevels )
+		{
+			this.pyramidLevels = pyramidLevels;
+			return this;
+		}
+
+		public Builder simplifyTolerance( final double simplifyTolerance )
+		{
+			this.simplifyTolerance = simplifyTolerance;
+			return this;
+		}
+
+		public Builder labelImagePath( final String labelImagePath )
+		{
+			this.labelImagePath = labelImagePath;
+			return this;
+		}
+
+		public Builder predictionPath( final String predictionPath )
+		{
+			this.predictionPath = predictionPath;
+			return this;
+		}
+
+		public Builder journalPath( final String journalPath )
+		{
+			this.journalPath = journalPath;
+			return this;
+		}
+
+		public Builder inputCacheSize( final int inputCacheSize )
+		{
+			this.inputCacheSize = inputCacheSize;
+			return this;
+		}
+
+		public Builder prefetchDepth( final int prefetchDepth )
+		{
+			this.prefetchDepth = prefetchDepth;
+			return this;
+		}
+
+		public Builder qualityMode( final QualityMode qualityMode )
+		{
+			this.qualityMode = qualityMode;
+			return this;
+		}
+
+		public Builder halo( final int halo )
+		{
+			this.halo = halo;
+			return this;
+		}
+
+		public Builder excludeBoundary( final int excludeBoundary )
+		{
+			this.excludeBoundary = excludeBoundary;
+			return this;
+		}
+
+		public StarDistDetectorOptions get()
+		{
+			return new StarDistDetectorOptions( this );
+		}
+	}
+}
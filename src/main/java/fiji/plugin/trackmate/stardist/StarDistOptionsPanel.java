@@ -0,0 +1,371 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static fiji.plugin.trackmate.gui.Fonts.FONT;
+import static fiji.plugin.trackmate.gui.Fonts.SMALL_FONT;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_EXCLUDE_BOUNDARY;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_HALO;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_INFERENCE_SCALE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_INPUT_CACHE_SIZE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_JOURNAL_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_KEYFRAME_INTERVAL;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_LABEL_IMAGE_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_OBJECT_DIAMETER;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_PREDICTION_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_PREFETCH_DEPTH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_PRESCREEN;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_PRESCREEN_MAX_STD;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_PYRAMID_LEVELS;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_QUALITY_MODE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_ROI_PADDING;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_SIMPLIFY_TOLERANCE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.DEFAULT_TARGET_CHANNELS;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_EXCLUDE_BOUNDARY;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_HALO;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_INFERENCE_SCALE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_INPUT_CACHE_SIZE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_JOURNAL_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_KEYFRAME_INTERVAL;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_LABEL_IMAGE_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_OBJECT_DIAMETER;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_PREDICTION_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_PREFETCH_DEPTH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_PRESCREEN;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_PRESCREEN_MAX_STD;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_PYRAMID_LEVELS;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_QUALITY_MODE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_ROI_PADDING;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_SIMPLIFY_TOLERANCE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_TARGET_CHANNELS;
+
+import java.awt.Dimension;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.Map;
+
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JComponent;
+import javax.swing.JFormattedTextField;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+import javax.swing.SwingConstants;
+
+/**
+ * The detection options shared by the StarDist 2D configuration panels. The
+ * main rows hold the options that change what is detected. The I/O and
+ * performance options, and the edge handling, are in an advanced section that
+ * is hidden unless one of them differs from its default.
+ */
+public class StarDistOptionsPanel extends JPanel
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private static final NumberFormat DECIMAL_FORMAT = new DecimalFormat( "#.##" );
+
+	private static final NumberFormat INTEGER_FORMAT = new DecimalFormat( "#" );
+
+	private final JCheckBox chckbxPreScreen;
+
+	private final JFormattedTextField ftfPreScreenMaxStd;
+
+	private final JFormattedTextField ftfKeyFrameInterval;
+
+	private final JFormattedTextField ftfRoiPadding;
+
+	private final JFormattedTextField ftfInferenceScale;
+
+	private final JFormattedTextField ftfObjectDiameter;
+
+	private final JFormattedTextField ftfPyramidLevels;
+
+	private final JFormattedTextField ftfSimplifyTolerance;
+
+	private final JTextField txtTargetChannels;
+
+	private final JComboBox< QualityMode > cmbQualityMode;
+
+	private final JCheckBox chckbxAdvanced;
+
+	private final JPanel panelAdvanced;
+
+	private final JTextField txtLabelImagePath;
+
+	private final JTextField txtPredictionPath;
+
+	private final JTextField txtJournalPath;
+
+	private final JFormattedTextField ftfInputCacheSize;
+
+	private final JFormattedTextField ftfPrefetchDepth;
+
+	private final JFormattedTextField ftfHalo;
+
+	private final JFormattedTextField ftfExcludeBoundary;
+
+	public StarDistOptionsPanel()
+	{
+		final GridBagLayout gridBagLayout = new GridBagLayout();
+		gridBagLayout.columnWidths = new int[] { 200, 0 };
+		gridBagLayout.columnWeights = new double[] { 0., 1. };
+		setLayout( gridBagLayout );
+		int row = 0;
+
+		/*
+		 * Pre-screen.
+		 */
+
+		chckbxPreScreen = new JCheckBox();
+		addRow( this, row++, "Skip blank and repeated frames:", chckbxPreScreen );
+
+		ftfPreScreenMaxStd = numberField( DECIMAL_FORMAT, null );
+		addRow( this, row++, "Blank frame max std:", ftfPreScreenMaxStd );
+		chckbxPreScreen.addItemListener( e -> ftfPreScreenMaxStd.setEnabled( chckbxPreScreen.isSelected() ) );
+
+		/*
+		 * ROI-restricted detection.
+		 */
+
+		ftfKeyFrameInterval = numberField( INTEGER_FORMAT, "<html>Frames are processed as a whole every N frames. "
+				+ "<br>In between, StarDist only runs around the detections of the previous frame. "
+				+ "<br>Use 1 to process all frames as a whole.</html>" );
+		addRow( this, row++, "Key-frame interval:", ftfKeyFrameInterval );
+
+		ftfRoiPadding = numberField( INTEGER_FORMAT, null );
+		addRow( this, row++, "ROI padding (pixels):", ftfRoiPadding );
+
+		/*
+		 * Inference scale.
+		 */
+
+		ftfInferenceScale = numberField( DECIMAL_FORMAT, "<html>Scale at which StarDist runs, from 0 to 1. <br>Use values lower than 1 when objects are much larger than what the model expects.</html>" );
+		addRow( this, row++, "Inference scale:", ftfInferenceScale );
+
+		ftfObjectDiameter = numberField( DECIMAL_FORMAT, "<html>Expected object diameter, in physical units. <br>If larger than 0, the inference scale is computed from it. <br>Use 0 to set the inference scale manually.</html>" );
+		addRow( this, row++, "Object diameter:", ftfObjectDiameter );
+
+		/*
+		 * Pyramid detection.
+		 */
+
+		ftfPyramidLevels = numberField( INTEGER_FORMAT, "<html>Number of resolutions StarDist runs on, each one half the previous one. <br>Use values larger than 1 when objects have very different sizes. <br>Candidates of all levels are merged with a single NMS.</html>" );
+		addRow( this, row++, "Pyramid levels:", ftfPyramidLevels );
+
+		/*
+		 * Polygon simplification.
+		 */
+
+		ftfSimplifyTolerance = numberField( DECIMAL_FORMAT, "<html>Tolerance, in pixels, of the simplification of the spot contours. <br>Vertices closer than this to the simplified contour are removed, <br>which makes spots lighter in memory and in saved files. <br>Use 0 to keep all the vertices.</html>" );
+		addRow( this, row++, "Simplify tolerance:", ftfSimplifyTolerance );
+
+		/*
+		 * Multi-channel input.
+		 */
+
+		txtTargetChannels = textField( "<html>For models trained on several channels: the channels fed to the model, <br>separated by commas, for instance 1,2. Leave empty to use the channel above.</html>" );
+		addRow( this, row++, "Model channels:", txtTargetChannels );
+
+		/*
+		 * Spot quality.
+		 */
+
+		cmbQualityMode = new JComboBox<>( QualityMode.values() );
+		cmbQualityMode.setFont( SMALL_FONT );
+		cmbQualityMode.setToolTipText( "<html>How the quality of the spots is computed. <br>The candidate score skips reading the probability map <br>after NMS, and is the fastest.</html>" );
+		addRow( this, row++, "Quality:", cmbQualityMode );
+
+		/*
+		 * Advanced options.
+		 */
+
+		chckbxAdvanced = new JCheckBox();
+		addRow( this, row++, "Show advanced options:", chckbxAdvanced );
+
+		panelAdvanced = new JPanel();
+		final GridBagLayout advancedLayout = new GridBagLayout();
+		advancedLayout.columnWidths = new int[] { 200, 0 };
+		advancedLayout.columnWeights = new double[] { 0., 1. };
+		panelAdvanced.setLayout( advancedLayout );
+		final GridBagConstraints gbcPanelAdvanced = new GridBagConstraints();
+		gbcPanelAdvanced.gridwidth = 2;
+		gbcPanelAdvanced.fill = GridBagConstraints.HORIZONTAL;
+		gbcPanelAdvanced.gridx = 0;
+		gbcPanelAdvanced.gridy = row++;
+		add( panelAdvanced, gbcPanelAdvanced );
+		panelAdvanced.setVisible( false );
+		chckbxAdvanced.addItemListener( e -> {
+			panelAdvanced.setVisible( chckbxAdvanced.isSelected() );
+			revalidate();
+		} );
+		int advancedRow = 0;
+
+		txtLabelImagePath = textField( "<html>Path to an N5 container the label images are written to, <br>one frame at a time, during detection. <br>Leave empty to not write label images.</html>" );
+		addRow( panelAdvanced, advancedRow++, "Label image N5:", txtLabelImagePath );
+
+		txtPredictionPath = textField( "<html>Path to an N5 container the probability and distance maps <br>predicted by the CNN are written to, for QC or to re-run NMS offline. <br>Leave empty to not export them.</html>" );
+		addRow( panelAdvanced, advancedRow++, "Predictions N5:", txtPredictionPath );
+
+		txtJournalPath = textField( "<html>Path to a file the detections of each frame are appended to. <br>A run restarted with the same journal skips the frames already in it. <br>Leave empty to disable.</html>" );
+		addRow( panelAdvanced, advancedRow++, "Journal file:", txtJournalPath );
+
+		ftfInputCacheSize = numberField( INTEGER_FORMAT, "<html>Number of frames of input kept in memory. <br>Each frame is read once, and the next one is read <br>while the current one is processed. <br>Released at the end of the run. 0 reads the image directly.</html>" );
+		addRow( panelAdvanced, advancedRow++, "Cached frames:", ftfInputCacheSize );
+
+		ftfPrefetchDepth = numberField( INTEGER_FORMAT, "<html>Number of frames whose input is read ahead <br>in a separate thread while the current frame is processed. <br>Only used at native resolution, on a single level. 0 disables it.</html>" );
+		addRow( panelAdvanced, advancedRow++, "Prefetched frames:", ftfPrefetchDepth );
+
+		ftfHalo = numberField( INTEGER_FORMAT, "<html>Width of the context read around the detection region. <br>Only objects centered in the region are kept, so that <br>adjacent regions do not detect the same object twice.</html>" );
+		addRow( panelAdvanced, advancedRow++, "Halo (pixels):", ftfHalo );
+
+		ftfExcludeBoundary = numberField( INTEGER_FORMAT, "<html>Width of the border of the processed image <br>in which StarDist candidates are discarded.</html>" );
+		addRow( panelAdvanced, advancedRow++, "Excluded border (pixels):", ftfExcludeBoundary );
+	}
+
+	/**
+	 * Adds the values of the options to the specified settings map.
+	 *
+	 * @param settings
+	 *            the settings map to add the values to.
+	 */
+	public void putSettings( final Map< String, Object > settings )
+	{
+		settings.put( KEY_PRESCREEN, chckbxPreScreen.isSelected() );
+		final double preScreenMaxStd = ( ( Number ) ftfPreScreenMaxStd.getValue() ).doubleValue();
+		settings.put( KEY_PRESCREEN_MAX_STD, preScreenMaxStd );
+		final int keyFrameInterval = ( ( Number ) ftfKeyFrameInterval.getValue() ).intValue();
+		settings.put( KEY_KEYFRAME_INTERVAL, keyFrameInterval );
+		final int roiPadding = ( ( Number ) ftfRoiPadding.getValue() ).intValue();
+		settings.put( KEY_ROI_PADDING, roiPadding );
+		final double inferenceScale = ( ( Number ) ftfInferenceScale.getValue() ).doubleValue();
+		settings.put( KEY_INFERENCE_SCALE, inferenceScale );
+		final double objectDiameter = ( ( Number ) ftfObjectDiameter.getValue() ).doubleValue();
+		settings.put( KEY_OBJECT_DIAMETER, objectDiameter );
+		final int pyramidLevels = ( ( Number ) ftfPyramidLevels.getValue() ).intValue();
+		settings.put( KEY_PYRAMID_LEVELS, pyramidLevels );
+		final double simplifyTolerance = ( ( Number ) ftfSimplifyTolerance.getValue() ).doubleValue();
+		settings.put( KEY_SIMPLIFY_TOLERANCE, simplifyTolerance );
+		settings.put( KEY_TARGET_CHANNELS, txtTargetChannels.getText() );
+		settings.put( KEY_QUALITY_MODE, ( ( QualityMode ) cmbQualityMode.getSelectedItem() ).name() );
+		settings.put( KEY_LABEL_IMAGE_PATH, txtLabelImagePath.getText() );
+		settings.put( KEY_PREDICTION_PATH, txtPredictionPath.getText() );
+		settings.put( KEY_JOURNAL_PATH, txtJournalPath.getText() );
+		final int inputCacheSize = ( ( Number ) ftfInputCacheSize.getValue() ).intValue();
+		settings.put( KEY_INPUT_CACHE_SIZE, inputCacheSize );
+		final int prefetchDepth = ( ( Number ) ftfPrefetchDepth.getValue() ).intValue();
+		settings.put( KEY_PREFETCH_DEPTH, prefetchDepth );
+		final int halo = ( ( Number ) ftfHalo.getValue() ).intValue();
+		settings.put( KEY_HALO, halo );
+		final int excludeBoundary = ( ( Number ) ftfExcludeBoundary.getValue() ).intValue();
+		settings.put( KEY_EXCLUDE_BOUNDARY, excludeBoundary );
+	}
+
+	/**
+	 * Displays the options of the specified settings map. Missing keys are
+	 * displayed with their default value. The advanced section is shown if
+	 * one of its options is not the default one.
+	 *
+	 * @param settings
+	 *            the settings map.
+	 */
+	public void setSettings( final Map< String, Object > settings )
+	{
+		chckbxPreScreen.setSelected( ( Boolean ) settings.getOrDefault( KEY_PRESCREEN, DEFAULT_PRESCREEN ) );
+		ftfPreScreenMaxStd.setValue( settings.getOrDefault( KEY_PRESCREEN_MAX_STD, DEFAULT_PRESCREEN_MAX_STD ) );
+		ftfPreScreenMaxStd.setEnabled( chckbxPreScreen.isSelected() );
+		ftfKeyFrameInterval.setValue( settings.getOrDefault( KEY_KEYFRAME_INTERVAL, DEFAULT_KEYFRAME_INTERVAL ) );
+		ftfRoiPadding.setValue( settings.getOrDefault( KEY_ROI_PADDING, DEFAULT_ROI_PADDING ) );
+		ftfInferenceScale.setValue( settings.getOrDefault( KEY_INFERENCE_SCALE, DEFAULT_INFERENCE_SCALE ) );
+		ftfObjectDiameter.setValue( settings.getOrDefault( KEY_OBJECT_DIAMETER, DEFAULT_OBJECT_DIAMETER ) );
+		ftfPyramidLevels.setValue( settings.getOrDefault( KEY_PYRAMID_LEVELS, DEFAULT_PYRAMID_LEVELS ) );
+		ftfSimplifyTolerance.setValue( settings.getOrDefault( KEY_SIMPLIFY_TOLERANCE, DEFAULT_SIMPLIFY_TOLERANCE ) );
+		txtTargetChannels.setText( ( String ) settings.getOrDefault( KEY_TARGET_CHANNELS, DEFAULT_TARGET_CHANNELS ) );
+		cmbQualityMode.setSelectedItem( QualityMode.fromName( ( String ) settings.getOrDefault( KEY_QUALITY_MODE, DEFAULT_QUALITY_MODE ) ) );
+		txtLabelImagePath.setText( ( String ) settings.getOrDefault( KEY_LABEL_IMAGE_PATH, DEFAULT_LABEL_IMAGE_PATH ) );
+		txtPredictionPath.setText( ( String ) settings.getOrDefault( KEY_PREDICTION_PATH, DEFAULT_PREDICTION_PATH ) );
+		txtJournalPath.setText( ( String ) settings.getOrDefault( KEY_JOURNAL_PATH, DEFAULT_JOURNAL_PATH ) );
+		ftfInputCacheSize.setValue( settings.getOrDefault( KEY_INPUT_CACHE_SIZE, DEFAULT_INPUT_CACHE_SIZE ) );
+		ftfPrefetchDepth.setValue( settings.getOrDefault( KEY_PREFETCH_DEPTH, DEFAULT_PREFETCH_DEPTH ) );
+		ftfHalo.setValue( settings.getOrDefault( KEY_HALO, DEFAULT_HALO ) );
+		ftfExcludeBoundary.setValue( settings.getOrDefault( KEY_EXCLUDE_BOUNDARY, DEFAULT_EXCLUDE_BOUNDARY ) );
+
+		final boolean advanced = !txtLabelImagePath.getText().trim().isEmpty()
+				|| !txtPredictionPath.getText().trim().isEmpty()
+				|| !txtJournalPath.getText().trim().isEmpty()
+				|| ( ( Number ) ftfInputCacheSize.getValue() ).intValue() != DEFAULT_INPUT_CACHE_SIZE
+				|| ( ( Number ) ftfPrefetchDepth.getValue() ).intValue() != DEFAULT_PREFETCH_DEPTH
+				|| ( ( Number ) ftfHalo.getValue() ).intValue() != DEFAULT_HALO
+				|| ( ( Number ) ftfExcludeBoundary.getValue() ).intValue() != DEFAULT_EXCLUDE_BOUNDARY;
+		chckbxAdvanced.setSelected( advanced );
+		panelAdvanced.setVisible( advanced );
+	}
+
+	private static JFormattedTextField numberField( final NumberFormat format, final String toolTip )
+	{
+		final JFormattedTextField ftf = new JFormattedTextField( format );
+		ftf.setFont( FONT );
+		ftf.setMinimumSize( new Dimension( 60, 26 ) );
+		ftf.setHorizontalAlignment( SwingConstants.CENTER );
+		ftf.setToolTipText( toolTip );
+		return ftf;
+	}
+
+	private static JTextField textField( final String toolTip )
+	{
+		final JTextField txt = new JTextField( "" );
+		txt.setFont( SMALL_FONT );
+		txt.setColumns( 10 );
+		txt.setToolTipText( toolTip );
+		return txt;
+	}
+
+	/**
+	 * Adds a label and its field on the specified row of a panel laid out
+	 * with a {@link GridBagLayout}. Text fields span the column, other fields
+	 * keep their preferred size.
+	 */
+	private static void addRow( final JPanel panel, final int row, final String text, final JComponent field )
+	{
+		final JLabel label = new JLabel( text );
+		label.setFont( SMALL_FONT );
+		final GridBagConstraints gbcLabel = new GridBagConstraints();
+		gbcLabel.anchor = GridBagConstraints.EAST;
+		gbcLabel.insets = new Insets( 5, 5, 5, 5 );
+		gbcLabel.gridx = 0;
+		gbcLabel.gridy = row;
+		panel.add( label, gbcLabel );
+
+		final GridBagConstraints gbcField = new GridBagConstraints();
+		gbcField.anchor = GridBagConstraints.WEST;
+		if ( field instanceof JTextField && !( field instanceof JFormattedTextField ) )
+			gbcField.fill = GridBagConstraints.HORIZONTAL;
+		gbcField.insets = new Insets( 5, 5, 5, 5 );
+		gbcField.gridx = 1;
+		gbcField.gridy = row;
+		panel.add( field, gbcField );
+	}
+}
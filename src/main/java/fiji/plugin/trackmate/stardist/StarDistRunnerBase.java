@@ -21,11 +21,17 @@
  */
 package fiji.plugin.trackmate.stardist;
 
+import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.stream.IntStream;
@@ -39,15 +45,28 @@ import de.csbdresden.stardist.Candidates;
 import de.csbdresden.stardist.StarDist2DModel;
 import de.csbdresden.stardist.StarDist2DNMS;
 import de.csbdresden.stardist.Utils;
+import fiji.plugin.trackmate.stardist.util.ArrayPool;
+import fiji.plugin.trackmate.stardist.util.DirectBuffers;
+import fiji.plugin.trackmate.stardist.util.Resampling;
 import fiji.plugin.trackmate.util.TMUtils;
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.nio.FloatBufferAccess;
 import net.imglib2.type.Type;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
+import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
 
@@ -74,6 +93,26 @@ public abstract class StarDistRunnerBase
 	 * Default parameters.
 	 */
 
+	/**
+	 * Default number of pixels along the image border in which candidates
+	 * are ignored.
+	 */
+	private final static int EXCLUDE_BOUNDARY = 2;
+
+	/** Name of the CNN inference stage in {@link #getTimings()}. */
+	public static final String STAGE_CNN = "CNN";
+
+	/** Name of the non-maximum suppression stage in {@link #getTimings()}. */
+	public static final String STAGE_NMS = "NMS";
+
+	/** Name of the polygon and quality stage in {@link #getTimings()}. */
+	public static final String STAGE_POLYGONS = "Polygons";
+
+	/**
+	 * Minimal size, in pixels, of a pyramid level.
+	 */
+	public final static int MIN_LEVEL_SIZE = 32;
+
 	private final static Map< String, Object > PARAMS_CNN = new HashMap<>();
 
 	private final static Map< String, Object > PARAMS_NMS = new HashMap<>();
@@ -84,7 +123,6 @@ public abstract class StarDistRunnerBase
 		final double percentileBottom = 1.0;
 		final double percentileTop = 99.8;
 		final boolean showCsbdeepProgress = false;
-		final int excludeBoundary = 2;
 		final boolean verbose = false;
 		final String roiPosition = "Hyperstack";
 
@@ -102,7 +140,6 @@ public abstract class StarDistRunnerBase
 		 * Post-processing parameters. Defaults are good too.
 		 */
 		PARAMS_NMS.put( "outputType", OUTPUT_POLYGONS );
-		PARAMS_NMS.put( "excludeBoundary", excludeBoundary );
 		PARAMS_NMS.put( "roiPosition", roiPosition );
 		PARAMS_NMS.put( "verbose", verbose );
 	}
@@ -113,6 +150,17 @@ public abstract class StarDistRunnerBase
 
 	private File modelFile;
 
+	private PredictionListener predictionListener;
+
+	private QualityMode qualityMode = QualityMode.MAX_PROBABILITY;
+
+	private int excludeBoundary = EXCLUDE_BOUNDARY;
+
+	private boolean normalizeInput = true;
+
+	/** Time spent in each stage by the last run, in ms. */
+	private final Map< String, Long > timings = new LinkedHashMap<>();
+
 	protected abstract StarDist2DModel getModel() throws Exception;
 
 	/**
@@ -158,10 +206,364 @@ public abstract class StarDistRunnerBase
 		return errorMessage;
 	}
 
+	/**
+	 * Sets the listener notified of the probability and distance maps
+	 * predicted by the CNN, before they are discarded.
+	 *
+	 * @param predictionListener
+	 *            the listener, or <code>null</code> to remove it.
+	 */
+	public void setPredictionListener( final PredictionListener predictionListener )
+	{
+		this.predictionListener = predictionListener;
+	}
+
+	/**
+	 * Sets how the quality of the detected polygons is computed.
+	 *
+	 * @param qualityMode
+	 *            the quality mode.
+	 */
+	public void setQualityMode( final QualityMode qualityMode )
+	{
+		this.qualityMode = qualityMode;
+	}
+
+	/**
+	 * Sets the width of the border of the input in which candidates are
+	 * discarded.
+	 *
+	 * @param excludeBoundary
+	 *            the border width, in pixels.
+	 */
+	public void setExcludeBoundary( final int excludeBoundary )
+	{
+		this.excludeBoundary = Math.max( 0, excludeBoundary );
+	}
+
+	/**
+	 * Sets whether the CNN normalizes its input. Input already normalized by
+	 * the caller, for instance over a whole stack with
+	 * {@link fiji.plugin.trackmate.stardist.util.Normalization}, must not be
+	 * normalized again.
+	 *
+	 * @param normalizeInput
+	 *            <code>true</code> to normalize the input, the default.
+	 */
+	public void setNormalizeInput( final boolean normalizeInput )
+	{
+		this.normalizeInput = normalizeInput;
+	}
+
+	/**
+	 * Returns the time spent in each stage of the last run: the CNN
+	 * inference, the NMS and the creation of the polygons.
+	 *
+	 * @return a new map from stage name to time, in ms, in stage order.
+	 */
+	public Map< String, Long > getTimings()
+	{
+		return new LinkedHashMap<>( timings );
+	}
+
+	private void addTiming( final String stage, final long start )
+	{
+		timings.merge( stage, System.currentTimeMillis() - start, Long::sum );
+	}
+
 	public < T extends Type< T > > Pair< Candidates, RandomAccessibleInterval< FloatType > > run( final RandomAccessibleInterval< T > input ) {
 
 		this.errorMessage = null;
+		timings.clear();
+		final Pair< Dataset, Dataset > probAndDist = predict( input );
+		if ( null == probAndDist )
+			return null;
+
+		final Candidates polygons = nms( probAndDist );
+		if ( null == polygons )
+			return null;
+
+		@SuppressWarnings( "unchecked" )
+		final RandomAccessibleInterval< FloatType > proba = ( RandomAccessibleInterval< FloatType > ) probAndDist.getA().getImgPlus().getImg();
+		return new ValuePair<>( polygons, proba );
+	}
+
+	/**
+	 * Runs the StarDist post-processing on the specified predictions.
+	 */
+	private Candidates nms( final Pair< Dataset, Dataset > probAndDist )
+	{
+		final Map< String, Object > paramsNMS = new HashMap<>( PARAMS_NMS );
+		paramsNMS.put( "probThresh", model.probThresh );
+		paramsNMS.put( "nmsThresh", model.nmsThresh );
+		paramsNMS.put( "excludeBoundary", excludeBoundary );
+		paramsNMS.put( "prob", probAndDist.getA() );
+		paramsNMS.put( "dist", probAndDist.getB() );
+
+		try
+		{
+			final long start = System.currentTimeMillis();
+			final CommandService commandService = context.getService( CommandService.class );
+			final Future< CommandModule > futureNMS = commandService.run( StarDist2DNMS.class, false, paramsNMS );
+			final Candidates candidates = ( Candidates ) futureNMS.get().getOutput( "polygons" );
+			addTiming( STAGE_NMS, start );
+			return candidates;
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			errorMessage = e.getMessage();
+		}
+		return null;
+	}
+
+	/**
+	 * Runs StarDist on the specified input, and returns the polygons kept
+	 * after NMS. Vertices are computed from the origin and the ray distances
+	 * of each candidate, in floating point, and the quality is computed as
+	 * set by {@link #setQualityMode(QualityMode)}, by default as the max of
+	 * the probability inside each polygon.
+	 *
+	 * @param input
+	 *            the 2D image to process.
+	 * @return the detected polygons, in pixel coordinates of the input, or
+	 *         <code>null</code> if StarDist failed.
+	 */
+	public < T extends Type< T > > List< StarConvexPolygon > runPolygons( final RandomAccessibleInterval< T > input )
+	{
+		this.errorMessage = null;
+		timings.clear();
+		final Pair< Dataset, Dataset > probAndDist = predict( input );
+		if ( null == probAndDist )
+			return null;
+
+		final Candidates candidates = nms( probAndDist );
+		if ( null == candidates )
+			return null;
+
+		@SuppressWarnings( "unchecked" )
+		final RandomAccessibleInterval< FloatType > prob = qualityMode.needsProbability()
+				? ( RandomAccessibleInterval< FloatType > ) probAndDist.getA().getImgPlus()
+				: null;
+		notifyPrediction( probAndDist, 0, 1. );
+		final long start = System.currentTimeMillis();
+		final RayPolygons rays = new RayPolygons( probAndDist.getB() );
+		final List< StarConvexPolygon > polygons = new ArrayList<>( candidates.getWinner().size() );
+		for ( final Integer id : candidates.getWinner() )
+		{
+			final StarConvexPolygon polygon = rays.polygon( candidates, id );
+			polygon.quality = qualityMode.quality( polygon, prob );
+			polygons.add( polygon );
+		}
+		addTiming( STAGE_POLYGONS, start );
+		return polygons;
+	}
+
+	/**
+	 * Runs the CNN once on the specified input, and the post-processing for
+	 * every pair of the specified score and overlap thresholds. The StarDist
+	 * candidates are built once, at the lowest score threshold, and the
+	 * StarDist NMS runs once per overlap threshold on them. The NMS is greedy
+	 * in decreasing score order, so whether a candidate wins only depends on
+	 * the candidates of higher score: the winners for a higher score
+	 * threshold are the winners above that threshold, exactly as if the NMS
+	 * had been run on these candidates only. The quality of a winner is
+	 * computed once and shared by all the pairs that keep it.
+	 *
+	 * @param input
+	 *            the 2D image to process.
+	 * @param probThresholds
+	 *            the score thresholds to test.
+	 * @param nmsThresholds
+	 *            the overlap thresholds to test.
+	 * @return the results, one per pair of thresholds, ordered by score
+	 *         threshold then by overlap threshold, or <code>null</code> if
+	 *         StarDist failed.
+	 */
+	public < T extends Type< T > > List< SweepResult > sweep( final RandomAccessibleInterval< T > input, final double[] probThresholds, final double[] nmsThresholds )
+	{
+		this.errorMessage = null;
+		timings.clear();
+		final Pair< Dataset, Dataset > probAndDist = predict( input );
+		if ( null == probAndDist )
+			return null;
+
+		@SuppressWarnings( "unchecked" )
+		final RandomAccessibleInterval< FloatType > prob = ( RandomAccessibleInterval< FloatType > ) probAndDist.getA().getImgPlus();
+		@SuppressWarnings( "unchecked" )
+		final RandomAccessibleInterval< FloatType > dist = ( RandomAccessibleInterval< FloatType > ) probAndDist.getB().getImgPlus();
+		notifyPrediction( probAndDist, 0, 1. );
+
+		// Candidates at the lowest score threshold, shared by all the pairs.
+		long start = System.currentTimeMillis();
+		double minProb = Double.POSITIVE_INFINITY;
+		for ( final double p : probThresholds )
+			minProb = Math.min( minProb, p );
+		final Candidates candidates = new Candidates( prob, dist, minProb, excludeBoundary, null );
+
+		// One NMS per overlap threshold. Candidates keep their winners, so
+		// these runs cannot share the candidates concurrently.
+		final List< List< Integer > > winners = new ArrayList<>( nmsThresholds.length );
+		final LinkedHashSet< Integer > allWinners = new LinkedHashSet<>();
+		for ( final double n : nmsThresholds )
+		{
+			candidates.nms( n );
+			final List< Integer > w = new ArrayList<>( candidates.getWinner() );
+			winners.add( w );
+			allWinners.addAll( w );
+		}
+		addTiming( STAGE_NMS, start );
+
+		// Quality of each winner, once.
+		start = System.currentTimeMillis();
+		final ThreadLocal< RayPolygons > rays = ThreadLocal.withInitial( () -> new RayPolygons( probAndDist.getB() ) );
+		final Map< Integer, Double > qualities = new ConcurrentHashMap<>();
+		allWinners.parallelStream().forEach( id -> qualities.put( id, qualityMode.quality( rays.get().polygon( candidates, id ), prob ) ) );
+		addTiming( STAGE_POLYGONS, start );
+
+		final List< SweepResult > results = new ArrayList<>( probThresholds.length * nmsThresholds.length );
+		for ( final double p : probThresholds )
+		{
+			for ( int j = 0; j < nmsThresholds.length; j++ )
+			{
+				final double[] q = winners.get( j ).stream()
+						.filter( id -> candidates.getScore( id ) > p )
+						.mapToDouble( qualities::get )
+						.toArray();
+				results.add( new SweepResult( p, nmsThresholds[ j ], q ) );
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Runs StarDist on a pyramid of resolutions built from the input, and
+	 * merges the candidates of all levels with a single non-maximum
+	 * suppression. Level 0 is the input itself, and each following level is
+	 * downsampled by a factor 2 from the previous one. Large objects that
+	 * would be missed or over-segmented at native resolution are found at a
+	 * coarser level.
+	 * <p>
+	 * Levels are built only once, from the previous one, and all of them are
+	 * processed with the same model. Levels smaller than
+	 * {@value #MIN_LEVEL_SIZE} pixels are skipped.
+	 *
+	 * @param input
+	 *            the 2D image to process.
+	 * @param nLevels
+	 *            the number of pyramid levels, including the native one.
+	 * @return the detected polygons, with their quality computed, in pixel
+	 *         coordinates of the input, or <code>null</code> if StarDist
+	 *         failed.
+	 */
+	public < T extends RealType< T > > List< StarConvexPolygon > runPyramid( final RandomAccessibleInterval< T > input, final int nLevels )
+	{
+		this.errorMessage = null;
+		timings.clear();
+		final List< StarConvexPolygon > candidates = new ArrayList<>();
+		// Per candidate: the probability map and polygon at its level.
+		final Map< StarConvexPolygon, Pair< RandomAccessibleInterval< FloatType >, StarConvexPolygon > > origins = new IdentityHashMap<>();
+
+		if ( !collectCandidates( input, 0, 1., candidates, origins ) )
+			return null;
+
+		ArrayImg< FloatType, FloatArray > level = null;
+		double scale = 1.;
+		for ( int l = 1; l < nLevels; l++ )
+		{
+			final long width = ( null == level ) ? input.dimension( 0 ) : level.dimension( 0 );
+			final long height = ( null == level ) ? input.dimension( 1 ) : level.dimension( 1 );
+			if ( Resampling.downsampledSize( width, 0.5 ) < MIN_LEVEL_SIZE
+					|| Resampling.downsampledSize( height, 0.5 ) < MIN_LEVEL_SIZE )
+				break;
+
+			// Build each level from the previous one, then recycle it.
+			final ArrayImg< FloatType, FloatArray > next = ( null == level )
+					? Resampling.downsample( input, 0.5 )
+					: Resampling.downsample( level, 0.5 );
+			if ( null != level )
+				ArrayPool.release( level );
+			level = next;
+			scale *= 0.5;
+
+			if ( !collectCandidates( level, l, scale, candidates, origins ) )
+			{
+				ArrayPool.release( level );
+				return null;
+			}
+		}
+		if ( null != level )
+			ArrayPool.release( level );
+
+		// Single NMS across levels, then quality of the winners only.
+		long start = System.currentTimeMillis();
+		final List< StarConvexPolygon > winners = PolygonNMS.nms( candidates, model.nmsThresh );
+		addTiming( STAGE_NMS, start );
+		start = System.currentTimeMillis();
+		for ( final StarConvexPolygon winner : winners )
+		{
+			final Pair< RandomAccessibleInterval< FloatType >, StarConvexPolygon > origin = origins.get( winner );
+			winner.quality = qualityMode.quality( origin.getB(), origin.getA() );
+		}
+		addTiming( STAGE_POLYGONS, start );
+		return winners;
+	}
+
+	/**
+	 * Runs the CNN on one pyramid level and adds all its candidates, before
+	 * NMS, to the specified list, in pixel coordinates of level 0.
+	 */
+	private < T extends RealType< T > > boolean collectCandidates(
+			final RandomAccessibleInterval< T > level,
+			final int levelIndex,
+			final double scale,
+			final List< StarConvexPolygon > candidates,
+			final Map< StarConvexPolygon, Pair< RandomAccessibleInterval< FloatType >, StarConvexPolygon > > origins )
+	{
+		final Pair< Dataset, Dataset > probAndDist = predict( level );
+		if ( null == probAndDist )
+			return false;
+
+		@SuppressWarnings( "unchecked" )
+		final RandomAccessibleInterval< FloatType > prob = ( RandomAccessibleInterval< FloatType > ) probAndDist.getA().getImgPlus();
+		@SuppressWarnings( "unchecked" )
+		final RandomAccessibleInterval< FloatType > dist = ( RandomAccessibleInterval< FloatType > ) probAndDist.getB().getImgPlus();
+		notifyPrediction( probAndDist, levelIndex, scale );
+		final long start = System.currentTimeMillis();
+		final RayPolygons rays = new RayPolygons( probAndDist.getB() );
+
+		final Candidates levelCandidates = new Candidates( prob, dist, model.probThresh, excludeBoundary, null );
+		for ( final Integer id : levelCandidates.getSorted() )
+		{
+			final StarConvexPolygon levelPolygon = rays.polygon( levelCandidates, id );
+			final double a = 1. / scale;
+			final double b = 0.5 / scale - 0.5;
+			final StarConvexPolygon polygon = ( scale == 1. ) ? levelPolygon : levelPolygon.transform( a, b, b );
+			candidates.add( polygon );
+			// Without the probability map, the level prediction can be freed.
+			origins.put( polygon, new ValuePair<>( qualityMode.needsProbability() ? prob : null, levelPolygon ) );
+		}
+		addTiming( STAGE_POLYGONS, start );
+		return true;
+	}
 
+	@SuppressWarnings( "unchecked" )
+	private void notifyPrediction( final Pair< Dataset, Dataset > probAndDist, final int level, final double scale )
+	{
+		if ( null == predictionListener )
+			return;
+		predictionListener.predicted(
+				( RandomAccessibleInterval< FloatType > ) probAndDist.getA().getImgPlus(),
+				( RandomAccessibleInterval< FloatType > ) probAndDist.getB().getImgPlus(),
+				level,
+				scale );
+	}
+
+	/**
+	 * Runs the CNN on the specified input and returns the probability and
+	 * distance predictions.
+	 */
+	private < T extends Type< T > > Pair< Dataset, Dataset > predict( final RandomAccessibleInterval< T > input )
+	{
 		/*
 		 * Seems to be the limit for StarDist not to fail. We observed that 1000
 		 * x 1000 tiles were ok, but larger than 1000 lines failed.
@@ -177,15 +579,12 @@ public abstract class StarDistRunnerBase
 		 */
 
 		final Map< String, Object > paramsCNN = new HashMap<>( PARAMS_CNN );
-		final Map< String, Object > paramsNMS = new HashMap<>( PARAMS_NMS );
-
 		paramsCNN.put( "blockMultiple", model.sizeDivBy );
 		paramsCNN.put( "overlap", model.tileOverlap );
 		paramsCNN.put( "modelFile", modelFile );
 		paramsCNN.put( "nTiles", nbTiles );
-		paramsNMS.put( "probThresh", model.probThresh );
-		paramsNMS.put( "nmsThresh", model.nmsThresh );
-
+		if ( !normalizeInput )
+			paramsCNN.put( "normalizeInput", false );
 
 		try
 		{
@@ -196,40 +595,135 @@ public abstract class StarDistRunnerBase
 			final CommandService commandService = context.getService( CommandService.class );
 
 			/*
-			 * Make a dataset from the input.
+			 * Make a dataset from the input. Multi-channel input needs a
+			 * channel axis.
 			 */
-			final Dataset dataset = datasetService.create( input );
+			final Dataset dataset = ( input.numDimensions() > 2 )
+					? datasetService.create( toChannelImage( input ) )
+					: datasetService.create( input );
 			paramsCNN.put( "input", dataset );
 
 			/*
 			 * Running the CNN.
 			 */
+			final long start = System.currentTimeMillis();
 			final Future< CommandModule > futureCNN = commandService.run( GenericNetwork.class, false, paramsCNN );
-			final Dataset prediction = ( Dataset ) futureCNN.get().getOutput( "output" );
-
 			/*
-			 * Running post-processing.
+			 * The output is allocated on the heap by GenericNetwork, which
+			 * cannot write into a buffer of ours. Copying it off-heap
+			 * afterwards would not lower the peak heap use and would break
+			 * the maps still used by the pyramid and the prediction writer,
+			 * so it is used as it is, without a copy.
 			 */
+			final Dataset prediction = ( Dataset ) futureCNN.get().getOutput( "output" );
 			final Pair< Dataset, Dataset > probAndDist = splitPrediction( prediction, datasetService );
-			final Dataset probDS = probAndDist.getA();
-			final Dataset distDS = probAndDist.getB();
+			addTiming( STAGE_CNN, start );
+			return probAndDist;
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			errorMessage = e.getMessage();
+		}
+		return null;
+	}
 
-			paramsNMS.put( "prob", probDS );
-			paramsNMS.put( "dist", distDS );
+	/**
+	 * Copies the specified input to a new float image, without changing its
+	 * values. This is the read of the input, which can be done ahead of time
+	 * in another thread. The copy is passed to the CNN as it is, and
+	 * normalized by CSBDeep like any other input.
+	 *
+	 * @param input
+	 *            the input, with the channels as last dimension if there are
+	 *            several.
+	 * @return a new float image, with the same dimensions and a zero min.
+	 */
+	public static ArrayImg< FloatType, FloatArray > toFloat( final RandomAccessibleInterval< ? extends RealType< ? > > input )
+	{
+		final ArrayImg< FloatType, FloatArray > out = ArrayImgs.floats( Intervals.dimensionsAsLongArray( input ) );
+		final float[] values = out.update( null ).getCurrentStorageArray();
+		int i = 0;
+		for ( final RealType< ? > pixel : Views.flatIterable( input ) )
+			values[ i++ ] = pixel.getRealFloat();
+		return out;
+	}
 
-			final Future< CommandModule > futureNMS = commandService.run( StarDist2DNMS.class, false, paramsNMS );
-			final Candidates polygons = ( Candidates ) futureNMS.get().getOutput( "polygons" );
+	/**
+	 * Wraps a multi-channel input, with the channels as last dimension, in an
+	 * image with a channel axis. Float array images, such as downsampled
+	 * inputs, are wrapped as they are. Other inputs are copied in a single
+	 * pass to the off-heap staging buffer of the current thread, which is
+	 * reused from one frame to the next.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static ImgPlus< FloatType > toChannelImage( final RandomAccessibleInterval< ? > input )
+	{
+		if ( input instanceof ArrayImg && Util.getTypeFromInterval( input ) instanceof FloatType )
+			return new ImgPlus<>( ( Img< FloatType > ) input, "input", Axes.X, Axes.Y, Axes.CHANNEL );
+
+		final ArrayImg< FloatType, FloatBufferAccess > staged = DirectBuffers.floats( input.dimension( 0 ), input.dimension( 1 ), input.dimension( 2 ) );
+		final FloatBufferAccess access = staged.update( null );
+		int i = 0;
+		for ( final Object pixel : Views.flatIterable( input ) )
+			access.setValue( i++, ( ( RealType< ? > ) pixel ).getRealFloat() );
+		return new ImgPlus<>( staged, "input", Axes.X, Axes.Y, Axes.CHANNEL );
+	}
+
+	/**
+	 * Builds candidate polygons from their origin and ray distances, read in
+	 * a distance map. Ray k has the angle 2 pi k / nRays, like in StarDist.
+	 */
+	private static final class RayPolygons
+	{
+
+		private final RandomAccess< FloatType > ra;
+
+		private final int xDim;
+
+		private final int yDim;
 
-			@SuppressWarnings( "unchecked" )
-			final RandomAccessibleInterval< FloatType > proba = ( RandomAccessibleInterval< FloatType > ) probDS.getImgPlus().getImg();
-			return new ValuePair<>( polygons, proba );
+		private final int cDim;
 
+		private final double[] cos;
+
+		private final double[] sin;
+
+		@SuppressWarnings( "unchecked" )
+		private RayPolygons( final Dataset dist )
+		{
+			this.ra = ( ( RandomAccessibleInterval< FloatType > ) dist.getImgPlus() ).randomAccess();
+			this.xDim = dist.dimensionIndex( Axes.X );
+			this.yDim = dist.dimensionIndex( Axes.Y );
+			this.cDim = dist.dimensionIndex( Axes.CHANNEL );
+			final int nRays = ( int ) dist.dimension( cDim );
+			this.cos = new double[ nRays ];
+			this.sin = new double[ nRays ];
+			for ( int k = 0; k < nRays; k++ )
+			{
+				final double phi = 2. * Math.PI * k / nRays;
+				cos[ k ] = Math.cos( phi );
+				sin[ k ] = Math.sin( phi );
+			}
 		}
-		catch ( InterruptedException | ExecutionException e )
+
+		private StarConvexPolygon polygon( final Candidates candidates, final int id )
 		{
-			errorMessage = e.getMessage();
+			final Point2D origin = candidates.getOrigin( id );
+			final double ox = origin.getX();
+			final double oy = origin.getY();
+			ra.setPosition( Math.round( ox ), xDim );
+			ra.setPosition( Math.round( oy ), yDim );
+			final double[] x = new double[ cos.length ];
+			final double[] y = new double[ cos.length ];
+			for ( int k = 0; k < cos.length; k++ )
+			{
+				ra.setPosition( k, cDim );
+				final double d = ra.get().getRealDouble();
+				x[ k ] = ox + d * cos[ k ];
+				y[ k ] = oy + d * sin[ k ];
+			}
+			return new StarConvexPolygon( x, y, candidates.getScore( id ) );
 		}
-		return null;
 	}
 
 	/**
@@ -257,4 +751,26 @@ public abstract class StarDistRunnerBase
 
 		return new ValuePair<>( probDS, distDS );
 	}
+
+	/**
+	 * Receives the probability and distance maps predicted by the CNN.
+	 */
+	public static interface PredictionListener
+	{
+
+		/**
+		 * Called once per CNN run, before the maps are discarded. The maps
+		 * must not be modified.
+		 *
+		 * @param prob
+		 *            the probability map.
+		 * @param dist
+		 *            the distance map, with one channel per ray.
+		 * @param level
+		 *            the pyramid level, 0 for the runner input.
+		 * @param scale
+		 *            the scale of the CNN input relative to the runner input.
+		 */
+		public void predicted( RandomAccessibleInterval< FloatType > prob, RandomAccessibleInterval< FloatType > dist, int level, double scale );
+	}
 }
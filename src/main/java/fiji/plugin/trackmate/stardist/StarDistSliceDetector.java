@@ -0,0 +1,483 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotMesh;
+import fiji.plugin.trackmate.detection.SpotDetector;
+import fiji.plugin.trackmate.stardist.FrameMemory.Detection;
+import fiji.plugin.trackmate.stardist.util.Normalization;
+import fiji.plugin.trackmate.stardist.util.SliceLofting;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.mesh.Mesh;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * A detector that runs the 2D StarDist model on each Z slice of a 3D image,
+ * and links the polygons found in adjacent slices into 3D objects. One spot
+ * is returned per object, with a mesh lofted through its polygons.
+ * <p>
+ * The input is normalized over the whole stack, so that slices with little
+ * signal are not stretched to the range of the others. Slices are processed
+ * one after another with the same StarDist runner, but the next slice is
+ * normalized to a contiguous buffer while the current one is being
+ * processed, so that the inference does not wait for the input.
+ * <p>
+ * The options that need the detections of the previous frame, pre-screening
+ * and key-frames, and the label image, prediction and journal outputs, are
+ * not supported on 3D images. {@link #checkInput()} fails if one of them is
+ * set. The halo is read around each slice.
+ */
+public class StarDistSliceDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >, Cancelable
+{
+
+	private final static String BASE_ERROR_MESSAGE = "StarDistSliceDetector: ";
+
+	/**
+	 * Default minimal overlap, as intersection over the smallest area, for
+	 * two polygons in adjacent slices to be linked.
+	 */
+	public static final double DEFAULT_LINK_THRESHOLD = 0.5;
+
+	protected final StarDistRunnerBase stardistRunner;
+
+	protected final RandomAccessible< T > img;
+
+	protected final Interval interval;
+
+	protected final double[] calibration;
+
+	protected final int frame;
+
+	protected final StarDistDetectorOptions options;
+
+	protected final double linkThreshold;
+
+	protected final List< Spot > spots = new ArrayList<>();
+
+	protected String baseErrorMessage;
+
+	protected String errorMessage;
+
+	protected long processingTime;
+
+	protected SpotListener spotListener;
+
+	protected Consumer< Boolean > onProcessed;
+
+	protected volatile String cancelReason;
+
+	public StarDistSliceDetector(
+			final StarDistRunnerBase stardistRunner,
+			final RandomAccessible< T > img,
+			final Interval interval,
+			final double[] calibration,
+			final int frame,
+			final StarDistDetectorOptions options )
+	{
+		this( stardistRunner, img, interval, calibration, frame, options, DEFAULT_LINK_THRESHOLD );
+	}
+
+	/**
+	 * Creates a slice-by-slice StarDist detector for one frame.
+	 *
+	 * @param stardistRunner
+	 *            the StarDist runner to use, shared by all slices.
+	 * @param img
+	 *            the 3D image to process.
+	 * @param interval
+	 *            the interval in the image to process.
+	 * @param calibration
+	 *            the spatial calibration of the image.
+	 * @param frame
+	 *            the frame this detector processes.
+	 * @param options
+	 *            the detection options, applied to each slice.
+	 * @param linkThreshold
+	 *            the minimal overlap for two polygons in adjacent slices to be
+	 *            linked, as intersection over the smallest area.
+	 */
+	public StarDistSliceDetector(
+			final StarDistRunnerBase stardistRunner,
+			final RandomAccessible< T > img,
+			final Interval interval,
+			final double[] calibration,
+			final int frame,
+			final StarDistDetectorOptions options,
+			final double linkThreshold )
+	{
+		this.stardistRunner = stardistRunner;
+		this.img = img;
+		this.interval = interval;
+		this.calibration = calibration;
+		this.frame = frame;
+		this.options = options;
+		this.linkThreshold = linkThreshold;
+		this.baseErrorMessage = BASE_ERROR_MESSAGE;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( checkImage() )
+			return true;
+		if ( null != onProcessed )
+			onProcessed.accept( Boolean.FALSE );
+		return false;
+	}
+
+	private boolean checkImage()
+	{
+		if ( null == img )
+		{
+			errorMessage = baseErrorMessage + "Image is null.";
+			return false;
+		}
+		if ( img.numDimensions() != 3 || interval.numDimensions() != 3 )
+		{
+			errorMessage = baseErrorMessage + "Image must be 3D, got " + img.numDimensions() + "D.";
+			return false;
+		}
+		final String unsupported = unsupportedOptions( options );
+		if ( null != unsupported )
+		{
+			errorMessage = baseErrorMessage + "These options are not supported on 3D images: " + unsupported + ".";
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the options set in the specified options that cannot be used
+	 * on 3D images.
+	 *
+	 * @param options
+	 *            the detection options.
+	 * @return the names of the unsupported options, separated by commas, or
+	 *         <code>null</code> if all the options set are supported.
+	 */
+	public static String unsupportedOptions( final StarDistDetectorOptions options )
+	{
+		final List< String > names = new ArrayList<>();
+		if ( options.preScreen )
+			names.add( "pre-screen" );
+		if ( options.keyFrameInterval > 1 )
+			names.add( "key-frames" );
+		if ( !options.labelImagePath.isEmpty() )
+			names.add( "label image" );
+		if ( !options.predictionPath.isEmpty() )
+			names.add( "prediction export" );
+		if ( !options.journalPath.isEmpty() )
+			names.add( "journal" );
+		return names.isEmpty() ? null : String.join( ", ", names );
+	}
+
+	@Override
+	public boolean process()
+	{
+		boolean ok = false;
+		try
+		{
+			ok = processStack();
+			return ok;
+		}
+		finally
+		{
+			if ( null != onProcessed )
+				onProcessed.accept( Boolean.valueOf( ok ) );
+		}
+	}
+
+	private boolean processStack()
+	{
+		final long start = System.currentTimeMillis();
+		spots.clear();
+
+		final Interval sliceInterval = new FinalInterval(
+				new long[] { interval.min( 0 ), interval.min( 1 ) },
+				new long[] { interval.max( 0 ), interval.max( 1 ) } );
+		final Interval readInterval = StarDistDetector.withHalo( sliceInterval, options.halo, ( img instanceof Interval ) ? ( Interval ) img : null );
+		final int nSlices = ( int ) interval.dimension( 2 );
+		final List< List< Detection > > slices = new ArrayList<>( nSlices );
+
+		// Same normalization for all the slices.
+		final double[] range = Normalization.percentiles( Views.interval( img, interval ) );
+
+		// Normalize the next slice while StarDist runs on the current one.
+		final ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+		stardistRunner.setNormalizeInput( false );
+		try
+		{
+			Future< RandomAccessibleInterval< FloatType > > next = prefetcher.submit( () -> normalizedSlice( interval.min( 2 ), readInterval, range ) );
+			for ( int s = 0; s < nSlices; s++ )
+			{
+				if ( isCanceled() )
+				{
+					errorMessage = baseErrorMessage + "Canceled. " + cancelReason;
+					return false;
+				}
+				final RandomAccessibleInterval< FloatType > slice = next.get();
+				if ( s < nSlices - 1 )
+				{
+					final long z = interval.min( 2 ) + s + 1;
+					next = prefetcher.submit( () -> normalizedSlice( z, readInterval, range ) );
+				}
+
+				final StarDistDetector< FloatType > detector = new StarDistDetector<>(
+						stardistRunner,
+						slice,
+						sliceInterval,
+						calibration,
+						frame,
+						null,
+						options );
+				if ( !detector.process() )
+				{
+					errorMessage = detector.getErrorMessage();
+					return false;
+				}
+				slices.add( new ArrayList<>( detector.getDetections() ) );
+			}
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			errorMessage = baseErrorMessage + "Detector interrupted.\n";
+			return false;
+		}
+		finally
+		{
+			prefetcher.shutdownNow();
+			stardistRunner.setNormalizeInput( true );
+		}
+
+		// Link polygons across slices and create one spot per object.
+		for ( final SliceObject object : link( slices, linkThreshold ) )
+			spots.add( object.toSpot( interval.min( 2 ), calibration[ 2 ] ) );
+		if ( null != spotListener )
+			spotListener.spotsDetected( frame, Collections.unmodifiableList( spots ) );
+
+		final long end = System.currentTimeMillis();
+		this.processingTime = end - start;
+		return true;
+	}
+
+	/**
+	 * Sets the listener the spots of this frame are handed to as soon as the
+	 * detection is done.
+	 *
+	 * @param spotListener
+	 *            the listener. Can be <code>null</code>.
+	 */
+	public void setSpotListener( final SpotListener spotListener )
+	{
+		this.spotListener = spotListener;
+	}
+
+	/**
+	 * Sets the action run once this detector is done with its frame: after
+	 * {@link #process()}, or after {@link #checkInput()} failed, since
+	 * {@link #process()} is not called then. It receives whether the frame
+	 * succeeded. The factory uses it to release the resources of a detection
+	 * run after its last frame, or after a frame failed or was canceled.
+	 *
+	 * @param onProcessed
+	 *            the action. Can be <code>null</code>.
+	 */
+	public void setOnProcessed( final Consumer< Boolean > onProcessed )
+	{
+		this.onProcessed = onProcessed;
+	}
+
+	/**
+	 * Copies one slice of the input to a new float image, normalized with the
+	 * specified range and translated so that it has the same coordinates as
+	 * in the input.
+	 */
+	private RandomAccessibleInterval< FloatType > normalizedSlice( final long z, final Interval sliceInterval, final double[] range )
+	{
+		final RandomAccessibleInterval< T > source = Views.interval( Views.hyperSlice( img, 2, z ), sliceInterval );
+		return Views.translate( Normalization.normalize( source, range ), sliceInterval.min( 0 ), sliceInterval.min( 1 ) );
+	}
+
+	/**
+	 * Links the detections of adjacent slices into 3D objects. Links are made
+	 * greedily, largest overlap first, and each detection is linked to at
+	 * most one detection in the previous slice and one in the next.
+	 *
+	 * @param slices
+	 *            the detections, one list per slice.
+	 * @param threshold
+	 *            the minimal overlap for a link, as intersection over the
+	 *            smallest area.
+	 * @return the objects.
+	 */
+	static List< SliceObject > link( final List< List< Detection > > slices, final double threshold )
+	{
+		final List< SliceObject > objects = new ArrayList<>();
+		List< SliceObject > open = new ArrayList<>();
+		List< StarConvexPolygon > openPolygons = new ArrayList<>();
+		for ( int s = 0; s < slices.size(); s++ )
+		{
+			final List< Detection > detections = slices.get( s );
+			final List< StarConvexPolygon > polygons = new ArrayList<>( detections.size() );
+			for ( final Detection detection : detections )
+				polygons.add( new StarConvexPolygon( detection.x, detection.y, detection.quality ) );
+
+			// Candidate links, as { overlap, previous, current }.
+			final List< double[] > links = new ArrayList<>();
+			for ( int i = 0; i < openPolygons.size(); i++ )
+			{
+				final StarConvexPolygon a = openPolygons.get( i );
+				for ( int j = 0; j < polygons.size(); j++ )
+				{
+					final StarConvexPolygon b = polygons.get( j );
+					if ( !a.boundsIntersect( b ) )
+						continue;
+					final double overlap = a.intersectionArea( b ) / ( Math.min( a.area(), b.area() ) + 1e-10 );
+					if ( overlap > threshold )
+						links.add( new double[] { overlap, i, j } );
+				}
+			}
+			links.sort( ( l1, l2 ) -> Double.compare( l2[ 0 ], l1[ 0 ] ) );
+
+			final SliceObject[] assigned = new SliceObject[ polygons.size() ];
+			final boolean[] continued = new boolean[ openPolygons.size() ];
+			for ( final double[] l : links )
+			{
+				final int i = ( int ) l[ 1 ];
+				final int j = ( int ) l[ 2 ];
+				if ( continued[ i ] || null != assigned[ j ] )
+					continue;
+				continued[ i ] = true;
+				assigned[ j ] = open.get( i );
+			}
+
+			final List< SliceObject > nextOpen = new ArrayList<>( polygons.size() );
+			for ( int j = 0; j < polygons.size(); j++ )
+			{
+				SliceObject object = assigned[ j ];
+				if ( null == object )
+				{
+					object = new SliceObject();
+					objects.add( object );
+				}
+				object.add( s, detections.get( j ) );
+				nextOpen.add( object );
+			}
+			open = nextOpen;
+			openPolygons = polygons;
+		}
+		return objects;
+	}
+
+	/**
+	 * A 3D object made of polygons in consecutive slices.
+	 */
+	static final class SliceObject
+	{
+
+		final List< Integer > slices = new ArrayList<>();
+
+		final List< Detection > detections = new ArrayList<>();
+
+		private void add( final int slice, final Detection detection )
+		{
+			slices.add( Integer.valueOf( slice ) );
+			detections.add( detection );
+		}
+
+		/**
+		 * Creates a spot with a mesh lofted through the polygons of this
+		 * object. The quality is the max of the polygon qualities.
+		 */
+		Spot toSpot( final long zmin, final double dz )
+		{
+			final List< double[] > xs = new ArrayList<>( detections.size() );
+			final List< double[] > ys = new ArrayList<>( detections.size() );
+			final double[] zs = new double[ detections.size() ];
+			double quality = Double.NEGATIVE_INFINITY;
+			for ( int i = 0; i < detections.size(); i++ )
+			{
+				final Detection detection = detections.get( i );
+				xs.add( detection.x );
+				ys.add( detection.y );
+				zs[ i ] = dz * ( zmin + slices.get( i ) );
+				quality = Math.max( quality, detection.quality );
+			}
+			final Mesh mesh = SliceLofting.loft( xs, ys, zs, dz / 2. );
+			return new SpotMesh( mesh, quality );
+		}
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return null != cancelReason;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		cancelReason = ( null == reason ) ? "" : reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	@Override
+	public List< Spot > getResult()
+	{
+		return spots;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+}
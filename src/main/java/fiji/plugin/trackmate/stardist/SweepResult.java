@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import java.util.Arrays;
+
+/**
+ * The outcome of StarDist post-processing for one pair of score and overlap
+ * thresholds, as computed by
+ * {@link StarDistRunnerBase#sweep(net.imglib2.RandomAccessibleInterval, double[], double[])}.
+ */
+public class SweepResult
+{
+
+	/** The score threshold. */
+	public final double probThresh;
+
+	/** The overlap threshold. */
+	public final double nmsThresh;
+
+	private final double[] qualities;
+
+	/**
+	 * Creates a sweep result.
+	 *
+	 * @param probThresh
+	 *            the score threshold.
+	 * @param nmsThresh
+	 *            the overlap threshold.
+	 * @param qualities
+	 *            the qualities of the detections. The array is sorted in
+	 *            place.
+	 */
+	public SweepResult( final double probThresh, final double nmsThresh, final double[] qualities )
+	{
+		this.probThresh = probThresh;
+		this.nmsThresh = nmsThresh;
+		this.qualities = qualities;
+		Arrays.sort( qualities );
+	}
+
+	/**
+	 * Returns the number of detections.
+	 *
+	 * @return the number of detections.
+	 */
+	public int count()
+	{
+		return qualities.length;
+	}
+
+	/**
+	 * Returns the mean quality of the detections, or <code>NaN</code> if
+	 * there are none.
+	 *
+	 * @return the mean quality.
+	 */
+	public double meanQuality()
+	{
+		if ( qualities.length == 0 )
+			return Double.NaN;
+		double sum = 0.;
+		for ( final double q : qualities )
+			sum += q;
+		return sum / qualities.length;
+	}
+
+	/**
+	 * Returns a quantile of the quality of the detections, or
+	 * <code>NaN</code> if there are none.
+	 *
+	 * @param p
+	 *            the quantile, in <code>[0, 1]</code>.
+	 * @return the quantile value, by nearest rank.
+	 */
+	public double qualityQuantile( final double p )
+	{
+		if ( qualities.length == 0 )
+			return Double.NaN;
+		final int index = ( int ) Math.round( p * ( qualities.length - 1 ) );
+		return qualities[ Math.max( 0, Math.min( qualities.length - 1, index ) ) ];
+	}
+
+	/**
+	 * Returns a copy of the qualities of the detections, sorted.
+	 *
+	 * @return the qualities.
+	 */
+	public double[] qualities()
+	{
+		return qualities.clone();
+	}
+}
@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist.util;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * A pool of primitive arrays, so that the buffers needed to process a frame
+ * are reused for the next frames instead of being allocated again. Over a
+ * movie, the same buffer sizes come back frame after frame.
+ * <p>
+ * Arrays are pooled per thread, so borrowing and releasing never block. Each
+ * thread keeps a few arrays per length, for a bounded number of lengths: the
+ * lengths not used recently are dropped first. Borrowed arrays are not
+ * cleared. Releasing an array that is already in the pool has no effect.
+ */
+public class ArrayPool
+{
+
+	/** Maximal number of arrays kept per length and per thread. */
+	private static final int MAX_PER_LENGTH = 4;
+
+	/** Maximal number of distinct lengths kept per thread. */
+	private static final int MAX_LENGTHS = 8;
+
+	private static final ThreadLocal< Map< Integer, ArrayDeque< float[] > > > FLOATS = ThreadLocal.withInitial( ArrayPool::newPool );
+
+	private static final ThreadLocal< Map< Integer, ArrayDeque< int[] > > > INTS = ThreadLocal.withInitial( ArrayPool::newPool );
+
+	private ArrayPool()
+	{}
+
+	/**
+	 * Borrows a float array of the specified length from the pool of the
+	 * current thread, or allocates a new one if there is none.
+	 *
+	 * @param length
+	 *            the array length.
+	 * @return an array, with undefined content.
+	 */
+	public static float[] borrowFloats( final int length )
+	{
+		final float[] array = poll( FLOATS.get(), length );
+		return ( null == array ) ? new float[ length ] : array;
+	}
+
+	/**
+	 * Borrows an int array of the specified length from the pool of the
+	 * current thread, or allocates a new one if there is none.
+	 *
+	 * @param length
+	 *            the array length.
+	 * @return an array, with undefined content.
+	 */
+	public static int[] borrowInts( final int length )
+	{
+		final int[] array = poll( INTS.get(), length );
+		return ( null == array ) ? new int[ length ] : array;
+	}
+
+	/**
+	 * Returns a float array to the pool of the current thread. The array must
+	 * not be used after this call.
+	 *
+	 * @param array
+	 *            the array.
+	 */
+	public static void release( final float[] array )
+	{
+		offer( FLOATS.get(), array.length, array );
+	}
+
+	/**
+	 * Returns an int array to the pool of the current thread. The array must
+	 * not be used after this call.
+	 *
+	 * @param array
+	 *            the array.
+	 */
+	public static void release( final int[] array )
+	{
+		offer( INTS.get(), array.length, array );
+	}
+
+	/**
+	 * Returns the storage array of a float image to the pool of the current
+	 * thread. The image must not be used after this call.
+	 *
+	 * @param img
+	 *            the image.
+	 */
+	public static void release( final ArrayImg< FloatType, FloatArray > img )
+	{
+		release( img.update( null ).getCurrentStorageArray() );
+	}
+
+	private static < A > A poll( final Map< Integer, ArrayDeque< A > > pool, final int length )
+	{
+		final ArrayDeque< A > arrays = pool.get( Integer.valueOf( length ) );
+		return ( null == arrays ) ? null : arrays.pollLast();
+	}
+
+	private static < A > void offer( final Map< Integer, ArrayDeque< A > > pool, final int length, final A array )
+	{
+		final ArrayDeque< A > arrays = pool.computeIfAbsent( Integer.valueOf( length ), k -> new ArrayDeque<>( MAX_PER_LENGTH ) );
+		// Released twice, it would be lent to two borrowers at once.
+		for ( final A pooled : arrays )
+			if ( pooled == array )
+				return;
+		if ( arrays.size() < MAX_PER_LENGTH )
+			arrays.addLast( array );
+	}
+
+	private static < A > Map< Integer, ArrayDeque< A > > newPool()
+	{
+		// Access order, so that the least recently used length is evicted.
+		return new LinkedHashMap< Integer, ArrayDeque< A > >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Integer, ArrayDeque< A > > eldest )
+			{
+				return size() > MAX_LENGTHS;
+			}
+		};
+	}
+}
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.nio.FloatBufferAccess;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Off-heap staging buffers for the images handed to the StarDist network.
+ * <p>
+ * Each thread has one direct buffer, that grows to the largest image staged
+ * on that thread and is then reused. Large frames are staged outside of the
+ * Java heap, so they don't need a larger maximal heap size, and the buffer is
+ * allocated only once since direct buffers are expensive to allocate and are
+ * only freed by the garbage collector.
+ * <p>
+ * Only the network input is staged. The network output is allocated by
+ * CSBDeep, and the probability and distance maps are views on it.
+ */
+public class DirectBuffers
+{
+
+	private static final ThreadLocal< ByteBuffer > BUFFER = new ThreadLocal<>();
+
+	private DirectBuffers()
+	{}
+
+	/**
+	 * Returns a float image backed by the direct buffer of the current
+	 * thread. The image content is undefined, and is only valid until the
+	 * next call to this method on the same thread.
+	 *
+	 * @param dimensions
+	 *            the image dimensions.
+	 * @return a float image backed by off-heap memory.
+	 */
+	public static ArrayImg< FloatType, FloatBufferAccess > floats( final long... dimensions )
+	{
+		final long n = Intervals.numElements( dimensions );
+		if ( n > Integer.MAX_VALUE / Float.BYTES )
+			throw new IllegalArgumentException( "Image too large to be staged in a direct buffer: " + n + " pixels." );
+
+		final int size = ( int ) n * Float.BYTES;
+		ByteBuffer buffer = BUFFER.get();
+		if ( null == buffer || buffer.capacity() < size )
+		{
+			buffer = ByteBuffer.allocateDirect( size ).order( ByteOrder.nativeOrder() );
+			BUFFER.set( buffer );
+		}
+		buffer.clear().limit( size );
+		final ByteBuffer view = buffer.slice().order( ByteOrder.nativeOrder() );
+		return ArrayImgs.floats( new FloatBufferAccess( view, true ), dimensions );
+	}
+}
@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.IntFunction;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * A bounded cache of the input of each frame, copied from the source image
+ * to contiguous memory.
+ * <p>
+ * Only the requested interval of the planes that feed the model is read from
+ * the source, once per frame, so that virtual stacks are not loaded entirely
+ * and slow storage is not read again by each step of the detection. When a
+ * frame is requested, the next one is read ahead in a background thread, so
+ * that reading overlaps with the inference of the current frame.
+ *
+ * @param <T>
+ *            the pixel type.
+ */
+public class FrameCache< T extends NativeType< T > >
+{
+
+	private final IntFunction< RandomAccessibleInterval< T > > source;
+
+	private final Interval interval;
+
+	private final int nFrames;
+
+	private final int capacity;
+
+	private final Map< Integer, Future< RandomAccessibleInterval< T > > > frames;
+
+	private final ExecutorService reader;
+
+	/**
+	 * Creates a frame cache.
+	 *
+	 * @param source
+	 *            returns the view of the input for a frame. Views are only
+	 *            read in the interval below.
+	 * @param interval
+	 *            the interval to read in each frame.
+	 * @param nFrames
+	 *            the number of frames in the source.
+	 * @param capacity
+	 *            the maximal number of frames kept in the cache. Frames are
+	 *            only read ahead if it is at least 2.
+	 */
+	public FrameCache( final IntFunction< RandomAccessibleInterval< T > > source, final Interval interval, final int nFrames, final int capacity )
+	{
+		this.source = source;
+		this.interval = interval;
+		this.nFrames = nFrames;
+		this.capacity = Math.max( 1, capacity );
+		this.frames = new LinkedHashMap< Integer, Future< RandomAccessibleInterval< T > > >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Integer, Future< RandomAccessibleInterval< T > > > eldest )
+			{
+				return size() > FrameCache.this.capacity;
+			}
+		};
+		this.reader = Executors.newSingleThreadExecutor( r -> {
+			final Thread thread = new Thread( r, "StarDist frame reader" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Returns the input of the specified frame, in the same coordinates as
+	 * in the source, and starts reading the next frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return an image with the pixels of the frame in the cache interval.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the frame to be read.
+	 */
+	public RandomAccessibleInterval< T > get( final int frame ) throws InterruptedException
+	{
+		final Future< RandomAccessibleInterval< T > > future;
+		final FutureTask< RandomAccessibleInterval< T > > task;
+		synchronized ( frames )
+		{
+			final Future< RandomAccessibleInterval< T > > cached = frames.get( Integer.valueOf( frame ) );
+			if ( null == cached )
+			{
+				// Read in the calling thread, not to wait behind a prefetch.
+				task = new FutureTask<>( () -> read( frame ) );
+				frames.put( Integer.valueOf( frame ), task );
+				future = task;
+			}
+			else
+			{
+				task = null;
+				future = cached;
+			}
+			if ( capacity > 1 && frame + 1 < nFrames && !frames.containsKey( Integer.valueOf( frame + 1 ) ) )
+				frames.put( Integer.valueOf( frame + 1 ), reader.submit( () -> read( frame + 1 ) ) );
+		}
+		if ( null != task )
+			task.run();
+
+		try
+		{
+			return future.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			synchronized ( frames )
+			{
+				frames.remove( Integer.valueOf( frame ) );
+			}
+			final Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			throw new RuntimeException( cause );
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if this cache reads the specified interval.
+	 *
+	 * @param other
+	 *            the interval.
+	 * @return <code>true</code> if the intervals are equal.
+	 */
+	public boolean covers( final Interval other )
+	{
+		return Intervals.equals( interval, other );
+	}
+
+	/**
+	 * Discards the cached frames and stops reading ahead.
+	 */
+	public void close()
+	{
+		reader.shutdownNow();
+		synchronized ( frames )
+		{
+			frames.clear();
+		}
+	}
+
+	private RandomAccessibleInterval< T > read( final int frame )
+	{
+		final RandomAccessibleInterval< T > view = Views.interval( source.apply( frame ), interval );
+		final T type = Util.getTypeFromInterval( view );
+		final Img< T > copy = new ArrayImgFactory<>( type ).create( Intervals.dimensionsAsLongArray( interval ) );
+		final Cursor< T > in = Views.flatIterable( view ).cursor();
+		final Cursor< T > out = copy.cursor();
+		while ( in.hasNext() )
+			out.next().set( in.next() );
+		return Views.translate( copy, Intervals.minAsLongArray( interval ) );
+	}
+}
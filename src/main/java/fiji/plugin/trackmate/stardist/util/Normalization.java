@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist.util;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Utilities to normalize the input of StarDist over a region larger than the
+ * image the CNN runs on, for instance over a whole stack, so that all the
+ * parts of this region are mapped alike.
+ */
+public class Normalization
+{
+
+	/** Percentile of the input mapped to 0. */
+	public static final double PERCENTILE_BOTTOM = 1.0;
+
+	/** Percentile of the input mapped to 1. */
+	public static final double PERCENTILE_TOP = 99.8;
+
+	/** Max number of pixels sampled to compute the percentiles. */
+	private static final int MAX_PERCENTILE_SAMPLES = 1_000_000;
+
+	private Normalization()
+	{}
+
+	/**
+	 * Computes the {@link #PERCENTILE_BOTTOM} and {@link #PERCENTILE_TOP}
+	 * percentiles of the specified image, from a regular subsample of its
+	 * pixels. At most {@value #MAX_PERCENTILE_SAMPLES} pixels are copied,
+	 * whatever the size of the image.
+	 *
+	 * @param input
+	 *            the image.
+	 * @return the low and high percentiles, as a new array.
+	 */
+	public static < T extends RealType< T > > double[] percentiles( final RandomAccessibleInterval< T > input )
+	{
+		final long n = Intervals.numElements( input );
+		final long step = Math.max( 1L, n / MAX_PERCENTILE_SAMPLES );
+		final double[] samples = new double[ ( int ) ( ( n + step - 1 ) / step ) ];
+		final Cursor< T > cursor = Views.flatIterable( input ).cursor();
+		int i = 0;
+		long k = 0;
+		while ( cursor.hasNext() )
+		{
+			final T t = cursor.next();
+			if ( k++ % step == 0 && i < samples.length )
+				samples[ i++ ] = t.getRealDouble();
+		}
+		if ( i == 0 )
+			return new double[] { 0., 1. };
+		Arrays.sort( samples, 0, i );
+		final int last = i - 1;
+		return new double[] {
+				samples[ ( int ) Math.round( last * PERCENTILE_BOTTOM / 100. ) ],
+				samples[ ( int ) Math.round( last * PERCENTILE_TOP / 100. ) ] };
+	}
+
+	/**
+	 * Copies the specified image to a new float image, with the values of the
+	 * specified range mapped to 0 and 1, without clipping.
+	 *
+	 * @param input
+	 *            the image.
+	 * @param range
+	 *            the values mapped to 0 and 1, as returned by
+	 *            {@link #percentiles(RandomAccessibleInterval)}.
+	 * @return a new normalized image, with the same dimensions and a zero
+	 *         min.
+	 */
+	public static < T extends RealType< T > > ArrayImg< FloatType, FloatArray > normalize( final RandomAccessibleInterval< T > input, final double[] range )
+	{
+		final ArrayImg< FloatType, FloatArray > out = ArrayImgs.floats( Intervals.dimensionsAsLongArray( input ) );
+		final float[] values = out.update( null ).getCurrentStorageArray();
+		final double scale = 1. / Math.max( range[ 1 ] - range[ 0 ], 1e-20 );
+		int i = 0;
+		for ( final T pixel : Views.flatIterable( input ) )
+			values[ i++ ] = ( float ) ( ( pixel.getRealDouble() - range[ 0 ] ) * scale );
+		return out;
+	}
+}
@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist.util;
+
+/**
+ * Douglas-Peucker simplification of closed polygons.
+ * <p>
+ * Every vertex that is removed lies within the tolerance of the simplified
+ * outline. The area difference between the two polygons is therefore bounded
+ * by the tolerance times the perimeter, and the centroid moves by at most the
+ * tolerance. The simplified polygon always keeps at least 4 vertices, so that
+ * it remains a reasonable outline for very small objects.
+ */
+public class PolygonSimplification
+{
+
+	private PolygonSimplification()
+	{}
+
+	/**
+	 * Simplifies a closed polygon.
+	 *
+	 * @param x
+	 *            the X coordinates of the vertices.
+	 * @param y
+	 *            the Y coordinates of the vertices.
+	 * @param tolerance
+	 *            the max distance between a removed vertex and the simplified
+	 *            outline. If not strictly positive, the polygon is returned
+	 *            unchanged.
+	 * @return the X and Y coordinates of the simplified polygon, as
+	 *         <code>{ x, y }</code>. The input arrays are returned if no
+	 *         vertex is removed.
+	 */
+	public static double[][] simplify( final double[] x, final double[] y, final double tolerance )
+	{
+		final int n = x.length;
+		if ( !( tolerance > 0. ) || n <= 4 )
+			return new double[][] { x, y };
+
+		// Split the outline at vertex 0 and the vertex farthest from it.
+		int far = 0;
+		double maxD2 = -1.;
+		for ( int i = 1; i < n; i++ )
+		{
+			final double dx = x[ i ] - x[ 0 ];
+			final double dy = y[ i ] - y[ 0 ];
+			final double d2 = dx * dx + dy * dy;
+			if ( d2 > maxD2 )
+			{
+				maxD2 = d2;
+				far = i;
+			}
+		}
+
+		final boolean[] keep = new boolean[ n ];
+		keep[ 0 ] = true;
+		keep[ far ] = true;
+		final double tol2 = tolerance * tolerance;
+		// Each half keeps at least its farthest vertex.
+		simplify( x, y, 0, far, tol2, keep, true );
+		simplify( x, y, far, n, tol2, keep, true );
+
+		int nKept = 0;
+		for ( final boolean k : keep )
+			if ( k )
+				nKept++;
+		if ( nKept == n )
+			return new double[][] { x, y };
+
+		final double[] xs = new double[ nKept ];
+		final double[] ys = new double[ nKept ];
+		int j = 0;
+		for ( int i = 0; i < n; i++ )
+		{
+			if ( !keep[ i ] )
+				continue;
+			xs[ j ] = x[ i ];
+			ys[ j ] = y[ i ];
+			j++;
+		}
+		return new double[][] { xs, ys };
+	}
+
+	/**
+	 * Recursive step, on the vertices between <code>start</code> and
+	 * <code>end</code>, exclusive. Index <code>n</code> stands for vertex 0.
+	 */
+	private static void simplify( final double[] x, final double[] y, final int start, final int end, final double tol2, final boolean[] keep, final boolean force )
+	{
+		if ( end - start < 2 )
+			return;
+
+		final int n = x.length;
+		final double ax = x[ start ];
+		final double ay = y[ start ];
+		final double bx = x[ end % n ];
+		final double by = y[ end % n ];
+		int index = -1;
+		double maxD2 = -1.;
+		for ( int i = start + 1; i < end; i++ )
+		{
+			final double d2 = segmentDistanceSquared( x[ i ], y[ i ], ax, ay, bx, by );
+			if ( d2 > maxD2 )
+			{
+				maxD2 = d2;
+				index = i;
+			}
+		}
+		if ( !force && maxD2 <= tol2 )
+			return;
+
+		keep[ index ] = true;
+		simplify( x, y, start, index, tol2, keep, false );
+		simplify( x, y, index, end, tol2, keep, false );
+	}
+
+	private static double segmentDistanceSquared( final double px, final double py, final double ax, final double ay, final double bx, final double by )
+	{
+		final double dx = bx - ax;
+		final double dy = by - ay;
+		final double l2 = dx * dx + dy * dy;
+		double t = ( l2 > 0. ) ? ( ( px - ax ) * dx + ( py - ay ) * dy ) / l2 : 0.;
+		t = Math.max( 0., Math.min( 1., t ) );
+		final double ex = ax + t * dx - px;
+		final double ey = ay + t * dy - py;
+		return ex * ex + ey * ey;
+	}
+}
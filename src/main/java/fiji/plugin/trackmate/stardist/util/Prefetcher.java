@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Prepares the data of the next frames in a background thread, while the
+ * current frame is being processed.
+ * <p>
+ * When frame <code>t</code> is requested, frames <code>t+1</code> to
+ * <code>t+depth</code> are scheduled, so that at most <code>depth</code>
+ * frames are prepared ahead. Frames before <code>t</code> are discarded:
+ * frames are expected to be requested in increasing order. A frame that was
+ * not prepared ahead is prepared in the calling thread.
+ *
+ * @param <V>
+ *            the type of the prepared data.
+ */
+public class Prefetcher< V >
+{
+
+	/**
+	 * Prepares the data of one frame.
+	 */
+	@FunctionalInterface
+	public static interface Loader< V >
+	{
+		public V load( int frame ) throws Exception;
+	}
+
+	private final Loader< V > loader;
+
+	private final int nFrames;
+
+	private final int depth;
+
+	private final TreeMap< Integer, Future< V > > pending = new TreeMap<>();
+
+	private final ExecutorService worker;
+
+	/**
+	 * Creates a prefetcher.
+	 *
+	 * @param loader
+	 *            prepares the data of a frame.
+	 * @param nFrames
+	 *            the number of frames.
+	 * @param depth
+	 *            the maximal number of frames prepared ahead.
+	 */
+	public Prefetcher( final Loader< V > loader, final int nFrames, final int depth )
+	{
+		this.loader = loader;
+		this.nFrames = nFrames;
+		this.depth = Math.max( 0, depth );
+		this.worker = Executors.newSingleThreadExecutor( r -> {
+			final Thread thread = new Thread( r, "StarDist prefetcher" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Returns the data of the specified frame, and schedules the next frames.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return the prepared data.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the data.
+	 * @throws ExecutionException
+	 *             if the data could not be prepared.
+	 */
+	public V get( final int frame ) throws InterruptedException, ExecutionException
+	{
+		final Future< V > future;
+		synchronized ( pending )
+		{
+			// Frames before this one will not be requested anymore.
+			final Iterator< Map.Entry< Integer, Future< V > > > it = pending.headMap( Integer.valueOf( frame ) ).entrySet().iterator();
+			while ( it.hasNext() )
+			{
+				it.next().getValue().cancel( true );
+				it.remove();
+			}
+			future = pending.remove( Integer.valueOf( frame ) );
+			for ( int f = frame + 1; f <= frame + depth && f < nFrames; f++ )
+			{
+				final int next = f;
+				if ( !pending.containsKey( Integer.valueOf( next ) ) )
+					pending.put( Integer.valueOf( next ), worker.submit( () -> loader.load( next ) ) );
+			}
+		}
+
+		if ( null != future )
+			return future.get();
+		try
+		{
+			return loader.load( frame );
+		}
+		catch ( final InterruptedException e )
+		{
+			throw e;
+		}
+		catch ( final Exception e )
+		{
+			throw new ExecutionException( e );
+		}
+	}
+
+	/**
+	 * Discards the frames prepared ahead and stops the background thread.
+	 */
+	public void close()
+	{
+		worker.shutdownNow();
+		synchronized ( pending )
+		{
+			pending.clear();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist.util;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Utilities to run StarDist on a 2D image at a lower resolution than its
+ * native one.
+ */
+public class Resampling
+{
+
+	private Resampling()
+	{}
+
+	/**
+	 * Returns the size of a dimension after downsampling.
+	 *
+	 * @param size
+	 *            the size at native resolution.
+	 * @param scale
+	 *            the scale factor, in <code>]0, 1]</code>.
+	 * @return the downsampled size.
+	 */
+	public static long downsampledSize( final long size, final double scale )
+	{
+		return ( long ) Math.floor( ( size - 1 ) * scale ) + 1;
+	}
+
+	/**
+	 * Downsamples a 2D image by averaging the pixels that fall in each
+	 * downsampled pixel. Native pixel <code>x</code> falls in downsampled
+	 * pixel <code>floor(x * scale)</code>, so that non-integer scale factors
+	 * are supported. The input is iterated only once.
+	 * <p>
+	 * A 3D input is taken as a multi-channel 2D image, with the channels as
+	 * last dimension. Each channel is downsampled separately.
+	 * <p>
+	 * The pixel array of the returned image is borrowed from the
+	 * {@link ArrayPool}. Callers can release the image there once they are
+	 * done with it.
+	 *
+	 * @param input
+	 *            the 2D image to downsample, possibly with channels, with a
+	 *            min at 0.
+	 * @param scale
+	 *            the scale factor, in <code>]0, 1]</code>.
+	 * @return a new downsampled image, with the same number of channels.
+	 */
+	public static < T extends RealType< T > > ArrayImg< FloatType, FloatArray > downsample( final RandomAccessibleInterval< T > input, final double scale )
+	{
+		final int width = ( int ) downsampledSize( input.dimension( 0 ), scale );
+		final int height = ( int ) downsampledSize( input.dimension( 1 ), scale );
+		final boolean hasChannels = input.numDimensions() > 2;
+		final int nChannels = hasChannels ? ( int ) input.dimension( 2 ) : 1;
+		final int planeSize = width * height;
+		final float[] sum = ArrayPool.borrowFloats( planeSize * nChannels );
+		final int[] count = ArrayPool.borrowInts( planeSize * nChannels );
+		Arrays.fill( sum, 0f );
+		Arrays.fill( count, 0 );
+
+		// Precompute the target row and column of each native pixel.
+		final int[] xs = binIndices( input.dimension( 0 ), scale );
+		final int[] ys = binIndices( input.dimension( 1 ), scale );
+
+		final Cursor< T > cursor = Views.flatIterable( input ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			int index = xs[ cursor.getIntPosition( 0 ) ] + width * ys[ cursor.getIntPosition( 1 ) ];
+			if ( hasChannels )
+				index += planeSize * cursor.getIntPosition( 2 );
+			sum[ index ] += cursor.get().getRealFloat();
+			count[ index ]++;
+		}
+		for ( int i = 0; i < sum.length; i++ )
+			sum[ i ] /= count[ i ];
+		ArrayPool.release( count );
+
+		return hasChannels
+				? ArrayImgs.floats( sum, width, height, nChannels )
+				: ArrayImgs.floats( sum, width, height );
+	}
+
+	/**
+	 * Maps a coordinate in a downsampled image back to the native image.
+	 *
+	 * @param x
+	 *            the coordinate in the downsampled image, in pixels.
+	 * @param scale
+	 *            the scale factor used for downsampling.
+	 * @return the coordinate in the native image, in pixels.
+	 */
+	public static double toNative( final double x, final double scale )
+	{
+		return ( x + 0.5 ) / scale - 0.5;
+	}
+
+	private static int[] binIndices( final long size, final double scale )
+	{
+		final int[] indices = new int[ ( int ) size ];
+		for ( int i = 0; i < indices.length; i++ )
+			indices[ i ] = ( int ) Math.floor( i * scale );
+		return indices;
+	}
+}
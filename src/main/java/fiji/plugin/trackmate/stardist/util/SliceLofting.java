@@ -0,0 +1,197 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist.util;
+
+import java.util.List;
+
+import net.imglib2.mesh.Mesh;
+import net.imglib2.mesh.Triangles;
+import net.imglib2.mesh.Vertices;
+import net.imglib2.mesh.impl.nio.BufferMesh;
+
+/**
+ * Builds a closed 3D mesh from a stack of 2D contours, one per Z slice.
+ * <p>
+ * Contours are resampled to the same number of vertices, starting at the
+ * vertex facing the +X direction from their centroid, so that consecutive
+ * contours can be joined by a strip of triangles. The first and last contours
+ * are closed by flat caps, offset by half a slice so that an object seen in a
+ * single slice still has a volume.
+ */
+public class SliceLofting
+{
+
+	/**
+	 * Minimal number of vertices per resampled contour.
+	 */
+	private static final int MIN_VERTICES = 8;
+
+	private SliceLofting()
+	{}
+
+	/**
+	 * Builds a closed mesh from the specified contours.
+	 *
+	 * @param xs
+	 *            the X coordinates of the contours, one array per slice, from
+	 *            bottom to top.
+	 * @param ys
+	 *            the Y coordinates of the contours.
+	 * @param zs
+	 *            the Z position of each contour, in increasing order.
+	 * @param capOffset
+	 *            the distance between the first and last contours and the
+	 *            caps that close the mesh. Typically half the slice spacing.
+	 * @return a new mesh, in the same units as the coordinates.
+	 */
+	public static Mesh loft( final List< double[] > xs, final List< double[] > ys, final double[] zs, final double capOffset )
+	{
+		int n = MIN_VERTICES;
+		for ( final double[] x : xs )
+			n = Math.max( n, x.length );
+
+		// Rings: the first and last contours are repeated at the caps.
+		final int nContours = xs.size();
+		final int nRings = nContours + 2;
+		final double[][] ringX = new double[ nRings ][];
+		final double[][] ringY = new double[ nRings ][];
+		final double[] ringZ = new double[ nRings ];
+		for ( int c = 0; c < nContours; c++ )
+		{
+			final double[][] resampled = resample( xs.get( c ), ys.get( c ), n );
+			ringX[ c + 1 ] = resampled[ 0 ];
+			ringY[ c + 1 ] = resampled[ 1 ];
+			ringZ[ c + 1 ] = zs[ c ];
+		}
+		ringX[ 0 ] = ringX[ 1 ];
+		ringY[ 0 ] = ringY[ 1 ];
+		ringZ[ 0 ] = zs[ 0 ] - capOffset;
+		ringX[ nRings - 1 ] = ringX[ nRings - 2 ];
+		ringY[ nRings - 1 ] = ringY[ nRings - 2 ];
+		ringZ[ nRings - 1 ] = zs[ nContours - 1 ] + capOffset;
+
+		final BufferMesh mesh = new BufferMesh( nRings * n + 2, 2 * n * nRings );
+		final Vertices vertices = mesh.vertices();
+		final Triangles triangles = mesh.triangles();
+		for ( int r = 0; r < nRings; r++ )
+			for ( int i = 0; i < n; i++ )
+				vertices.add( ringX[ r ][ i ], ringY[ r ][ i ], ringZ[ r ] );
+
+		// Side strips. Contours are counter-clockwise, normals point outward.
+		for ( int r = 0; r < nRings - 1; r++ )
+		{
+			final long a0 = ( long ) r * n;
+			final long b0 = ( long ) ( r + 1 ) * n;
+			for ( int i = 0; i < n; i++ )
+			{
+				final int j = ( i + 1 ) % n;
+				triangles.add( a0 + i, a0 + j, b0 + j );
+				triangles.add( a0 + i, b0 + j, b0 + i );
+			}
+		}
+
+		// Caps, as fans around the contour centroids.
+		final long bottom = vertices.add( mean( ringX[ 0 ] ), mean( ringY[ 0 ] ), ringZ[ 0 ] );
+		final long top = vertices.add( mean( ringX[ nRings - 1 ] ), mean( ringY[ nRings - 1 ] ), ringZ[ nRings - 1 ] );
+		final long t0 = ( long ) ( nRings - 1 ) * n;
+		for ( int i = 0; i < n; i++ )
+		{
+			final int j = ( i + 1 ) % n;
+			triangles.add( bottom, j, i );
+			triangles.add( top, t0 + i, t0 + j );
+		}
+		return mesh;
+	}
+
+	/**
+	 * Resamples a closed contour to the specified number of vertices, evenly
+	 * spaced along its perimeter, in counter-clockwise order and starting
+	 * from the vertex facing the +X direction from the centroid.
+	 */
+	static double[][] resample( final double[] x, final double[] y, final int n )
+	{
+		final int m = x.length;
+
+		// Orientation.
+		double signedArea = 0.;
+		for ( int i = 0; i < m; i++ )
+		{
+			final int j = ( i + 1 ) % m;
+			signedArea += x[ i ] * y[ j ] - x[ j ] * y[ i ];
+		}
+		final boolean ccw = signedArea >= 0.;
+
+		// Start vertex: smallest angle to the +X axis from the centroid.
+		final double cx = mean( x );
+		final double cy = mean( y );
+		int start = 0;
+		double minAngle = Double.POSITIVE_INFINITY;
+		for ( int i = 0; i < m; i++ )
+		{
+			final double angle = Math.abs( Math.atan2( y[ i ] - cy, x[ i ] - cx ) );
+			if ( angle < minAngle )
+			{
+				minAngle = angle;
+				start = i;
+			}
+		}
+
+		// Reorder: counter-clockwise from the start vertex.
+		final double[] ox = new double[ m + 1 ];
+		final double[] oy = new double[ m + 1 ];
+		for ( int k = 0; k <= m; k++ )
+		{
+			final int i = ccw ? ( start + k ) % m : ( ( start - k ) % m + m ) % m;
+			ox[ k ] = x[ i ];
+			oy[ k ] = y[ i ];
+		}
+
+		// Cumulative perimeter.
+		final double[] arc = new double[ m + 1 ];
+		for ( int k = 1; k <= m; k++ )
+			arc[ k ] = arc[ k - 1 ] + Math.hypot( ox[ k ] - ox[ k - 1 ], oy[ k ] - oy[ k - 1 ] );
+		final double perimeter = arc[ m ];
+
+		final double[] rx = new double[ n ];
+		final double[] ry = new double[ n ];
+		int k = 0;
+		for ( int i = 0; i < n; i++ )
+		{
+			final double s = perimeter * i / n;
+			while ( k < m - 1 && arc[ k + 1 ] < s )
+				k++;
+			final double segment = arc[ k + 1 ] - arc[ k ];
+			final double t = segment > 0. ? ( s - arc[ k ] ) / segment : 0.;
+			rx[ i ] = ox[ k ] + t * ( ox[ k + 1 ] - ox[ k ] );
+			ry[ i ] = oy[ k ] + t * ( oy[ k + 1 ] - oy[ k ] );
+		}
+		return new double[][] { rx, ry };
+	}
+
+	private static double mean( final double[] arr )
+	{
+		double sum = 0.;
+		for ( final double v : arr )
+			sum += v;
+		return sum / arr.length;
+	}
+}
@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fiji.plugin.trackmate.stardist.FrameMemory.Detection;
+
+/**
+ * Tests that a detection journal resumes the frames it holds, drops a record
+ * cut by a crash, and refuses to be reused for another key.
+ */
+public class DetectionJournalTest
+{
+
+	private static final long KEY = 42L;
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		file = Files.createTempFile( "stardist-journal", ".sdj" ).toFile();
+		file.delete();
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	@Test
+	public void testResumesJournaledFrames() throws IOException
+	{
+		final DetectionJournal journal = new DetectionJournal( file.getPath(), KEY );
+		journal.append( 0, Arrays.asList( square( 0., 0.9 ), square( 10., 0.5 ) ) );
+		journal.append( 1, Arrays.asList( square( 5., 0.7 ) ) );
+		journal.close();
+
+		final DetectionJournal resumed = new DetectionJournal( file.getPath(), KEY );
+		assertEquals( 2, resumed.size() );
+		final List< Detection > frame0 = resumed.get( 0 );
+		assertEquals( 2, frame0.size() );
+		assertEquals( 0.9, frame0.get( 0 ).quality, 0. );
+		assertArrayEquals( square( 10., 0.5 ).x, frame0.get( 1 ).x, 0. );
+		assertArrayEquals( square( 10., 0.5 ).y, frame0.get( 1 ).y, 0. );
+		assertNull( resumed.get( 2 ) );
+
+		// Appends after the resumed frames.
+		resumed.append( 2, Arrays.asList( square( 1., 0.3 ) ) );
+		resumed.close();
+		final DetectionJournal again = new DetectionJournal( file.getPath(), KEY );
+		assertEquals( 3, again.size() );
+		again.close();
+	}
+
+	@Test
+	public void testDropsTruncatedRecord() throws IOException
+	{
+		final DetectionJournal journal = new DetectionJournal( file.getPath(), KEY );
+		journal.append( 0, Arrays.asList( square( 0., 0.9 ) ) );
+		journal.append( 1, Arrays.asList( square( 5., 0.7 ) ) );
+		journal.close();
+		final long length = file.length();
+		try (RandomAccessFile raf = new RandomAccessFile( file, "rw" ))
+		{
+			raf.setLength( length - 3 );
+		}
+
+		final DetectionJournal resumed = new DetectionJournal( file.getPath(), KEY );
+		assertEquals( 1, resumed.size() );
+		assertNull( resumed.get( 1 ) );
+		resumed.append( 1, Arrays.asList( square( 5., 0.7 ) ) );
+		resumed.close();
+		assertEquals( length, file.length() );
+	}
+
+	@Test
+	public void testRejectsAnotherKey() throws IOException
+	{
+		final DetectionJournal journal = new DetectionJournal( file.getPath(), KEY );
+		journal.append( 0, Arrays.asList( square( 0., 0.9 ) ) );
+		journal.close();
+		final long length = file.length();
+
+		try
+		{
+			new DetectionJournal( file.getPath(), KEY + 1 );
+			fail( "A journal written for another key must not be reused." );
+		}
+		catch ( final IOException e )
+		{
+			assertTrue( e.getMessage().contains( "another image" ) );
+		}
+		// Left untouched.
+		assertEquals( length, file.length() );
+		final DetectionJournal resumed = new DetectionJournal( file.getPath(), KEY );
+		assertEquals( 1, resumed.size() );
+		resumed.close();
+	}
+
+	private static Detection square( final double offset, final double quality )
+	{
+		return new Detection(
+				new double[] { offset, offset + 4., offset + 4., offset },
+				new double[] { offset, offset, offset + 4., offset + 4. },
+				quality );
+	}
+}
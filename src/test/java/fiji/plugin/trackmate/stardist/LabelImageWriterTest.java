@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fiji.plugin.trackmate.stardist.FrameMemory.Detection;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+
+/**
+ * Tests how the label image writer paints the detections of a frame and
+ * writes them to its own slice of the N5 dataset.
+ */
+public class LabelImageWriterTest
+{
+
+	private static final double[] CALIBRATION = new double[] { 0.5, 0.25 };
+
+	private File folder;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		folder = Files.createTempDirectory( "stardist-labels" ).toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		Files.walk( folder.toPath() )
+				.sorted( Collections.reverseOrder() )
+				.map( p -> p.toFile() )
+				.forEach( File::delete );
+	}
+
+	@Test
+	public void testPaintNumbersDetectionsFromOne()
+	{
+		final int width = 20;
+		final int height = 10;
+		final int[] labels = new int[ width * height ];
+		// Pixels 2 to 5 in X and 1 to 3 in Y, and 10 to 13 in X and 4 to 7 in Y.
+		final List< Detection > detections = Arrays.asList(
+				rectangle( 2, 1, 6, 4 ),
+				rectangle( 10, 4, 14, 8 ) );
+		LabelImageWriter.paint( detections, CALIBRATION, width, height, labels );
+
+		assertEquals( 0, labels[ 0 ] );
+		assertEquals( 1, labels[ 1 * width + 2 ] );
+		assertEquals( 1, labels[ 3 * width + 5 ] );
+		assertEquals( 0, labels[ 4 * width + 5 ] );
+		assertEquals( 2, labels[ 4 * width + 10 ] );
+		assertEquals( 2, labels[ 7 * width + 13 ] );
+		assertEquals( 4 * 3, count( labels, 1 ) );
+		assertEquals( 4 * 4, count( labels, 2 ) );
+	}
+
+	@Test
+	public void testPaintKeepsFirstDetectionWhereTheyOverlap()
+	{
+		final int width = 10;
+		final int height = 10;
+		final int[] labels = new int[ width * height ];
+		LabelImageWriter.paint( Arrays.asList( rectangle( 0, 0, 4, 4 ), rectangle( 2, 2, 6, 6 ) ), CALIBRATION, width, height, labels );
+		assertEquals( 1, labels[ 3 * width + 3 ] );
+		assertEquals( 2, labels[ 4 * width + 4 ] );
+		assertEquals( 16, count( labels, 1 ) );
+		assertEquals( 16 - 4, count( labels, 2 ) );
+	}
+
+	@Test
+	public void testPaintClipsToImage()
+	{
+		final int width = 4;
+		final int height = 4;
+		final int[] labels = new int[ width * height ];
+		LabelImageWriter.paint( Collections.singletonList( rectangle( -2, -2, 2, 2 ) ), CALIBRATION, width, height, labels );
+		assertEquals( 4, count( labels, 1 ) );
+	}
+
+	@Test
+	public void testWritesEachFrameToItsSlice()
+	{
+		final String path = new File( folder, "labels.n5" ).getPath();
+		final LabelImageWriter writer = new LabelImageWriter( path, 16, 12, 3 );
+		writer.write( 1, Collections.singletonList( rectangle( 2, 2, 6, 6 ) ), CALIBRATION );
+		writer.write( 2, Arrays.asList( rectangle( 8, 1, 10, 3 ), rectangle( 1, 8, 3, 10 ) ), CALIBRATION );
+
+		final N5FSReader n5 = new N5FSReader( path );
+		final RandomAccessibleInterval< UnsignedIntType > labels = N5Utils.open( n5, LabelImageWriter.DATASET );
+		assertEquals( 16, labels.dimension( 0 ) );
+		assertEquals( 12, labels.dimension( 1 ) );
+		assertEquals( 3, labels.dimension( 2 ) );
+		assertEquals( 0, label( labels, 3, 3, 0 ) );
+		assertEquals( 1, label( labels, 3, 3, 1 ) );
+		assertEquals( 0, label( labels, 3, 3, 2 ) );
+		assertEquals( 1, label( labels, 9, 2, 2 ) );
+		assertEquals( 2, label( labels, 2, 9, 2 ) );
+
+		writer.close();
+	}
+
+	@Test
+	public void testNewWriterClearsEarlierFrames()
+	{
+		final String path = new File( folder, "labels.n5" ).getPath();
+		final LabelImageWriter first = new LabelImageWriter( path, 16, 12, 3 );
+		first.write( 1, Collections.singletonList( rectangle( 2, 2, 6, 6 ) ), CALIBRATION );
+		first.close();
+
+		// A new run with the same size only writes frame 2.
+		final LabelImageWriter second = new LabelImageWriter( path, 16, 12, 3 );
+		second.write( 2, Collections.singletonList( rectangle( 2, 2, 6, 6 ) ), CALIBRATION );
+		second.close();
+
+		final RandomAccessibleInterval< UnsignedIntType > labels = N5Utils.open( new N5FSReader( path ), LabelImageWriter.DATASET );
+		assertEquals( 0, label( labels, 3, 3, 1 ) );
+		assertEquals( 1, label( labels, 3, 3, 2 ) );
+	}
+
+	/**
+	 * A rectangle covering the pixels from (x0, y0) included to (x1, y1)
+	 * excluded, in physical units.
+	 */
+	private static Detection rectangle( final double x0, final double y0, final double x1, final double y1 )
+	{
+		return new Detection(
+				new double[] { x0 * CALIBRATION[ 0 ], x1 * CALIBRATION[ 0 ], x1 * CALIBRATION[ 0 ], x0 * CALIBRATION[ 0 ] },
+				new double[] { y0 * CALIBRATION[ 1 ], y0 * CALIBRATION[ 1 ], y1 * CALIBRATION[ 1 ], y1 * CALIBRATION[ 1 ] },
+				1. );
+	}
+
+	private static int count( final int[] labels, final int label )
+	{
+		int n = 0;
+		for ( final int l : labels )
+			if ( l == label )
+				n++;
+		return n;
+	}
+
+	private static long label( final RandomAccessibleInterval< UnsignedIntType > labels, final long x, final long y, final long t )
+	{
+		final RandomAccess< UnsignedIntType > ra = labels.randomAccess();
+		ra.setPosition( new long[] { x, y, t } );
+		return ra.get().get();
+	}
+}
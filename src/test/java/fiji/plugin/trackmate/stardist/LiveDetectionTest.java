@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fiji.plugin.trackmate.stardist.LiveDetection.PendingFrame;
+
+/**
+ * Tests how the live detection finds, orders and queues the files of an
+ * acquisition. The model is not needed: only the watcher runs.
+ */
+public class LiveDetectionTest
+{
+
+	private File folder;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		folder = Files.createTempDirectory( "stardist-live" ).toFile();
+	}
+
+	@After
+	public void tearDown()
+	{
+		final File[] files = folder.listFiles();
+		if ( null != files )
+			for ( final File file : files )
+				file.delete();
+		folder.delete();
+	}
+
+	@Test
+	public void testFrameIndex()
+	{
+		assertEquals( 0, LiveDetection.frameIndex( "t0.tif" ) );
+		assertEquals( 12, LiveDetection.frameIndex( "img_c1_t012.ome.tif" ) );
+		assertEquals( 7, LiveDetection.frameIndex( "frame7-done.tiff" ) );
+		assertEquals( -1, LiveDetection.frameIndex( "snapshot.tif" ) );
+	}
+
+	@Test
+	public void testFilesAreCompleteAfterTwoPollsInFrameOrder() throws IOException
+	{
+		write( "t10.tif", 10 );
+		write( "t2.tif", 10 );
+		write( "t1.tif", 10 );
+		final LiveDetection live = newLiveDetection( 4 );
+
+		// Unknown at the first poll.
+		assertEquals( 0, live.completeFiles().length );
+		assertEquals( Arrays.asList( "t1.tif", "t2.tif", "t10.tif" ), names( live.completeFiles() ) );
+	}
+
+	@Test
+	public void testGrowingFileHoldsTheNextOnes() throws IOException
+	{
+		write( "t1.tif", 10 );
+		write( "t2.tif", 10 );
+		write( "t3.tif", 10 );
+		final LiveDetection live = newLiveDetection( 4 );
+		live.completeFiles();
+
+		// t2 is still being written: t3 must wait for it.
+		write( "t2.tif", 10 );
+		assertEquals( Collections.singletonList( "t1.tif" ), names( live.completeFiles() ) );
+		assertEquals( Arrays.asList( "t2.tif", "t3.tif" ), names( live.completeFiles() ) );
+	}
+
+	@Test
+	public void testWatcherWaitsForFreeSlot() throws Exception
+	{
+		for ( int t = 0; t < 3; t++ )
+			write( "t" + t + ".tif", 10 );
+		final LiveDetection live = newLiveDetection( 1 );
+		live.startWatcher();
+		try
+		{
+			awaitPending( live, 1 );
+			// More polls do not queue more files while the slot is taken.
+			Thread.sleep( 100 );
+			assertEquals( 1, live.getPendingFrames() );
+
+			for ( int t = 0; t < 3; t++ )
+			{
+				final PendingFrame pending = live.nextPending();
+				assertEquals( t, pending.frame );
+				assertEquals( "t" + t + ".tif", pending.file.getName() );
+			}
+		}
+		finally
+		{
+			live.stop();
+		}
+	}
+
+	private LiveDetection newLiveDetection( final int maxPending )
+	{
+		return new LiveDetection( null, Collections.emptyMap(), folder, null, 10, maxPending );
+	}
+
+	private void write( final String name, final int nBytes ) throws IOException
+	{
+		Files.write( new File( folder, name ).toPath(), new byte[ nBytes ], StandardOpenOption.CREATE, StandardOpenOption.APPEND );
+	}
+
+	private static List< String > names( final File[] files )
+	{
+		final String[] names = new String[ files.length ];
+		for ( int i = 0; i < files.length; i++ )
+			names[ i ] = files[ i ].getName();
+		return Arrays.asList( names );
+	}
+
+	private static void awaitPending( final LiveDetection live, final int expected ) throws InterruptedException
+	{
+		for ( int i = 0; i < 500 && live.getPendingFrames() < expected; i++ )
+			Thread.sleep( 10 );
+		assertTrue( "Files were not queued.", live.getPendingFrames() >= expected );
+	}
+}
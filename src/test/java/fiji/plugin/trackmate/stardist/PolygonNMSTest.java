@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Regression tests for the polygon NMS, on synthetic candidates. The timing
+ * benchmark only runs when the <code>stardist.benchmarks</code> system
+ * property is set, since a wall-clock budget depends on the machine.
+ */
+public class PolygonNMSTest
+{
+
+	/** Time allowed for the NMS of {@link #N_TIMED} candidates, in ms. */
+	private static final long NMS_BUDGET = 5000;
+
+	private static final int N_TIMED = 2000;
+
+	@Test
+	public void testSuppressesOverlap()
+	{
+		final StarConvexPolygon a = square( 0., 0., 10., 0.9 );
+		final StarConvexPolygon b = square( 2., 2., 10., 0.8 );
+		final StarConvexPolygon c = square( 30., 30., 10., 0.7 );
+		final List< StarConvexPolygon > winners = PolygonNMS.nms( Arrays.asList( c, b, a ), 0.4 );
+		assertEquals( 2, winners.size() );
+		assertSame( a, winners.get( 0 ) );
+		assertSame( c, winners.get( 1 ) );
+	}
+
+	@Test
+	public void testThreshold()
+	{
+		// Intersection over smallest area: 50 / 100.
+		final StarConvexPolygon a = square( 0., 0., 10., 0.9 );
+		final StarConvexPolygon b = square( 5., 0., 10., 0.8 );
+		assertEquals( 50., a.intersectionArea( b ), 1e-9 );
+		assertEquals( 1, PolygonNMS.nms( Arrays.asList( a, b ), 0.4 ).size() );
+		assertEquals( 2, PolygonNMS.nms( Arrays.asList( a, b ), 0.6 ).size() );
+	}
+
+	@Test
+	public void testSameAsExhaustiveSearch()
+	{
+		final List< StarConvexPolygon > candidates = randomCandidates( 1500, 42L );
+		final List< StarConvexPolygon > expected = exhaustiveNMS( candidates, 0.3 );
+		final List< StarConvexPolygon > winners = PolygonNMS.nms( candidates, 0.3 );
+		assertEquals( expected.size(), winners.size() );
+		for ( int i = 0; i < expected.size(); i++ )
+			assertSame( expected.get( i ), winners.get( i ) );
+	}
+
+	@Test
+	public void testSameAsExhaustiveSearchWithLargeCandidates()
+	{
+		// A few large candidates, as found at coarse pyramid levels.
+		final List< StarConvexPolygon > candidates = randomCandidates( 1500, 43L );
+		candidates.add( square( 100., 100., 400., 0.95 ) );
+		candidates.add( square( 450., 300., 500., 0.5 ) );
+		candidates.add( square( 0., 600., 300., 0.05 ) );
+		final List< StarConvexPolygon > expected = exhaustiveNMS( candidates, 0.3 );
+		final List< StarConvexPolygon > winners = PolygonNMS.nms( candidates, 0.3 );
+		assertEquals( expected.size(), winners.size() );
+		for ( int i = 0; i < expected.size(); i++ )
+			assertSame( expected.get( i ), winners.get( i ) );
+	}
+
+	@Test
+	public void benchmarkNMS()
+	{
+		assumeTrue( Boolean.getBoolean( "stardist.benchmarks" ) );
+		final List< StarConvexPolygon > candidates = randomCandidates( N_TIMED, 7L );
+		// Warm-up.
+		PolygonNMS.nms( candidates.subList( 0, 500 ), 0.3 );
+
+		final long start = System.currentTimeMillis();
+		final List< StarConvexPolygon > winners = PolygonNMS.nms( candidates, 0.3 );
+		final long elapsed = System.currentTimeMillis() - start;
+		assertTrue( winners.size() > 0 );
+		assertTrue( "NMS of " + N_TIMED + " candidates took " + elapsed + " ms, budget is " + NMS_BUDGET + " ms.", elapsed <= NMS_BUDGET );
+	}
+
+	/**
+	 * Reference NMS, comparing each candidate to all the winners.
+	 */
+	private static List< StarConvexPolygon > exhaustiveNMS( final List< StarConvexPolygon > candidates, final double threshold )
+	{
+		final List< StarConvexPolygon > sorted = new ArrayList<>( candidates );
+		sorted.sort( Comparator.comparingDouble( ( final StarConvexPolygon p ) -> p.score ).reversed() );
+		final List< StarConvexPolygon > winners = new ArrayList<>();
+		for ( final StarConvexPolygon candidate : sorted )
+		{
+			boolean suppressed = false;
+			for ( final StarConvexPolygon winner : winners )
+			{
+				final double minArea = Math.min( winner.area(), candidate.area() );
+				if ( winner.intersectionArea( candidate ) / ( minArea + 1e-10 ) > threshold )
+				{
+					suppressed = true;
+					break;
+				}
+			}
+			if ( !suppressed )
+				winners.add( candidate );
+		}
+		return winners;
+	}
+
+	/**
+	 * Star-convex candidates with 32 rays, scattered in a 1000 x 1000 image.
+	 */
+	static List< StarConvexPolygon > randomCandidates( final int n, final long seed )
+	{
+		final Random random = new Random( seed );
+		final List< StarConvexPolygon > candidates = new ArrayList<>( n );
+		for ( int i = 0; i < n; i++ )
+		{
+			final double cx = 1000. * random.nextDouble();
+			final double cy = 1000. * random.nextDouble();
+			final double r = 5. + 15. * random.nextDouble();
+			final double[] x = new double[ 32 ];
+			final double[] y = new double[ 32 ];
+			for ( int k = 0; k < 32; k++ )
+			{
+				final double theta = 2. * Math.PI * k / 32;
+				final double d = r * ( 0.8 + 0.4 * random.nextDouble() );
+				x[ k ] = cx + d * Math.cos( theta );
+				y[ k ] = cy + d * Math.sin( theta );
+			}
+			candidates.add( new StarConvexPolygon( x, y, random.nextDouble() ) );
+		}
+		return candidates;
+	}
+
+	private static StarConvexPolygon square( final double x0, final double y0, final double size, final double score )
+	{
+		return new StarConvexPolygon(
+				new double[] { x0, x0 + size, x0 + size, x0 },
+				new double[] { y0, y0, y0 + size, y0 + size },
+				score );
+	}
+}
@@ -0,0 +1,181 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.stardist.FrameMemory.Detection;
+
+/**
+ * Tests that a polygon store keeps the polygons to a fraction of their
+ * vertex spacing, in less room than 32-bit floats, and decodes the frames
+ * when they are accessed.
+ */
+public class PolygonStoreTest
+{
+
+	private static final int N_RAYS = 32;
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		file = Files.createTempFile( "stardist-polygons", ".sdp" ).toFile();
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		final Map< Integer, List< Detection > > frames = new HashMap<>();
+		frames.put( 0, Arrays.asList( star( 120.3, 87.9, 6.5, 0.91 ), star( 12.25, 400.75, 11., 0.42 ) ) );
+		frames.put( 3, Arrays.asList( star( 1024.1, 2048.6, 3.2, 0.66 ) ) );
+		frames.put( 5, Collections.emptyList() );
+		PolygonStore.write( file.getPath(), frames );
+
+		try (PolygonStore store = new PolygonStore( file.getPath() ))
+		{
+			assertEquals( Arrays.asList( 0, 3, 5 ), store.frames() );
+			assertEquals( 2, store.size( 0 ) );
+			assertEquals( 0, store.size( 5 ) );
+			assertEquals( 0, store.size( 1 ) );
+			assertTrue( store.detections( 1 ).isEmpty() );
+
+			for ( final int frame : new int[] { 0, 3 } )
+			{
+				final List< Detection > expected = frames.get( frame );
+				final List< Detection > actual = store.detections( frame );
+				assertEquals( expected.size(), actual.size() );
+				for ( int i = 0; i < expected.size(); i++ )
+					assertClose( expected.get( i ), actual.get( i ) );
+			}
+		}
+	}
+
+	@Test
+	public void testVerticesTakeFourBytes() throws IOException
+	{
+		final int nPolygons = 100;
+		final List< Detection > detections = new ArrayList<>();
+		for ( int i = 0; i < nPolygons; i++ )
+			detections.add( star( 10. * i, 5. * i, 4. + i % 7, 0.5 ) );
+		PolygonStore.write( file.getPath(), Collections.singletonMap( 0, detections ) );
+
+		// Header, one index entry, and per polygon 4 floats or ints plus 4 bytes per delta.
+		final long expected = 8 + 24 + nPolygons * ( 20L + 4L * ( N_RAYS - 1 ) );
+		assertEquals( expected, file.length() );
+		assertTrue( file.length() < nPolygons * 8L * N_RAYS );
+	}
+
+	@Test
+	public void testSpotsAreCreatedOnce() throws IOException
+	{
+		PolygonStore.write( file.getPath(), Collections.singletonMap( 2, Arrays.asList( star( 50., 50., 5., 0.8 ), star( 80., 50., 5., 0.7 ) ) ) );
+		try (PolygonStore store = new PolygonStore( file.getPath() ))
+		{
+			final List< Spot > spots = store.spots( 2 );
+			assertEquals( 2, spots.size() );
+			assertSame( spots.get( 1 ), spots.get( 1 ) );
+			assertSame( spots.get( 0 ), store.spots( 2 ).get( 0 ) );
+			assertEquals( 0, store.spots( 0 ).size() );
+		}
+	}
+
+	@Test
+	public void testJournalExport() throws IOException
+	{
+		final File journalFile = Files.createTempFile( "stardist-journal", ".sdj" ).toFile();
+		journalFile.delete();
+		try
+		{
+			final DetectionJournal journal = new DetectionJournal( journalFile.getPath(), 1L );
+			final List< Detection > frame4 = Arrays.asList( star( 30., 40., 8., 0.9 ) );
+			journal.append( 4, frame4 );
+			journal.exportTo( file.getPath() );
+			journal.close();
+
+			try (PolygonStore store = new PolygonStore( file.getPath() ))
+			{
+				assertEquals( Arrays.asList( 4 ), store.frames() );
+				assertClose( frame4.get( 0 ), store.detections( 4 ).get( 0 ) );
+				store.toSpotCollection();
+			}
+		}
+		finally
+		{
+			journalFile.delete();
+		}
+	}
+
+	private static void assertClose( final Detection expected, final Detection actual )
+	{
+		assertEquals( expected.quality, actual.quality, 1e-6 );
+		assertEquals( expected.x.length, actual.x.length );
+		// Within a small fraction of the vertex spacing.
+		double spacing = 0.;
+		for ( int i = 1; i < expected.x.length; i++ )
+			spacing = Math.max( spacing, Math.hypot( expected.x[ i ] - expected.x[ i - 1 ], expected.y[ i ] - expected.y[ i - 1 ] ) );
+		final double tolerance = Math.max( 1e-3 * spacing, 1e-3 );
+		for ( int i = 0; i < expected.x.length; i++ )
+		{
+			assertEquals( expected.x[ i ], actual.x[ i ], tolerance );
+			assertEquals( expected.y[ i ], actual.y[ i ], tolerance );
+		}
+	}
+
+	private static Detection star( final double cx, final double cy, final double radius, final double quality )
+	{
+		final double[] x = new double[ N_RAYS ];
+		final double[] y = new double[ N_RAYS ];
+		for ( int i = 0; i < N_RAYS; i++ )
+		{
+			final double theta = 2. * Math.PI * i / N_RAYS;
+			final double r = radius * ( 1. + 0.2 * Math.sin( 3. * theta ) );
+			x[ i ] = cx + r * Math.cos( theta );
+			y[ i ] = cy + r * Math.sin( theta );
+		}
+		return new Detection( x, y, quality );
+	}
+}
@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Tests that the prediction writer stores each CNN run in its own group, and
+ * that the maps can be read back with {@link PredictionReader} once the
+ * writer is flushed.
+ */
+public class PredictionWriterTest
+{
+
+	private File folder;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		folder = Files.createTempDirectory( "stardist-predictions" ).toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		Files.walk( folder.toPath() )
+				.sorted( Collections.reverseOrder() )
+				.map( p -> p.toFile() )
+				.forEach( File::delete );
+	}
+
+	@Test
+	public void testGroupName()
+	{
+		final Interval region = new FinalInterval( new long[] { 64, 128 }, new long[] { 319, 383 } );
+		assertEquals( "frame3/x64_y128/level1", PredictionWriter.group( 3, region, 1 ) );
+	}
+
+	@Test
+	public void testMapsAreReadBackAfterFlush()
+	{
+		final String path = new File( folder, "predictions.n5" ).getPath();
+		final PredictionWriter writer = new PredictionWriter( path );
+		final Interval region0 = new FinalInterval( new long[] { 0, 0 }, new long[] { 31, 15 } );
+		final Interval region1 = new FinalInterval( new long[] { 32, 0 }, new long[] { 63, 15 } );
+		writer.write( 0, region0, 0, 1., ramp( 32, 16 ), ArrayImgs.floats( 32, 16, 8 ) );
+		writer.write( 0, region1, 1, 0.5, ramp( 16, 8 ), ArrayImgs.floats( 16, 8, 8 ) );
+		writer.write( 2, region0, 0, 1., ramp( 32, 16 ), ArrayImgs.floats( 32, 16, 8 ) );
+		assertTrue( writer.getErrorMessage(), writer.close() );
+		assertNull( writer.getErrorMessage() );
+
+		final PredictionReader reader = new PredictionReader( path );
+		assertEquals( Arrays.asList( "frame0/x0_y0/level0", "frame0/x32_y0/level1" ), reader.groups( 0 ) );
+		assertTrue( reader.groups( 1 ).isEmpty() );
+		assertEquals( 1, reader.groups( 2 ).size() );
+
+		final String group = "frame0/x32_y0/level1";
+		assertArrayEquals( new long[] { 32, 0 }, reader.offset( group ) );
+		assertEquals( 0.5, reader.scale( group ), 0. );
+		final RandomAccessibleInterval< FloatType > prob = reader.probability( group );
+		assertEquals( 16, prob.dimension( 0 ) );
+		assertEquals( 8, prob.dimension( 1 ) );
+		final RandomAccess< FloatType > ra = prob.randomAccess();
+		ra.setPosition( new long[] { 5, 3 } );
+		assertEquals( 3 * 16 + 5, ra.get().get(), 0f );
+		assertEquals( 8, reader.distances( group ).dimension( 2 ) );
+	}
+
+	private static ArrayImg< FloatType, FloatArray > ramp( final int width, final int height )
+	{
+		final float[] values = new float[ width * height ];
+		for ( int i = 0; i < values.length; i++ )
+			values[ i ] = i;
+		return ArrayImgs.floats( values, width, height );
+	}
+}
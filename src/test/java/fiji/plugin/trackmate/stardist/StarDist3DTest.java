@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.stardist.FrameMemory.Detection;
+import fiji.plugin.trackmate.stardist.StarDistSliceDetector.SliceObject;
+
+/**
+ * Tests the parts of the 3D detection that do not need the CNN: the model
+ * configuration, the rays and the polyhedron NMS of the 3D model, and the
+ * linking of the slices of the 2D model run slice by slice.
+ */
+public class StarDist3DTest
+{
+
+	private static final String CONFIG = "{\"n_dim\": 3, \"axes\": \"ZYXC\", \"n_rays\": 64, "
+			+ "\"grid\": [1, 2, 4], \"anisotropy\": [1.0, 2.5, 2.5], \"unet_n_depth\": 3, "
+			+ "\"rays_json\": {\"name\": \"Rays_GoldenSpiral\", \"kwargs\": {\"n\": 64, \"anisotropy\": [1.0, 2.5, 2.5]}}}";
+
+	@Test
+	public void testParseConfig()
+	{
+		final StarDist3DModelConfig config = StarDist3DModelConfig.parse( CONFIG );
+		assertEquals( 64, config.nRays );
+		assertEquals( 0.4, config.anisotropy, 1e-12 );
+		assertArrayEquals( new int[] { 4, 2, 1 }, config.grid );
+		assertEquals( 3, config.unetDepth );
+		assertEquals( 32, config.sizeDivBy() );
+	}
+
+	@Test
+	public void testParseConfigDefaults()
+	{
+		final StarDist3DModelConfig config = StarDist3DModelConfig.parse( "{\"n_rays\": 96, \"anisotropy\": null}" );
+		assertEquals( 96, config.nRays );
+		assertEquals( Double.NaN, config.anisotropy, 0. );
+		assertArrayEquals( new int[] { 1, 1, 1 }, config.grid );
+		assertEquals( 4, config.sizeDivBy() );
+	}
+
+	@Test
+	public void testReadConfigInZipAndNextToIt() throws IOException
+	{
+		final File dir = Files.createTempDirectory( "stardist3d" ).toFile();
+		final File zip = new File( dir, "model.zip" );
+		try (ZipOutputStream out = new ZipOutputStream( new FileOutputStream( zip ) ))
+		{
+			out.putNextEntry( new ZipEntry( "model/" + StarDist3DModelConfig.CONFIG_FILE ) );
+			out.write( CONFIG.getBytes( StandardCharsets.UTF_8 ) );
+			out.closeEntry();
+		}
+		assertEquals( 64, StarDist3DModelConfig.read( zip ).nRays );
+
+		final File other = new File( dir, "other.zip" );
+		try (ZipOutputStream out = new ZipOutputStream( new FileOutputStream( other ) ))
+		{
+			out.putNextEntry( new ZipEntry( "saved_model.pb" ) );
+			out.closeEntry();
+		}
+		final File bare = Files.createTempDirectory( "stardist3d" ).toFile();
+		final File alone = new File( bare, "model.zip" );
+		Files.copy( other.toPath(), alone.toPath() );
+		assertNull( StarDist3DModelConfig.read( alone ) );
+
+		Files.write( new File( bare, StarDist3DModelConfig.CONFIG_FILE ).toPath(), "{\"n_rays\": 32}".getBytes( StandardCharsets.UTF_8 ) );
+		assertEquals( 32, StarDist3DModelConfig.read( alone ).nRays );
+	}
+
+	@Test
+	public void testRayFaces()
+	{
+		// Convex hull of points on a sphere: 2 n - 4 triangles.
+		for ( final int n : new int[] { 32, 64, 96 } )
+			assertEquals( 2 * n - 4, new StarDist3DRays( n, 1. ).nFaces() );
+	}
+
+	@Test
+	public void testPolyhedronNMS()
+	{
+		final StarDist3DRays rays = new StarDist3DRays( 32, 1. );
+		final StarConvexPolyhedron a = sphere( rays, 10., 10., 10., 5f, 0.9 );
+		final StarConvexPolyhedron b = sphere( rays, 11., 10., 10., 5f, 0.8 );
+		final StarConvexPolyhedron c = sphere( rays, 40., 10., 10., 5f, 0.7 );
+		final List< StarConvexPolyhedron > winners = PolyhedronNMS.nms( Arrays.asList( c, b, a ), 0.4 );
+		assertEquals( 2, winners.size() );
+		assertSame( a, winners.get( 0 ) );
+		assertSame( c, winners.get( 1 ) );
+	}
+
+	@Test
+	public void testSliceLinking()
+	{
+		// Object A in slices 0 to 2, object B in slices 1 to 3, C alone in 3.
+		final List< List< Detection > > slices = new ArrayList<>();
+		slices.add( Arrays.asList( square( 0., 0., 10. ) ) );
+		slices.add( Arrays.asList( square( 40., 0., 10. ), square( 1., 1., 10. ) ) );
+		slices.add( Arrays.asList( square( 2., 0., 10. ), square( 41., 1., 10. ) ) );
+		slices.add( Arrays.asList( square( 40., 2., 10. ), square( 80., 80., 10. ) ) );
+
+		final List< SliceObject > objects = StarDistSliceDetector.link( slices, StarDistSliceDetector.DEFAULT_LINK_THRESHOLD );
+		assertEquals( 3, objects.size() );
+		assertEquals( Arrays.asList( 0, 1, 2 ), objects.get( 0 ).slices );
+		assertEquals( Arrays.asList( 1, 2, 3 ), objects.get( 1 ).slices );
+		assertEquals( Arrays.asList( 3 ), objects.get( 2 ).slices );
+		assertSame( slices.get( 1 ).get( 1 ), objects.get( 0 ).detections.get( 1 ) );
+	}
+
+	@Test
+	public void testSliceLinkingStopsAtGapsAndSmallOverlaps()
+	{
+		final List< List< Detection > > slices = new ArrayList<>();
+		slices.add( Arrays.asList( square( 0., 0., 10. ) ) );
+		slices.add( Collections.emptyList() );
+		slices.add( Arrays.asList( square( 0., 0., 10. ) ) );
+		// Overlap of 40 % of the smallest area.
+		slices.add( Arrays.asList( square( 6., 0., 10. ) ) );
+		final List< SliceObject > objects = StarDistSliceDetector.link( slices, StarDistSliceDetector.DEFAULT_LINK_THRESHOLD );
+		assertEquals( 3, objects.size() );
+		for ( final SliceObject object : objects )
+			assertEquals( 1, object.slices.size() );
+	}
+
+	@Test
+	public void testSliceLinkingKeepsOneLinkPerDetection()
+	{
+		// Two polygons in slice 1 overlap the same polygon in slice 0: the
+		// largest overlap continues the object, the other starts a new one.
+		final List< List< Detection > > slices = new ArrayList<>();
+		slices.add( Arrays.asList( square( 0., 0., 10. ) ) );
+		slices.add( Arrays.asList( square( 3., 0., 10. ), square( 1., 0., 10. ) ) );
+		final List< SliceObject > objects = StarDistSliceDetector.link( slices, 0.3 );
+		assertEquals( 2, objects.size() );
+		assertEquals( Arrays.asList( 0, 1 ), objects.get( 0 ).slices );
+		assertSame( slices.get( 1 ).get( 1 ), objects.get( 0 ).detections.get( 1 ) );
+		assertEquals( Arrays.asList( 1 ), objects.get( 1 ).slices );
+	}
+
+	@Test
+	public void testUnsupportedSliceOptions()
+	{
+		assertNull( StarDistSliceDetector.unsupportedOptions( StarDistDetectorOptions.create().get() ) );
+		final String unsupported = StarDistSliceDetector.unsupportedOptions( StarDistDetectorOptions.create()
+				.labelImagePath( "labels.n5" )
+				.journalPath( "journal.sdj" )
+				.get() );
+		assertTrue( unsupported.contains( "label image" ) );
+		assertTrue( unsupported.contains( "journal" ) );
+	}
+
+	private static Detection square( final double x, final double y, final double size )
+	{
+		return new Detection(
+				new double[] { x, x + size, x + size, x },
+				new double[] { y, y, y + size, y + size },
+				1. );
+	}
+
+	private static StarConvexPolyhedron sphere( final StarDist3DRays rays, final double x, final double y, final double z, final float radius, final double score )
+	{
+		final float[] dist = new float[ rays.nRays ];
+		Arrays.fill( dist, radius );
+		return new StarConvexPolyhedron( rays, x, y, z, dist, score );
+	}
+}
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_HALO;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_INPUT_CACHE_SIZE;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_JOURNAL_PATH;
+import static fiji.plugin.trackmate.stardist.StarDistDetectorFactory.KEY_PREFETCH_DEPTH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.imagej.ImgPlus;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Tests that the journal key changes with what changes the detections, and
+ * only with it.
+ */
+public class StarDistDetectorFactoryTest
+{
+
+	private final StarDistDetectorFactory< FloatType > factory = new StarDistDetectorFactory<>();
+
+	private final ImgPlus< FloatType > img = new ImgPlus<>( ArrayImgs.floats( 64, 48, 5 ), "movie" );
+
+	private final Interval interval = new FinalInterval( 64, 48 );
+
+	@Test
+	public void testKeyIgnoresOutputAndPerformanceSettings()
+	{
+		final Map< String, Object > settings = factory.getDefaultSettings();
+		final long key = factory.journalKey( img, settings, interval );
+
+		settings.put( KEY_INPUT_CACHE_SIZE, 4 );
+		settings.put( KEY_PREFETCH_DEPTH, 2 );
+		settings.put( KEY_JOURNAL_PATH, "/tmp/other.sdj" );
+		assertEquals( key, factory.journalKey( img, settings, interval ) );
+	}
+
+	@Test
+	public void testKeyTreatsMissingAndEquivalentSettingsAlike()
+	{
+		final Map< String, Object > settings = factory.getDefaultSettings();
+		final long key = factory.journalKey( img, settings, interval );
+
+		final Object halo = settings.remove( KEY_HALO );
+		assertEquals( key, factory.journalKey( img, settings, interval ) );
+
+		// Read back from a file as another number type.
+		settings.put( KEY_HALO, Double.valueOf( ( ( Number ) halo ).doubleValue() ) );
+		assertEquals( key, factory.journalKey( img, settings, interval ) );
+	}
+
+	@Test
+	public void testKeyChangesWithDetectionSettingsAndInterval()
+	{
+		final Map< String, Object > settings = factory.getDefaultSettings();
+		final long key = factory.journalKey( img, settings, interval );
+
+		settings.put( KEY_HALO, ( ( Number ) settings.get( KEY_HALO ) ).intValue() + 8 );
+		assertNotEquals( key, factory.journalKey( img, settings, interval ) );
+
+		final Map< String, Object > defaults = factory.getDefaultSettings();
+		assertNotEquals( key, factory.journalKey( img, defaults, new FinalInterval( 32, 48 ) ) );
+		assertNotEquals( key, factory.journalKey( new ImgPlus<>( ArrayImgs.floats( 64, 48, 5 ), "other movie" ), defaults, interval ) );
+	}
+}
@@ -0,0 +1,321 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.stardist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.csbdresden.stardist.StarDist2DModel;
+import fiji.plugin.trackmate.stardist.FrameMemory.Detection;
+import fiji.plugin.trackmate.stardist.util.Prefetcher;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Headless regression tests for the StarDist detector, on synthetic images.
+ * The CNN is replaced by a stub that returns a regular polygon around each
+ * intensity peak, so that the spots, their geometry and their quality are
+ * known exactly. The timing benchmark only runs when the
+ * <code>stardist.benchmarks</code> system property is set.
+ */
+public class StarDistDetectorTest
+{
+
+	/** Time allowed for the post-processing of {@link #N_TIMED} x {@link #N_TIMED} objects, in ms. */
+	private static final long POST_PROCESSING_BUDGET = 2000;
+
+	private static final int N_TIMED = 20;
+
+	private static final int SPACING = 25;
+
+	private static final double RADIUS = 5.;
+
+	private static final int N_RAYS = 32;
+
+	private static final double[] CALIBRATION = new double[] { 0.5, 0.25 };
+
+	@Test
+	public void testSpotsMatchObjects()
+	{
+		final int n = 4;
+		final ArrayImg< FloatType, FloatArray > img = synthetic( n );
+		final StarDistDetector< FloatType > detector = createDetector( img );
+		assertTrue( detector.getErrorMessage(), detector.checkInput() );
+		assertTrue( detector.getErrorMessage(), detector.process() );
+		assertEquals( n * n, detector.getResult().size() );
+
+		final List< Detection > detections = new ArrayList<>( detector.getDetections() );
+		detections.sort( Comparator.comparingDouble( ( final Detection d ) -> Math.round( mean( d.y ) / CALIBRATION[ 1 ] ) )
+				.thenComparingDouble( d -> mean( d.x ) ) );
+		final double expectedArea = 0.5 * N_RAYS * RADIUS * RADIUS * Math.sin( 2. * Math.PI / N_RAYS ) * CALIBRATION[ 0 ] * CALIBRATION[ 1 ];
+		for ( int i = 0; i < detections.size(); i++ )
+		{
+			final Detection detection = detections.get( i );
+			final int col = i % n;
+			final int row = i / n;
+			assertEquals( N_RAYS, detection.x.length );
+			assertEquals( SPACING * ( col + 1 ) * CALIBRATION[ 0 ], mean( detection.x ), 1e-9 );
+			assertEquals( SPACING * ( row + 1 ) * CALIBRATION[ 1 ], mean( detection.y ), 1e-9 );
+			assertEquals( expectedArea, area( detection ), 1e-9 );
+			assertEquals( peak( i, n ), detection.quality, 1e-6 );
+		}
+	}
+
+	@Test
+	public void testEmptyImage()
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( 100, 100 );
+		final StarDistDetector< FloatType > detector = createDetector( img );
+		assertTrue( detector.process() );
+		assertEquals( 0, detector.getResult().size() );
+	}
+
+	@Test
+	public void testPrefetchedInputGivesSameSpots() throws Exception
+	{
+		final int n = 3;
+		final ArrayImg< FloatType, FloatArray > img = synthetic( n );
+		final StarDistDetector< FloatType > direct = createDetector( img );
+		assertTrue( direct.getErrorMessage(), direct.process() );
+
+		final AtomicInteger loads = new AtomicInteger();
+		final Prefetcher< ArrayImg< FloatType, FloatArray > > prefetcher = new Prefetcher<>( f -> {
+			loads.incrementAndGet();
+			return StarDistRunnerBase.toFloat( img );
+		}, 1, 1 );
+		final StarDistDetector< FloatType > detector = createDetector( img );
+		detector.setPrefetcher( prefetcher );
+		try
+		{
+			assertTrue( detector.getErrorMessage(), detector.process() );
+		}
+		finally
+		{
+			prefetcher.close();
+		}
+		assertEquals( 1, loads.get() );
+
+		final List< Detection > expected = new ArrayList<>( direct.getDetections() );
+		final List< Detection > actual = new ArrayList<>( detector.getDetections() );
+		assertEquals( expected.size(), actual.size() );
+		for ( int i = 0; i < expected.size(); i++ )
+		{
+			assertEquals( expected.get( i ).quality, actual.get( i ).quality, 0. );
+			assertEquals( mean( expected.get( i ).x ), mean( actual.get( i ).x ), 0. );
+			assertEquals( mean( expected.get( i ).y ), mean( actual.get( i ).y ), 0. );
+		}
+	}
+
+	@Test
+	public void testPrefetchKeepsRawValues()
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( new float[] { -3f, 0f, 2.5f, 1000f, 65535f, 7f }, 3, 2 );
+		final ArrayImg< FloatType, FloatArray > copy = StarDistRunnerBase.toFloat( img );
+		assertEquals( 3, copy.dimension( 0 ) );
+		assertEquals( 2, copy.dimension( 1 ) );
+		final float[] values = copy.update( null ).getCurrentStorageArray();
+		final float[] expected = img.update( null ).getCurrentStorageArray();
+		for ( int i = 0; i < expected.length; i++ )
+			assertEquals( expected[ i ], values[ i ], 0f );
+	}
+
+	@Test
+	public void testCanceledFrameReportsFailure()
+	{
+		final StarDistDetector< FloatType > detector = createDetector( synthetic( 2 ) );
+		final List< Boolean > results = new ArrayList<>();
+		detector.setOnProcessed( results::add );
+		detector.cancel( "User abort." );
+		assertTrue( detector.isCanceled() );
+		assertFalse( detector.process() );
+		assertTrue( detector.getErrorMessage().contains( "User abort." ) );
+		assertEquals( Collections.singletonList( Boolean.FALSE ), results );
+	}
+
+	@Test
+	public void testFailedCheckReportsFailure()
+	{
+		final StarDistDetector< FloatType > detector = new StarDistDetector<>( new StubRunner(), null, null, CALIBRATION );
+		final List< Boolean > results = new ArrayList<>();
+		detector.setOnProcessed( results::add );
+		assertFalse( detector.checkInput() );
+		assertEquals( Collections.singletonList( Boolean.FALSE ), results );
+	}
+
+	@Test
+	public void benchmarkPostProcessing()
+	{
+		assumeTrue( Boolean.getBoolean( "stardist.benchmarks" ) );
+		final ArrayImg< FloatType, FloatArray > img = synthetic( N_TIMED );
+		// Warm-up.
+		createDetector( img ).process();
+
+		final StarDistDetector< FloatType > detector = createDetector( img );
+		final long start = System.currentTimeMillis();
+		assertTrue( detector.process() );
+		final long elapsed = System.currentTimeMillis() - start;
+		assertEquals( N_TIMED * N_TIMED, detector.getResult().size() );
+		assertTrue( "Post-processing of " + N_TIMED * N_TIMED + " objects took " + elapsed + " ms, budget is " + POST_PROCESSING_BUDGET + " ms.",
+				elapsed <= POST_PROCESSING_BUDGET );
+	}
+
+	private static StarDistDetector< FloatType > createDetector( final ArrayImg< FloatType, FloatArray > img )
+	{
+		final StarDistDetectorOptions options = StarDistDetectorOptions.create()
+				.simplifyTolerance( 0. )
+				.get();
+		return new StarDistDetector<>( new StubRunner(), img, img, CALIBRATION, 0, null, options );
+	}
+
+	/**
+	 * An image with n x n Gaussian peaks on a grid, all of different heights.
+	 */
+	private static ArrayImg< FloatType, FloatArray > synthetic( final int n )
+	{
+		final int size = SPACING * ( n + 1 );
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( size, size );
+		final RandomAccess< FloatType > ra = img.randomAccess();
+		for ( int i = 0; i < n * n; i++ )
+		{
+			final int cx = SPACING * ( i % n + 1 );
+			final int cy = SPACING * ( i / n + 1 );
+			for ( int dy = -SPACING / 2; dy <= SPACING / 2; dy++ )
+			{
+				for ( int dx = -SPACING / 2; dx <= SPACING / 2; dx++ )
+				{
+					ra.setPosition( cx + dx, 0 );
+					ra.setPosition( cy + dy, 1 );
+					ra.get().setReal( peak( i, n ) * Math.exp( -( dx * dx + dy * dy ) / 8. ) );
+				}
+			}
+		}
+		return img;
+	}
+
+	private static double peak( final int i, final int n )
+	{
+		return 0.5 + 0.4 * i / ( n * n );
+	}
+
+	private static double mean( final double[] arr )
+	{
+		double sum = 0.;
+		for ( final double v : arr )
+			sum += v;
+		return sum / arr.length;
+	}
+
+	private static double area( final Detection detection )
+	{
+		double a = 0.;
+		for ( int i = 0; i < detection.x.length; i++ )
+		{
+			final int j = ( i + 1 ) % detection.x.length;
+			a += detection.x[ i ] * detection.y[ j ] - detection.x[ j ] * detection.y[ i ];
+		}
+		return Math.abs( a ) / 2.;
+	}
+
+	/**
+	 * Stands for the CNN and the NMS: returns a regular polygon around each
+	 * local maximum brighter than 0.2, with the peak value as score.
+	 */
+	private static final class StubRunner extends StarDistRunnerBase
+	{
+
+		@Override
+		protected StarDist2DModel getModel()
+		{
+			return null;
+		}
+
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		@Override
+		public < T extends Type< T > > List< StarConvexPolygon > runPolygons( final RandomAccessibleInterval< T > input )
+		{
+			return findPeaks( ( RandomAccessibleInterval ) input );
+		}
+
+		private static < R extends RealType< R > > List< StarConvexPolygon > findPeaks( final RandomAccessibleInterval< R > input )
+		{
+			final List< StarConvexPolygon > polygons = new ArrayList<>();
+			final RandomAccess< R > ra = input.randomAccess();
+			for ( long y = input.min( 1 ) + 1; y < input.max( 1 ); y++ )
+			{
+				for ( long x = input.min( 0 ) + 1; x < input.max( 0 ); x++ )
+				{
+					ra.setPosition( x, 0 );
+					ra.setPosition( y, 1 );
+					final double v = ra.get().getRealDouble();
+					if ( v <= 0.2 || !isMax( ra, x, y, v ) )
+						continue;
+
+					final double[] xs = new double[ N_RAYS ];
+					final double[] ys = new double[ N_RAYS ];
+					for ( int k = 0; k < N_RAYS; k++ )
+					{
+						final double theta = 2. * Math.PI * k / N_RAYS;
+						xs[ k ] = x + RADIUS * Math.cos( theta );
+						ys[ k ] = y + RADIUS * Math.sin( theta );
+					}
+					final StarConvexPolygon polygon = new StarConvexPolygon( xs, ys, v );
+					polygon.quality = polygon.maxIn( input );
+					polygons.add( polygon );
+				}
+			}
+			return polygons;
+		}
+
+		private static < R extends RealType< R > > boolean isMax( final RandomAccess< R > ra, final long x, final long y, final double v )
+		{
+			for ( int dy = -1; dy <= 1; dy++ )
+			{
+				for ( int dx = -1; dx <= 1; dx++ )
+				{
+					if ( dx == 0 && dy == 0 )
+						continue;
+					ra.setPosition( x + dx, 0 );
+					ra.setPosition( y + dy, 1 );
+					if ( ra.get().getRealDouble() >= v )
+						return false;
+				}
+			}
+			return true;
+		}
+	}
+}